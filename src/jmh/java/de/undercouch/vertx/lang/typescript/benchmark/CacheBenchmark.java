@@ -0,0 +1,171 @@
+// Copyright 2016 Michel Kraemer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.undercouch.vertx.lang.typescript.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.undercouch.vertx.lang.typescript.cache.Cache;
+import de.undercouch.vertx.lang.typescript.cache.DiskCache;
+import de.undercouch.vertx.lang.typescript.cache.InMemoryCache;
+import de.undercouch.vertx.lang.typescript.cache.NoopCache;
+
+/**
+ * Measures the throughput of cache lookups and insertions while several
+ * threads access the same cache. The disk cache is measured without a
+ * second-level memory cache so every lookup actually reads from disk.
+ * @author Michel Kraemer
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Threads(4)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CacheBenchmark {
+  /**
+   * The number of entries in the cache
+   */
+  private static final int ENTRIES = 1000;
+  
+  /**
+   * The cache to measure
+   */
+  @Param({ "memory", "disk" })
+  public String cache;
+  
+  /**
+   * The size of each entry in bytes
+   */
+  @Param({ "4096" })
+  public int entrySize;
+  
+  /**
+   * The cache's keys
+   */
+  private String[] keys;
+  
+  /**
+   * The value of each entry
+   */
+  private ByteBuffer value;
+  
+  /**
+   * The directory of the disk cache
+   */
+  private Path cacheDir;
+  
+  /**
+   * The cache under test
+   */
+  private Cache c;
+  
+  /**
+   * Create the cache and fill it
+   * @throws IOException if the cache directory could not be created
+   */
+  @Setup
+  public void setUp() throws IOException {
+    byte[] v = new byte[entrySize];
+    for (int i = 0; i < v.length; ++i) {
+      v[i] = (byte)('a' + i % 26);
+    }
+    value = ByteBuffer.wrap(v).asReadOnlyBuffer();
+    
+    switch (cache) {
+      case "memory":
+        c = new InMemoryCache();
+        break;
+      
+      case "disk":
+        cacheDir = Files.createTempDirectory("vertx-typescript-benchmark");
+        c = new DiskCache(cacheDir.toFile(), new NoopCache());
+        break;
+      
+      default:
+        throw new IllegalArgumentException("Unknown cache: " + cache);
+    }
+    
+    keys = new String[ENTRIES];
+    for (int i = 0; i < ENTRIES; ++i) {
+      keys[i] = Integer.toHexString(("entry" + i).hashCode());
+      c.putBytes(keys[i], value.duplicate());
+    }
+  }
+  
+  /**
+   * Delete the disk cache
+   * @throws IOException if the cache directory could not be deleted
+   */
+  @TearDown
+  public void tearDown() throws IOException {
+    if (cacheDir != null) {
+      try (Stream<Path> files = Files.walk(cacheDir)) {
+        files.sorted(Comparator.reverseOrder()).map(Path::toFile)
+          .forEach(File::delete);
+      }
+      cacheDir = null;
+    }
+  }
+  
+  /**
+   * Look up a random entry
+   * @return the entry's value
+   */
+  @Benchmark
+  public ByteBuffer get() {
+    return c.getBytes(keys[ThreadLocalRandom.current().nextInt(ENTRIES)]);
+  }
+  
+  /**
+   * Replace a random entry
+   */
+  @Benchmark
+  public void put() {
+    c.putBytes(keys[ThreadLocalRandom.current().nextInt(ENTRIES)],
+        value.duplicate());
+  }
+  
+  /**
+   * Look up a random entry and decode it to a string
+   * @return the entry's value
+   */
+  @Benchmark
+  public String getString() {
+    return c.get(keys[ThreadLocalRandom.current().nextInt(ENTRIES)]);
+  }
+}
@@ -0,0 +1,164 @@
+// Copyright 2016 Michel Kraemer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.undercouch.vertx.lang.typescript.benchmark;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.undercouch.vertx.lang.typescript.TypeScriptClassLoader;
+import de.undercouch.vertx.lang.typescript.cache.NoopCache;
+import de.undercouch.vertx.lang.typescript.cache.SourceCache;
+import de.undercouch.vertx.lang.typescript.compiler.Source;
+
+/**
+ * Measures how long {@link TypeScriptClassLoader#getSource(String, String)}
+ * takes to resolve a source file on the class path or in the file system
+ * @author Michel Kraemer
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ClassLoaderBenchmark {
+  /**
+   * A file that is always on the class path
+   */
+  private static final String CLASS_PATH_FILE = "vertx-typescript/util/compile.js";
+  
+  /**
+   * Where the source file is located
+   */
+  @Param({ "classpath", "file" })
+  public String location;
+  
+  /**
+   * A temporary file in the file system
+   */
+  private Path tempFile;
+  
+  /**
+   * The name of the file to resolve
+   */
+  private String name;
+  
+  /**
+   * A source cache shared by all class loaders
+   */
+  private SourceCache sourceCache;
+  
+  /**
+   * A class loader that has resolved the file before
+   */
+  private TypeScriptClassLoader warmClassLoader;
+  
+  /**
+   * Create the file to resolve and a warm class loader
+   * @throws IOException if the file could not be created or resolved
+   */
+  @Setup
+  public void setUp() throws IOException {
+    switch (location) {
+      case "classpath":
+        name = CLASS_PATH_FILE;
+        break;
+      
+      case "file":
+        tempFile = Files.createTempFile("vertx-typescript-benchmark", ".ts");
+        Files.write(tempFile, "export var i: number = 5;\n".getBytes(
+            StandardCharsets.UTF_8));
+        name = tempFile.toAbsolutePath().toString();
+        break;
+      
+      default:
+        throw new IllegalArgumentException("Unknown location: " + location);
+    }
+    
+    sourceCache = new SourceCache();
+    warmClassLoader = newClassLoader(sourceCache);
+    warmClassLoader.getSource(name, null);
+  }
+  
+  /**
+   * Delete the temporary file
+   * @throws IOException if the file could not be deleted
+   */
+  @TearDown
+  public void tearDown() throws IOException {
+    if (tempFile != null) {
+      Files.deleteIfExists(tempFile);
+      tempFile = null;
+    }
+  }
+  
+  /**
+   * Create a new class loader
+   * @param sourceCache the source cache the class loader should use
+   * @return the class loader
+   */
+  private TypeScriptClassLoader newClassLoader(SourceCache sourceCache) {
+    return new TypeScriptClassLoader(getClass().getClassLoader(), null,
+        new NoopCache(), sourceCache);
+  }
+  
+  /**
+   * Resolve the file with a class loader that has resolved it before
+   * @return the source file
+   * @throws IOException if the file could not be resolved
+   */
+  @Benchmark
+  public Source warm() throws IOException {
+    return warmClassLoader.getSource(name, null);
+  }
+  
+  /**
+   * Resolve the file with a new class loader that shares its source cache
+   * with other class loaders (like class loaders of verticles do)
+   * @return the source file
+   * @throws IOException if the file could not be resolved
+   */
+  @Benchmark
+  public Source sharedCache() throws IOException {
+    return newClassLoader(sourceCache).getSource(name, null);
+  }
+  
+  /**
+   * Resolve and read the file with a new class loader and an empty
+   * source cache
+   * @return the source file
+   * @throws IOException if the file could not be resolved
+   */
+  @Benchmark
+  public Source cold() throws IOException {
+    return newClassLoader(new SourceCache()).getSource(name, null);
+  }
+}
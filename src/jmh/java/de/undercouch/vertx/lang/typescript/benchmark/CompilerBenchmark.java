@@ -0,0 +1,214 @@
+// Copyright 2016 Michel Kraemer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.undercouch.vertx.lang.typescript.benchmark;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.undercouch.vertx.lang.typescript.TypeScriptClassLoader;
+import de.undercouch.vertx.lang.typescript.cache.NoopCache;
+import de.undercouch.vertx.lang.typescript.compiler.EngineCompiler;
+import de.undercouch.vertx.lang.typescript.compiler.NodeCompiler;
+import de.undercouch.vertx.lang.typescript.compiler.Source;
+import de.undercouch.vertx.lang.typescript.compiler.SourceFactory;
+import de.undercouch.vertx.lang.typescript.compiler.TypeScriptCompiler;
+import de.undercouch.vertx.lang.typescript.compiler.V8Compiler;
+
+/**
+ * Measures how long the compilers take to compile a small program
+ * consisting of a main file and a number of modules. Cold compilations
+ * include starting the compiler and loading the TypeScript compiler into
+ * it. Warm compilations reuse a compiler that has compiled the program
+ * before. Every compiler is closed after use, so cold compilations do not
+ * leave V8 runtimes or Node.js processes behind. Compilers that are not
+ * available on this system fail during
+ * setup. Select the compilers to measure with <code>-p compiler=v8</code>.
+ * @author Michel Kraemer
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CompilerBenchmark {
+  /**
+   * The name of the program's main file
+   */
+  private static final String MAIN = "main.ts";
+  
+  /**
+   * The number of modules the main file imports
+   */
+  private static final int MODULES = 10;
+  
+  /**
+   * The compiler to measure
+   */
+  @Param({ "v8", "node", "nashorn" })
+  public String compiler;
+  
+  /**
+   * The factory that loads the program's files and the TypeScript compiler
+   */
+  private SourceFactory sourceFactory;
+  
+  /**
+   * A compiler that has compiled the program before
+   */
+  private TypeScriptCompiler warmCompiler;
+  
+  /**
+   * The compiler started by the last cold compilation (may be
+   * <code>null</code>)
+   */
+  private TypeScriptCompiler coldCompiler;
+  
+  /**
+   * Create the program and a warm compiler
+   * @throws IOException if the program could not be compiled
+   */
+  @Setup
+  public void setUp() throws IOException {
+    Map<String, Source> files = new HashMap<>();
+    StringBuilder main = new StringBuilder();
+    for (int i = 0; i < MODULES; ++i) {
+      String name = "module" + i;
+      files.put(name + ".ts", new Source(URI.create(name + ".ts"), makeModule(i)));
+      main.append("import " + name + " = require(\"./" + name + "\");\n");
+      main.append("console.log(" + name + ".calc(" + i + "));\n");
+    }
+    files.put(MAIN, new Source(URI.create(MAIN), main.toString()));
+    
+    TypeScriptClassLoader cl = new TypeScriptClassLoader(
+        getClass().getClassLoader(), null, new NoopCache());
+    sourceFactory = (filename, baseFilename) -> {
+      Source s = files.get(filename);
+      if (s != null) {
+        return s;
+      }
+      return cl.getSource(filename, baseFilename);
+    };
+    
+    warmCompiler = newCompiler();
+    warmCompiler.compile(MAIN, sourceFactory);
+  }
+  
+  /**
+   * Close the warm compiler
+   */
+  @TearDown
+  public void tearDown() {
+    warmCompiler.close();
+  }
+  
+  /**
+   * Close the compiler started by the last cold compilation
+   */
+  @TearDown(Level.Invocation)
+  public void closeColdCompiler() {
+    if (coldCompiler != null) {
+      coldCompiler.close();
+      coldCompiler = null;
+    }
+  }
+  
+  /**
+   * Generate the code of a module
+   * @param n the module's number
+   * @return the code
+   */
+  private static String makeModule(int n) {
+    return "export interface Point" + n + " { x: number; y: number; }\n" +
+        "export class Calculator" + n + " {\n" +
+        "  private points: Point" + n + "[] = [];\n" +
+        "  add(p: Point" + n + "): Calculator" + n + " {\n" +
+        "    this.points.push(p);\n" +
+        "    return this;\n" +
+        "  }\n" +
+        "  sum(): number {\n" +
+        "    return this.points.reduce((s, p) => s + p.x * p.y, 0);\n" +
+        "  }\n" +
+        "}\n" +
+        "export function calc(i: number): number {\n" +
+        "  return new Calculator" + n + "().add({ x: i, y: " + n + " }).sum();\n" +
+        "}\n";
+  }
+  
+  /**
+   * Create a new instance of the compiler to measure
+   * @return the compiler
+   */
+  private TypeScriptCompiler newCompiler() {
+    switch (compiler) {
+      case "v8":
+        if (!V8Compiler.supportsV8()) {
+          throw new IllegalStateException("V8 is not available");
+        }
+        return new V8Compiler();
+      
+      case "node":
+        if (!NodeCompiler.supportsNode()) {
+          throw new IllegalStateException("Node.js is not available");
+        }
+        return new NodeCompiler();
+      
+      case "nashorn":
+        return new EngineCompiler();
+      
+      default:
+        throw new IllegalArgumentException("Unknown compiler: " + compiler);
+    }
+  }
+  
+  /**
+   * Start a new compiler and compile the program
+   * @return the generated code
+   * @throws IOException if the program could not be compiled
+   */
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  public String cold() throws IOException {
+    coldCompiler = newCompiler();
+    return coldCompiler.compile(MAIN, sourceFactory);
+  }
+  
+  /**
+   * Compile the program with a compiler that has compiled it before
+   * @return the generated code
+   * @throws IOException if the program could not be compiled
+   */
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  public String warm() throws IOException {
+    return warmCompiler.compile(MAIN, sourceFactory);
+  }
+}
@@ -0,0 +1,128 @@
+// Copyright 2016 Michel Kraemer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.undercouch.vertx.lang.typescript.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.undercouch.vertx.lang.typescript.compiler.Source;
+
+/**
+ * Measures how long it takes to read large source files (such as type
+ * definitions) and to calculate their digests
+ * @author Michel Kraemer
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SourceBenchmark {
+  /**
+   * The URI of the source file
+   */
+  private static final URI FILE_URI = URI.create("lib.d.ts");
+  
+  /**
+   * The size of the source file in bytes
+   */
+  @Param({ "65536", "1048576" })
+  public int size;
+  
+  /**
+   * The source file's contents
+   */
+  private String contents;
+  
+  /**
+   * The source file's UTF-8 bytes
+   */
+  private byte[] bytes;
+  
+  /**
+   * Generate the source file
+   */
+  @Setup
+  public void setUp() {
+    StringBuilder sb = new StringBuilder(size);
+    int i = 0;
+    while (sb.length() < size) {
+      sb.append("declare function f" + i + "(a: number, b: string): void; // äöü\n");
+      ++i;
+    }
+    sb.setLength(size);
+    contents = sb.toString();
+    bytes = contents.getBytes(StandardCharsets.UTF_8);
+  }
+  
+  /**
+   * Read the source file from a stream
+   * @return the source
+   * @throws IOException if the stream could not be read
+   */
+  @Benchmark
+  public Source fromStream() throws IOException {
+    return Source.fromStream(new ByteArrayInputStream(bytes), FILE_URI,
+        StandardCharsets.UTF_8);
+  }
+  
+  /**
+   * Read the source file from a stream and get its digest
+   * @return the digest
+   * @throws IOException if the stream could not be read
+   */
+  @Benchmark
+  public String fromStreamDigest() throws IOException {
+    return Source.fromStream(new ByteArrayInputStream(bytes), FILE_URI,
+        StandardCharsets.UTF_8).getDigest();
+  }
+  
+  /**
+   * Read the source file from a stream and decode it
+   * @return the decoded source file
+   * @throws IOException if the stream could not be read
+   */
+  @Benchmark
+  public String fromStreamDecode() throws IOException {
+    return Source.fromStream(new ByteArrayInputStream(bytes), FILE_URI,
+        StandardCharsets.UTF_8).toString();
+  }
+  
+  /**
+   * Calculate the digest of a source file that has been created from
+   * a string
+   * @return the digest
+   */
+  @Benchmark
+  public String stringDigest() {
+    return new Source(FILE_URI, contents).getDigest();
+  }
+}
@@ -0,0 +1,368 @@
+// Copyright 2016 Michel Kraemer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.undercouch.vertx.lang.typescript;
+
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Vertx;
+import io.vertx.core.impl.Deployment;
+import io.vertx.core.impl.VertxInternal;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import de.undercouch.vertx.lang.typescript.cache.Cache;
+import de.undercouch.vertx.lang.typescript.cache.SourceCache;
+import de.undercouch.vertx.lang.typescript.compiler.TypeScriptCompiler;
+
+/**
+ * Watches the source files of deployed TypeScript verticles. When a file
+ * changes, the verticles depending on it are recompiled in the background.
+ * Once the new code is in the code cache, the verticles are undeployed and
+ * deployed again with the same deployment options. If the new code cannot
+ * be compiled, the old verticles keep running. Only files in the file
+ * system are watched (not those in jar files). Verticles deployed by other
+ * verticles are not redeployed because they would then outlive their
+ * parent. Their new code is used when the parent is redeployed.
+ * @author Michel Kraemer
+ */
+class HotReloader {
+  /**
+   * The logger used to report reloaded verticles and compilation errors
+   */
+  private static final Logger log = LoggerFactory.getLogger(HotReloader.class);
+  
+  /**
+   * The number of milliseconds to wait for further changes before
+   * recompiling (editors often write a file in several steps)
+   */
+  private static final long QUIET_PERIOD = 300;
+  
+  /**
+   * The Vert.x instance the verticles are deployed to
+   */
+  private final Vertx vertx;
+  
+  /**
+   * The compiler used to recompile changed files
+   */
+  private final TypeScriptCompiler compiler;
+  
+  /**
+   * The code cache to refresh
+   */
+  private final Cache codeCache;
+  
+  /**
+   * The cache for source files shared by all verticles
+   */
+  private final SourceCache sourceCache;
+  
+  /**
+   * Watched deployments. Maps deployment IDs to the files they depend on.
+   */
+  private final Map<String, Watched> deployments = new HashMap<>();
+  
+  /**
+   * The directories already registered with {@link #watchService}
+   */
+  private final Set<Path> watchedDirs = new HashSet<>();
+  
+  /**
+   * The service notifying us about changed files (created on demand)
+   */
+  private WatchService watchService;
+  
+  /**
+   * Creates a new hot reloader
+   * @param vertx the Vert.x instance the verticles are deployed to
+   * @param compiler the compiler used to recompile changed files
+   * @param codeCache the code cache to refresh
+   * @param sourceCache the cache for source files shared by all verticles
+   */
+  HotReloader(Vertx vertx, TypeScriptCompiler compiler, Cache codeCache,
+      SourceCache sourceCache) {
+    this.vertx = vertx;
+    this.compiler = compiler;
+    this.codeCache = codeCache;
+    this.sourceCache = sourceCache;
+  }
+  
+  /**
+   * Start watching the source files a verticle has been compiled from.
+   * Can be called multiple times for the same deployment (e.g. once for
+   * each verticle instance).
+   * @param deploymentID the verticle's deployment ID
+   * @param classLoader the class loader that has loaded the verticle
+   */
+  synchronized void watch(String deploymentID, TypeScriptClassLoader classLoader) {
+    Watched w = deployments.get(deploymentID);
+    if (w == null) {
+      w = new Watched(classLoader.getParent());
+      deployments.put(deploymentID, w);
+    }
+    w.loadedFiles.addAll(classLoader.getLoadedFiles());
+    
+    for (URL u : classLoader.getSourceURLs()) {
+      if (!"file".equals(u.getProtocol())) {
+        continue;
+      }
+      Path p;
+      try {
+        p = Paths.get(u.toURI()).toAbsolutePath();
+      } catch (URISyntaxException | IllegalArgumentException e) {
+        continue;
+      }
+      w.sourceFiles.add(p);
+      try {
+        watchDir(p.getParent());
+      } catch (IOException e) {
+        log.warn("Could not watch directory " + p.getParent(), e);
+      }
+    }
+  }
+  
+  /**
+   * Stop watching the source files of a deployment
+   * @param deploymentID the deployment ID
+   */
+  synchronized void unwatch(String deploymentID) {
+    deployments.remove(deploymentID);
+  }
+  
+  /**
+   * Register a directory with the watch service. Create the watch service
+   * and start the thread waiting for changes if necessary.
+   * @param dir the directory
+   * @throws IOException if the directory could not be registered
+   */
+  private void watchDir(Path dir) throws IOException {
+    if (watchedDirs.contains(dir)) {
+      return;
+    }
+    if (watchService == null) {
+      watchService = FileSystems.getDefault().newWatchService();
+      WatchService ws = watchService;
+      Thread t = new Thread(() -> run(ws), "vertx-typescript-hot-reload");
+      t.setDaemon(true);
+      t.start();
+    }
+    dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+        StandardWatchEventKinds.ENTRY_MODIFY);
+    watchedDirs.add(dir);
+  }
+  
+  /**
+   * Stop watching files
+   */
+  synchronized void close() {
+    deployments.clear();
+    watchedDirs.clear();
+    if (watchService != null) {
+      try {
+        watchService.close();
+      } catch (IOException e) {
+        // ignore
+      }
+      watchService = null;
+    }
+  }
+  
+  /**
+   * Wait for changes and reload affected deployments
+   * @param ws the watch service to wait on
+   */
+  private void run(WatchService ws) {
+    try {
+      while (true) {
+        Set<Path> changed = new HashSet<>();
+        WatchKey key = ws.take();
+        
+        // collect changes until the file system has been quiet for a while
+        while (key != null) {
+          Path dir = (Path)key.watchable();
+          for (WatchEvent<?> e : key.pollEvents()) {
+            if (e.kind() == StandardWatchEventKinds.OVERFLOW) {
+              // we don't know which files have changed
+              changed.add(dir);
+            } else {
+              changed.add(dir.resolve((Path)e.context()));
+            }
+          }
+          key.reset();
+          key = ws.poll(QUIET_PERIOD, TimeUnit.MILLISECONDS);
+        }
+        
+        reload(changed);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ClosedWatchServiceException e) {
+      // the hot reloader has been closed
+    }
+  }
+  
+  /**
+   * Recompile and redeploy all deployments depending on changed files
+   * @param changed the changed files (or directories if it is unknown
+   * which files in them have changed)
+   */
+  private void reload(Set<Path> changed) {
+    Map<String, Watched> affected = new HashMap<>();
+    synchronized (this) {
+      Iterator<Map.Entry<String, Watched>> it = deployments.entrySet().iterator();
+      while (it.hasNext()) {
+        Map.Entry<String, Watched> e = it.next();
+        if (e.getValue().dependsOn(changed)) {
+          affected.put(e.getKey(), e.getValue());
+          it.remove();
+        }
+      }
+    }
+    
+    for (Map.Entry<String, Watched> e : affected.entrySet()) {
+      String deploymentID = e.getKey();
+      Watched w = e.getValue();
+      boolean compiled = false;
+      try {
+        TypeScriptClassLoader cl = new TypeScriptClassLoader(
+            w.parentClassLoader, compiler, codeCache, sourceCache);
+        for (String name : w.loadedFiles) {
+          compiled |= cl.refresh(name);
+        }
+      } catch (IOException | RuntimeException ex) {
+        log.error("Could not recompile deployment " + deploymentID +
+            ". Old version keeps running.", ex);
+        keepWatching(deploymentID, w);
+        continue;
+      }
+      
+      if (compiled) {
+        redeploy(deploymentID);
+      } else {
+        // nothing has changed that is relevant to the compiled code
+        keepWatching(deploymentID, w);
+      }
+    }
+  }
+  
+  /**
+   * Watch a deployment again that has not been redeployed
+   * @param deploymentID the deployment ID
+   * @param w the files the deployment depends on
+   */
+  private synchronized void keepWatching(String deploymentID, Watched w) {
+    if (watchService != null) {
+      deployments.putIfAbsent(deploymentID, w);
+    }
+  }
+  
+  /**
+   * Undeploy a deployment and deploy it again with the same options.
+   * The new verticle instances will register themselves when they are
+   * started.
+   * @param deploymentID the deployment ID
+   */
+  private void redeploy(String deploymentID) {
+    Deployment d = ((VertxInternal)vertx).getDeployment(deploymentID);
+    if (d == null) {
+      // deployment has been undeployed in the meantime
+      return;
+    }
+    String identifier = d.verticleIdentifier();
+    if (d.isChild()) {
+      // deploying it again would make it a top-level deployment
+      log.info("Recompiled " + identifier + ". It has been deployed by " +
+          "another verticle and will be updated when this verticle is " +
+          "redeployed.");
+      return;
+    }
+    DeploymentOptions options = new DeploymentOptions(d.deploymentOptions());
+    vertx.undeploy(deploymentID, ur -> {
+      if (ur.failed()) {
+        log.error("Could not undeploy " + identifier, ur.cause());
+        return;
+      }
+      vertx.deployVerticle(identifier, options, dr -> {
+        if (dr.failed()) {
+          log.error("Could not redeploy " + identifier, dr.cause());
+        } else {
+          log.info("Redeployed " + identifier);
+        }
+      });
+    });
+  }
+  
+  /**
+   * The files a deployment depends on
+   */
+  private static class Watched {
+    /**
+     * The parent of the class loader that has loaded the deployment's
+     * verticles
+     */
+    private final ClassLoader parentClassLoader;
+    
+    /**
+     * The names of the TypeScript files the verticles have loaded
+     */
+    private final Set<String> loadedFiles = new HashSet<>();
+    
+    /**
+     * The absolute paths of all source files the verticles depend on
+     */
+    private final Set<Path> sourceFiles = new HashSet<>();
+    
+    /**
+     * Creates a new object
+     * @param parentClassLoader the parent of the class loader that has
+     * loaded the deployment's verticles
+     */
+    Watched(ClassLoader parentClassLoader) {
+      this.parentClassLoader = parentClassLoader;
+    }
+    
+    /**
+     * Check if the deployment depends on any of the given files
+     * @param changed the changed files or directories
+     * @return true if the deployment depends on one of the files or on
+     * a file in one of the directories
+     */
+    boolean dependsOn(Set<Path> changed) {
+      for (Path p : sourceFiles) {
+        if (changed.contains(p) || changed.contains(p.getParent())) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+}
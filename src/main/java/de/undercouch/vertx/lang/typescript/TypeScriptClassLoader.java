@@ -14,20 +14,33 @@
 
 package de.undercouch.vertx.lang.typescript;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
 
 import de.undercouch.vertx.lang.typescript.cache.Cache;
+import de.undercouch.vertx.lang.typescript.cache.CacheManifest;
+import de.undercouch.vertx.lang.typescript.cache.PrecompiledCache;
+import de.undercouch.vertx.lang.typescript.cache.SourceCache;
 import de.undercouch.vertx.lang.typescript.compiler.Source;
 import de.undercouch.vertx.lang.typescript.compiler.SourceFactory;
 import de.undercouch.vertx.lang.typescript.compiler.TypeScriptCompiler;
+import de.undercouch.vertx.lang.typescript.metrics.Metrics;
+import de.undercouch.vertx.lang.typescript.metrics.TypeScriptMetrics;
 
 /**
  * A special class loader that automatically compiles loaded TypeScript
@@ -36,15 +49,46 @@ import de.undercouch.vertx.lang.typescript.compiler.TypeScriptCompiler;
  */
 public class TypeScriptClassLoader extends ClassLoader implements SourceFactory {
   /**
-   * A cache for already loaded source files
+   * Compilations currently in progress. Maps cache keys of manifests to
+   * futures that will be completed with the UTF-8 encoded compiled code.
+   * Used to make sure the same file is not compiled multiple times in
+   * parallel (e.g. if a verticle is deployed with multiple instances). The
+   * keys contain the location of the file (see
+   * {@link CacheManifest#getKey(String, Source)}), so files with the same
+   * contents at different locations are compiled separately.
    */
-  private Map<String, Source> sourceCache = new HashMap<>();
+  private static final ConcurrentMap<String, CompletableFuture<ByteBuffer>> inFlight =
+      new ConcurrentHashMap<>();
+  
+  /**
+   * Maps names of already loaded source files to the URLs they have been
+   * loaded from. The compiler may call {@link #getSource(String, String)}
+   * from another thread.
+   */
+  private final Map<String, URL> resolvedSources = new ConcurrentHashMap<>();
+  
+  /**
+   * Names of TypeScript files this class loader has compiled or loaded
+   * from a cache
+   */
+  private final Set<String> loadedFiles = ConcurrentHashMap.newKeySet();
+  
+  /**
+   * A cache for already loaded source files (may be shared with other
+   * class loaders)
+   */
+  private final SourceCache sourceCache;
   
   /**
    * A cache for already compiled sources
    */
   private final Cache codeCache;
   
+  /**
+   * Code compiled at build time
+   */
+  private final Cache precompiledCache;
+  
   /**
    * A TypeScript compiler
    */
@@ -57,9 +101,23 @@ public class TypeScriptClassLoader extends ClassLoader implements SourceFactory
    * @param codeCache a cache for already compiled sources
    */
   public TypeScriptClassLoader(ClassLoader parent, TypeScriptCompiler compiler, Cache codeCache) {
+    this(parent, compiler, codeCache, new SourceCache());
+  }
+  
+  /**
+   * Creates a new class loader
+   * @param parent the parent class loader
+   * @param compiler a TypeScript compiler
+   * @param codeCache a cache for already compiled sources
+   * @param sourceCache a cache for already loaded source files
+   */
+  public TypeScriptClassLoader(ClassLoader parent, TypeScriptCompiler compiler,
+      Cache codeCache, SourceCache sourceCache) {
     super(parent);
     this.compiler = compiler;
     this.codeCache = codeCache;
+    this.sourceCache = sourceCache;
+    this.precompiledCache = new PrecompiledCache(parent);
   }
   
   @Override
@@ -86,6 +144,42 @@ public class TypeScriptClassLoader extends ClassLoader implements SourceFactory
     }
   }
   
+  /**
+   * @return the names of all TypeScript files this class loader has
+   * compiled or loaded from a cache
+   */
+  public Set<String> getLoadedFiles() {
+    return Collections.unmodifiableSet(new HashSet<>(loadedFiles));
+  }
+  
+  /**
+   * @return the URLs of all source files this class loader has served to
+   * the compiler
+   */
+  public Collection<URL> getSourceURLs() {
+    return Collections.unmodifiableCollection(new ArrayList<>(resolvedSources.values()));
+  }
+  
+  /**
+   * Makes sure the code cache contains up-to-date code for the file with
+   * the given name. Compiles the file if it has not been compiled yet or
+   * if any of the files it depends on has changed.
+   * @param name the file name
+   * @return true if the file had to be compiled, false if the code cache
+   * already contained up-to-date code
+   * @throws IOException if the file could not be read
+   */
+  public boolean refresh(String name) throws IOException {
+    Source src = getSource(name, null);
+    String fingerprint = compiler.getFingerprint();
+    String manifestKey = CacheManifest.getKey(fingerprint, src);
+    if (getCachedCode(codeCache, name, fingerprint, manifestKey) != null) {
+      return false;
+    }
+    compile(name, fingerprint, manifestKey);
+    return true;
+  }
+  
   @Override
   public Source getSource(String name, String baseFilename) throws IOException {
     if (baseFilename != null && (name.startsWith("./") || name.startsWith("../"))) {
@@ -96,10 +190,9 @@ public class TypeScriptClassLoader extends ClassLoader implements SourceFactory
       }
     }
     
-    Source result = sourceCache.get(name);
-    if (result == null) {
+    URL u = resolvedSources.get(name);
+    if (u == null) {
       // check if we've got a URL
-      URL u;
       if (name.matches("^[a-z]+:/.*")) {
         try {
           u = new URL(name);
@@ -107,28 +200,22 @@ public class TypeScriptClassLoader extends ClassLoader implements SourceFactory
           // no URL, might be a Windows path instead
           u = null;
         }
-      } else {
-        u = null;
       }
       
       // search class path
       if (u == null) {
         u = getParent().getResource(name);
       }
-      if (u != null) {
-        result = Source.fromURL(u, StandardCharsets.UTF_8);
-      }
       
-      // search file system (will throw if the file could not be found)
-      if (result == null) {
-        result = Source.fromFile(new File(name), StandardCharsets.UTF_8);
+      // search file system
+      if (u == null) {
+        u = new File(name).toURI().toURL();
       }
-      
-      // at this point 'result' should never be null
-      assert result != null;
-      sourceCache.put(name, result);
     }
     
+    // will throw if the file could not be found
+    Source result = sourceCache.get(u);
+    resolvedSources.put(name, u);
     return result;
   }
   
@@ -141,15 +228,233 @@ public class TypeScriptClassLoader extends ClassLoader implements SourceFactory
   private InputStream load(String name) throws IOException {
     // load file from class path or from file system
     Source src = getSource(name, null);
+    loadedFiles.add(name);
+    
+    // check if the file has been compiled at build time. do this before
+    // anything else so the compiler does not have to be initialized.
+    ByteBuffer code = getPrecompiledCode(name, src);
+    if (code != null) {
+      return new ByteBufferInputStream(code);
+    }
+    
+    // check if we have compiled the file before and if none of the
+    // files the compiled code depends on has changed since then
+    String fingerprint = compiler.getFingerprint();
+    String manifestKey = CacheManifest.getKey(fingerprint, src);
+    code = getCachedCode(codeCache, name, fingerprint, manifestKey);
+    
+    if (code == null) {
+      // compile it now unless another thread is already doing so
+      CompletableFuture<ByteBuffer> f = new CompletableFuture<>();
+      CompletableFuture<ByteBuffer> existing = inFlight.putIfAbsent(manifestKey, f);
+      if (existing != null) {
+        // every waiting thread needs its own position
+        code = await(existing, name).duplicate();
+      } else {
+        try {
+          // another thread may have finished compiling in the meantime
+          code = getCachedCode(codeCache, name, fingerprint, manifestKey);
+          if (code == null) {
+            code = compile(name, fingerprint, manifestKey);
+          }
+          f.complete(code.asReadOnlyBuffer());
+        } catch (IOException | RuntimeException | Error e) {
+          f.completeExceptionally(e);
+          throw e;
+        } finally {
+          inFlight.remove(manifestKey, f);
+        }
+      }
+    }
+    
+    return new ByteBufferInputStream(code);
+  }
+  
+  /**
+   * Get code compiled at build time if none of the files it depends on has
+   * changed. Only counts a cache miss if the file has been precompiled but
+   * the code cannot be used. Files that have not been precompiled at all
+   * are not counted. Otherwise, almost every file would be a miss in
+   * applications that do not use the precompiler.
+   * @param name the name of the file to compile
+   * @param src the file to compile
+   * @return the UTF-8 encoded compiled code or <code>null</code> if there
+   * was no valid precompiled code
+   */
+  private ByteBuffer getPrecompiledCode(String name, Source src) {
+    String manifestStr = precompiledCache.get(CacheManifest.getKey(
+        PrecompiledCache.FINGERPRINT, name, src));
+    if (manifestStr == null) {
+      return null;
+    }
+    
+    ByteBuffer code = null;
+    CacheManifest manifest = CacheManifest.parse(manifestStr);
+    if (manifest != null && manifest.getFingerprint().equals(PrecompiledCache.FINGERPRINT) &&
+        manifest.isValid(this)) {
+      code = precompiledCache.getBytes(manifest.getCodeKey());
+    }
     
-    // check if we have compiled the file before
-    String code = codeCache.get(src);
     if (code == null) {
-      // compile it now
-      code = compiler.compile(name, this);
-      codeCache.put(src, code);
+      Metrics.get().cacheMiss(TypeScriptMetrics.TIER_PRECOMPILED);
+    } else {
+      Metrics.get().cacheHit(TypeScriptMetrics.TIER_PRECOMPILED);
+    }
+    return code;
+  }
+  
+  /**
+   * Get compiled code from the cache if none of the files it depends on
+   * has changed
+   * @param cache the cache to query
+   * @param name the name of the file to compile
+   * @param fingerprint the compiler's fingerprint
+   * @param manifestKey the key of the file's manifest in the cache
+   * @return the UTF-8 encoded compiled code or <code>null</code> if the
+   * cache did not contain valid code
+   */
+  private ByteBuffer getCachedCode(Cache cache, String name, String fingerprint,
+      String manifestKey) {
+    String manifestStr = cache.get(manifestKey);
+    if (manifestStr != null) {
+      CacheManifest manifest = CacheManifest.parse(manifestStr);
+      if (manifest != null && manifest.getFingerprint().equals(fingerprint) &&
+          manifest.isValid(this)) {
+        return cache.getBytes(manifest.getCodeKey());
+      }
+    }
+    return null;
+  }
+  
+  /**
+   * Compiles a file and puts the compiled code into the cache. Also caches
+   * the code generated for each file the compiled file imports, so they
+   * do not have to be compiled again when they are loaded.
+   * @param name the name of the file to compile
+   * @param fingerprint the compiler's fingerprint
+   * @param manifestKey the key of the file's manifest in the cache
+   * @return the UTF-8 encoded compiled code
+   * @throws IOException if the file could not be read
+   */
+  private ByteBuffer compile(String name, String fingerprint, String manifestKey)
+      throws IOException {
+    // record all files the compiler reads
+    CacheManifest manifest = new CacheManifest(fingerprint);
+    TypeScriptMetrics metrics = Metrics.get();
+    metrics.compileStarted();
+    long start = System.nanoTime();
+    Map<String, String> modules;
+    try {
+      modules = compiler.compileModules(name, manifest.record(this));
+    } finally {
+      metrics.compileFinished(compiler.getName(), System.nanoTime() - start);
+    }
+    // encode only once. the caches keep the bytes as they are.
+    ByteBuffer code = ByteBuffer.wrap(String.join("", modules.values())
+        .getBytes(StandardCharsets.UTF_8));
+    codeCache.putBytes(manifest.getCodeKey(), code.duplicate());
+    codeCache.put(manifestKey, manifest.toString());
+    
+    for (Map.Entry<String, String> e : modules.entrySet()) {
+      if (e.getKey().equals(name)) {
+        continue;
+      }
+      Source moduleSrc;
+      try {
+        moduleSrc = getSource(e.getKey(), name);
+      } catch (IOException ex) {
+        // the file has been compiled, so this should never happen. if it
+        // does, the module will just be compiled again when it is loaded.
+        continue;
+      }
+      CacheManifest moduleManifest = manifest.forModule(e.getKey());
+      codeCache.putBytes(moduleManifest.getCodeKey(), ByteBuffer.wrap(
+          e.getValue().getBytes(StandardCharsets.UTF_8)));
+      codeCache.put(CacheManifest.getKey(fingerprint, moduleSrc),
+          moduleManifest.toString());
+    }
+    
+    return code;
+  }
+  
+  /**
+   * Waits for a compilation started by another thread
+   * @param f the future that will be completed with the compiled code
+   * @param name the name of the file being compiled
+   * @return the UTF-8 encoded compiled code
+   * @throws IOException if the other thread could not read the file
+   */
+  private static ByteBuffer await(CompletableFuture<ByteBuffer> f, String name)
+      throws IOException {
+    try {
+      return f.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for " +
+          "compilation of " + name, e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException)cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException)cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error)cause;
+      }
+      throw new IllegalStateException("Could not compile " + name, cause);
     }
+  }
+  
+  /**
+   * An input stream reading from a byte buffer without copying it
+   */
+  private static class ByteBufferInputStream extends InputStream {
+    /**
+     * The buffer to read from
+     */
+    private final ByteBuffer buf;
     
-    return new ByteArrayInputStream(code.getBytes(StandardCharsets.UTF_8));
+    /**
+     * Creates a new stream
+     * @param buf the buffer to read from (the stream will change its position)
+     */
+    ByteBufferInputStream(ByteBuffer buf) {
+      this.buf = buf;
+    }
+    
+    @Override
+    public int read() {
+      if (!buf.hasRemaining()) {
+        return -1;
+      }
+      return buf.get() & 0xFF;
+    }
+    
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (len == 0) {
+        return 0;
+      }
+      if (!buf.hasRemaining()) {
+        return -1;
+      }
+      int n = Math.min(len, buf.remaining());
+      buf.get(b, off, n);
+      return n;
+    }
+    
+    @Override
+    public long skip(long n) {
+      int skipped = (int)Math.max(0, Math.min(n, buf.remaining()));
+      buf.position(buf.position() + skipped);
+      return skipped;
+    }
+    
+    @Override
+    public int available() {
+      return buf.remaining();
+    }
   }
 }
@@ -0,0 +1,187 @@
+// Copyright 2016 Michel Kraemer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.undercouch.vertx.lang.typescript;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import de.undercouch.vertx.lang.typescript.cache.CacheManifest;
+import de.undercouch.vertx.lang.typescript.cache.NoopCache;
+import de.undercouch.vertx.lang.typescript.cache.PrecompiledCache;
+import de.undercouch.vertx.lang.typescript.compiler.CompilerOptions;
+import de.undercouch.vertx.lang.typescript.compiler.EngineCompiler;
+import de.undercouch.vertx.lang.typescript.compiler.NodeCompiler;
+import de.undercouch.vertx.lang.typescript.compiler.Source;
+import de.undercouch.vertx.lang.typescript.compiler.TypeScriptCompiler;
+import de.undercouch.vertx.lang.typescript.compiler.V8Compiler;
+
+/**
+ * <p>Compiles TypeScript verticles at build time. The compiled code is
+ * written to a directory that should be put on the class path at runtime
+ * (e.g. by packaging it into the application's jar file). The
+ * {@link TypeScriptClassLoader} then serves this code without
+ * initializing a TypeScript compiler as long as none of the files the code
+ * depends on has changed.</p>
+ * <p>Usage:</p>
+ * <pre>
+ * java de.undercouch.vertx.lang.typescript.TypeScriptPrecompiler
+ *     &lt;source directory&gt; &lt;output directory&gt; [files...]
+ * </pre>
+ * <p>File names must be relative to the source directory and equal to the
+ * names the verticles are deployed with. If no files are given, all
+ * <code>.ts</code> files in the source directory (except declaration
+ * files) will be compiled.</p>
+ * @author Michel Kraemer
+ */
+public class TypeScriptPrecompiler {
+  /**
+   * The directory containing the sources to compile
+   */
+  private final File sourceDir;
+  
+  /**
+   * The directory to write compiled code to
+   */
+  private final File outputDir;
+  
+  /**
+   * The compiler to use
+   */
+  private final TypeScriptCompiler compiler;
+  
+  /**
+   * Creates a new precompiler
+   * @param sourceDir the directory containing the sources to compile
+   * @param outputDir the directory to write compiled code to
+   * @param compiler the compiler to use
+   */
+  public TypeScriptPrecompiler(File sourceDir, File outputDir,
+      TypeScriptCompiler compiler) {
+    this.sourceDir = sourceDir;
+    this.outputDir = outputDir;
+    this.compiler = compiler;
+  }
+  
+  /**
+   * Runs the precompiler
+   * @param args the command line arguments
+   * @throws IOException if a file could not be read or written
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2) {
+      System.err.println("Usage: TypeScriptPrecompiler <source directory> "
+          + "<output directory> [files...]");
+      System.exit(1);
+      return;
+    }
+    
+    File sourceDir = new File(args[0]);
+    File outputDir = new File(args[1]);
+    List<String> files = new ArrayList<>(Arrays.asList(args).subList(2, args.length));
+    
+    TypeScriptPrecompiler precompiler = new TypeScriptPrecompiler(sourceDir,
+        outputDir, makeTypeScriptCompiler());
+    if (files.isEmpty()) {
+      files = precompiler.findSources();
+    }
+    for (String f : files) {
+      System.out.println("Compiling " + f + " ...");
+      precompiler.compile(f);
+    }
+  }
+  
+  /**
+   * @return the best available TypeScript compiler
+   */
+  private static TypeScriptCompiler makeTypeScriptCompiler() {
+    CompilerOptions options = new CompilerOptions();
+    if (!Boolean.getBoolean(TypeScriptVerticleFactory.PROP_NAME_DISABLE_V8_COMPILER) &&
+        V8Compiler.supportsV8()) {
+      return new V8Compiler(options);
+    }
+    if (!Boolean.getBoolean(TypeScriptVerticleFactory.PROP_NAME_DISABLE_NODE_COMPILER) &&
+        NodeCompiler.supportsNode()) {
+      return new NodeCompiler(options);
+    }
+    return new EngineCompiler(options);
+  }
+  
+  /**
+   * Find all TypeScript files in the source directory
+   * @return the files' names relative to the source directory
+   * @throws IOException if the source directory could not be read
+   */
+  public List<String> findSources() throws IOException {
+    Path root = sourceDir.toPath();
+    try (Stream<Path> paths = Files.walk(root)) {
+      return paths
+          .filter(p -> {
+            String name = p.getFileName().toString().toLowerCase();
+            return name.endsWith(".ts") && !name.endsWith(".d.ts") &&
+                Files.isRegularFile(p);
+          })
+          .map(p -> root.relativize(p).toString().replace(File.separatorChar, '/'))
+          .sorted()
+          .collect(Collectors.toList());
+    }
+  }
+  
+  /**
+   * Compile a file and write the compiled code and its manifest to the
+   * output directory
+   * @param name the name of the file relative to the source directory
+   * @throws IOException if the file could not be read or the compiled
+   * code could not be written
+   */
+  public void compile(String name) throws IOException {
+    URL[] urls = new URL[] { sourceDir.toURI().toURL() };
+    try (URLClassLoader parent = new URLClassLoader(urls, getClass().getClassLoader())) {
+      TypeScriptClassLoader loader = new TypeScriptClassLoader(parent,
+          compiler, new NoopCache());
+      Source src = loader.getSource(name, null);
+      CacheManifest manifest = new CacheManifest(PrecompiledCache.FINGERPRINT);
+      String code = compiler.compile(name, manifest.record(loader));
+      // the location of the file will be different at runtime, so key the
+      // manifest on the file's name
+      write(CacheManifest.getKey(PrecompiledCache.FINGERPRINT, name, src),
+          manifest.toString());
+      write(manifest.getCodeKey(), code);
+    }
+  }
+  
+  /**
+   * Write an entry to the output directory
+   * @param key the entry's key
+   * @param value the entry's value
+   * @throws IOException if the entry could not be written
+   */
+  private void write(String key, String value) throws IOException {
+    File dir = new File(outputDir, PrecompiledCache.PATH);
+    if (!dir.exists() && !dir.mkdirs()) {
+      throw new IOException("Could not create directory " + dir);
+    }
+    Files.write(new File(dir, key).toPath(), value.getBytes(StandardCharsets.UTF_8));
+  }
+}
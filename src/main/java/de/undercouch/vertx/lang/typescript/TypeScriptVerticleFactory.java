@@ -18,26 +18,48 @@ import io.vertx.core.Context;
 import io.vertx.core.Future;
 import io.vertx.core.Verticle;
 import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
 import io.vertx.core.spi.VerticleFactory;
 import io.vertx.lang.js.JSVerticleFactory;
 
 import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
 
 import de.undercouch.vertx.lang.typescript.cache.Cache;
+import de.undercouch.vertx.lang.typescript.cache.CacheManifest;
 import de.undercouch.vertx.lang.typescript.cache.DiskCache;
 import de.undercouch.vertx.lang.typescript.cache.InMemoryCache;
 import de.undercouch.vertx.lang.typescript.cache.NoopCache;
+import de.undercouch.vertx.lang.typescript.cache.PackCache;
+import de.undercouch.vertx.lang.typescript.cache.SourceCache;
+import de.undercouch.vertx.lang.typescript.compiler.CompilerOptions;
 import de.undercouch.vertx.lang.typescript.compiler.EngineCompiler;
 import de.undercouch.vertx.lang.typescript.compiler.NodeCompiler;
+import de.undercouch.vertx.lang.typescript.compiler.Source;
+import de.undercouch.vertx.lang.typescript.compiler.SourceFactory;
 import de.undercouch.vertx.lang.typescript.compiler.TypeScriptCompiler;
 import de.undercouch.vertx.lang.typescript.compiler.V8Compiler;
+import de.undercouch.vertx.lang.typescript.compiler.V8CompilerPool;
+import de.undercouch.vertx.lang.typescript.metrics.Metrics;
 
 /**
  * A factory for verticles written in TypeScript
  * @author Michel Kraemer
  */
 public class TypeScriptVerticleFactory implements VerticleFactory {
+  /**
+   * The logger used to report the results of background type checks
+   */
+  private static final Logger log = LoggerFactory.getLogger(TypeScriptVerticleFactory.class);
+  
   /**
    * The name of the system property specifying the type of cache to use
    */
@@ -49,6 +71,39 @@ public class TypeScriptVerticleFactory implements VerticleFactory {
    */
   public static final String PROP_NAME_CACHE_DIR = "vertx.typescriptCacheDir";
   
+  /**
+   * The name of the system property specifying the maximum number of bytes
+   * the in-memory cache may occupy. Also applies to the in-memory cache in
+   * front of the disk cache. (default: 64 MB)
+   */
+  public static final String PROP_NAME_CACHE_MAX_SIZE = "vertx.typescriptCacheMaxSize";
+  
+  /**
+   * The name of the system property specifying that the in-memory cache
+   * should only keep soft references to compiled code so the garbage
+   * collector can reclaim it under memory pressure
+   */
+  public static final String PROP_NAME_CACHE_SOFT_VALUES = "vertx.typescriptCacheSoftValues";
+  
+  /**
+   * The name of the system property specifying the maximum number of bytes
+   * the cache for TypeScript source files and type definitions shared by
+   * all verticles may occupy
+   */
+  public static final String PROP_NAME_SOURCE_CACHE_MAX_SIZE = "vertx.typescriptSourceCacheMaxSize";
+  
+  /**
+   * The name of the system property specifying the maximum number of bytes
+   * the disk cache may occupy (default: unlimited)
+   */
+  public static final String PROP_NAME_CACHE_DISK_MAX_SIZE = "vertx.typescriptCacheDiskMaxSize";
+  
+  /**
+   * The name of the system property specifying the maximum number of
+   * entries in the disk cache (default: unlimited)
+   */
+  public static final String PROP_NAME_CACHE_DISK_MAX_ENTRIES = "vertx.typescriptCacheDiskMaxEntries";
+  
   /**
    * The name of the system property specifying that the V8 compiler
    * should not be used even if the V8 runtime is available.
@@ -63,11 +118,81 @@ public class TypeScriptVerticleFactory implements VerticleFactory {
   
   /**
    * The name of the system property specifying that multiple instances of the
-   * factory should share the same TypeScript compiler (not available for the
-   * V8 compiler)
+   * factory should share the same TypeScript compiler
    */
   public static final String PROP_NAME_SHARE_COMPILER = "vertx.typescriptShareCompiler";
   
+  /**
+   * The name of the system property specifying the maximum number of V8
+   * runtimes the V8 compiler may use in parallel (default: number of
+   * available processors)
+   */
+  public static final String PROP_NAME_V8_POOL_SIZE = "vertx.typescriptV8PoolSize";
+  
+  /**
+   * The name of the system property specifying that the TypeScript compiler
+   * should keep the program of each compiled file in memory and only
+   * recompile changed parts when the file is compiled again
+   */
+  public static final String PROP_NAME_INCREMENTAL = "vertx.typescriptIncremental";
+  
+  /**
+   * The name of the system property specifying that the TypeScript compiler
+   * should be started in the background as soon as the factory is
+   * initialized instead of when the first verticle is deployed. If the
+   * V8 compiler is used, every runtime of the pool is started (see
+   * {@link #PROP_NAME_V8_POOL_SIZE}).
+   */
+  public static final String PROP_NAME_WARM_UP = "vertx.typescriptWarmUp";
+  
+  /**
+   * The name of the system property specifying that TypeScript files should
+   * only be transpiled without type checking. Type checks will then be
+   * performed in the background. Their results are logged and published
+   * to the event bus address {@value #TYPE_CHECK_ADDRESS}.
+   */
+  public static final String PROP_NAME_TRANSPILE_ONLY = "vertx.typescriptTranspileOnly";
+  
+  /**
+   * The name of the system property specifying that the V8 compiler pool
+   * should compile the files of large programs in parallel
+   */
+  public static final String PROP_NAME_PARALLEL_COMPILE = "vertx.typescriptParallelCompile";
+  
+  /**
+   * The event bus address to which the results of background type checks
+   * are published (see {@link #PROP_NAME_TRANSPILE_ONLY}). Messages are
+   * JSON objects with the attributes <code>file</code> (the checked file),
+   * <code>success</code> (true if no problems were found) and
+   * <code>diagnostics</code> (an array of problems).
+   */
+  public static final String TYPE_CHECK_ADDRESS = "vertx.typescript.typeCheck";
+  
+  /**
+   * The name of the system property specifying a directory where the
+   * Nashorn-based compiler should cache the prepared TypeScript compiler.
+   * Also enables Nashorn's persistent code cache (default: no caching).
+   * @see EngineCompiler#EngineCompiler(CompilerOptions, File)
+   */
+  public static final String PROP_NAME_NASHORN_CACHE_DIR = "vertx.typescriptNashornCacheDir";
+  
+  /**
+   * The name of the system property specifying the class that receives
+   * compiler and cache metrics (default: metrics are published via JMX).
+   * Set it to {@value Metrics#METRICS_NONE} to disable metrics.
+   * @see Metrics
+   */
+  public static final String PROP_NAME_METRICS = "vertx.typescriptMetrics";
+  
+  /**
+   * The name of the system property specifying that source files of
+   * deployed verticles should be watched and that verticles should be
+   * recompiled and redeployed when their source files change. Implies
+   * {@link #PROP_NAME_INCREMENTAL}. If {@link #PROP_NAME_CACHE} is not set,
+   * compiled code will be cached in memory.
+   */
+  public static final String PROP_NAME_HOT_RELOAD = "vertx.typescriptHotReload";
+  
   /**
    * Do not cache compiled sources (default)
    */
@@ -84,6 +209,17 @@ public class TypeScriptVerticleFactory implements VerticleFactory {
    */
   public static final String CACHE_DISK = "disk";
   
+  /**
+   * Cache compiled sources on disk in a few large pack files (in the
+   * directory specified by the {@value #PROP_NAME_CACHE_DIR} system property)
+   */
+  public static final String CACHE_PACK = "pack";
+  
+  /**
+   * The name of the file compiled to warm up the compiler
+   */
+  private static final String WARM_UP_FILE = "__vertx_typescript_warm_up.ts";
+  
   /**
    * Default cache directory (relative to current working directory)
    */
@@ -105,27 +241,88 @@ public class TypeScriptVerticleFactory implements VerticleFactory {
   private static final Cache CACHE;
   static {
     if (CACHE_MODE.equalsIgnoreCase(CACHE_NONE)) {
-      CACHE = new NoopCache();
+      // the hot reloader needs a cache to pass recompiled code to the
+      // redeployed verticles
+      CACHE = Boolean.getBoolean(PROP_NAME_HOT_RELOAD) ?
+          makeInMemoryCache() : new NoopCache();
     } else if (CACHE_MODE.equalsIgnoreCase(CACHE_MEMORY)) {
-      CACHE = new InMemoryCache();
+      CACHE = makeInMemoryCache();
     } else if (CACHE_MODE.equalsIgnoreCase(CACHE_DISK)) {
-      CACHE = new DiskCache(new File(CACHE_DIR));
+      long maxSize = Long.getLong(PROP_NAME_CACHE_DISK_MAX_SIZE, Long.MAX_VALUE);
+      int maxEntries = Integer.getInteger(PROP_NAME_CACHE_DISK_MAX_ENTRIES, Integer.MAX_VALUE);
+      CACHE = new DiskCache(new File(CACHE_DIR), makeInMemoryCache(), maxSize, maxEntries);
+    } else if (CACHE_MODE.equalsIgnoreCase(CACHE_PACK)) {
+      CACHE = new PackCache(new File(CACHE_DIR), makeInMemoryCache());
     } else {
       throw new RuntimeException("Illegal value for " + PROP_NAME_CACHE + ": " + CACHE_MODE);
     }
   }
   
+  /**
+   * A cache for source files shared by all verticles
+   */
+  private static final SourceCache SOURCE_CACHE = new SourceCache(Long.getLong(
+      PROP_NAME_SOURCE_CACHE_MAX_SIZE, SourceCache.DEFAULT_MAX_SIZE));
+  
+  /**
+   * @return a new in-memory cache configured according to the
+   * {@link #PROP_NAME_CACHE_MAX_SIZE} and {@link #PROP_NAME_CACHE_SOFT_VALUES}
+   * system properties
+   */
+  private static InMemoryCache makeInMemoryCache() {
+    long maxSize = Long.getLong(PROP_NAME_CACHE_MAX_SIZE, InMemoryCache.DEFAULT_MAX_SIZE);
+    boolean softValues = Boolean.getBoolean(PROP_NAME_CACHE_SOFT_VALUES);
+    return new InMemoryCache(maxSize, softValues);
+  }
+  
   /**
    * A factory for verticles written in JavaScript. Used to delegate compiled
    * scripts to.
    */
   private final VerticleFactory delegateFactory;
   
+  /**
+   * The Vert.x instance this factory belongs to
+   */
+  private Vertx vertx;
+  
   /**
    * The actual TypeScript compiler
    */
   private TypeScriptCompiler compiler;
   
+  /**
+   * True if {@link #compiler} is shared with other factories and must
+   * not be closed by this one
+   */
+  private boolean compilerShared;
+  
+  /**
+   * A compiler that has not been started and is only used to get the
+   * fingerprint and name of {@link #compiler} before it is created (see
+   * {@link #getExpectedTypeScriptCompiler()})
+   */
+  private TypeScriptCompiler expectedCompiler;
+  
+  /**
+   * True if {@link #compiler} only transpiles files and type checks
+   * should be performed in the background
+   */
+  private boolean transpileOnly;
+  
+  /**
+   * Recompiles and redeploys verticles when their source files change.
+   * Only set if the {@link #PROP_NAME_HOT_RELOAD} property is <code>true</code>.
+   */
+  private HotReloader hotReloader;
+  
+  /**
+   * An instance of {@link V8CompilerPool} shared amongst multiple instances of
+   * the factory. Only set if the {@link #PROP_NAME_SHARE_COMPILER} property
+   * is <code>true</code>.
+   */
+  private static AtomicReference<V8CompilerPool> sharedV8Compiler = new AtomicReference<>();
+  
   /**
    * An instance of {@link NodeCompiler} shared amongst multiple instances of
    * the factory. Only set if the {@link #PROP_NAME_SHARE_COMPILER} property
@@ -149,7 +346,72 @@ public class TypeScriptVerticleFactory implements VerticleFactory {
   
   @Override
   public void init(Vertx vertx) {
+    this.vertx = vertx;
     delegateFactory.init(vertx);
+    if (Boolean.getBoolean(PROP_NAME_HOT_RELOAD)) {
+      hotReloader = new HotReloader(vertx, new LazyCompiler(), CACHE, SOURCE_CACHE);
+    }
+    if (Boolean.getBoolean(PROP_NAME_WARM_UP)) {
+      // don't block other blocking code on the same context
+      vertx.executeBlocking(future -> {
+        warmUp();
+        future.complete();
+      }, false, null);
+    }
+  }
+  
+  /**
+   * Detect the best available TypeScript compiler and let it compile a
+   * small file so it is fully initialized when the first verticle is
+   * deployed
+   */
+  private void warmUp() {
+    TypeScriptCompiler c = getTypeScriptCompiler();
+    SourceFactory classPath = new TypeScriptClassLoader(
+        getClass().getClassLoader(), c, new NoopCache(), SOURCE_CACHE);
+    SourceFactory sourceFactory = (filename, baseFilename) -> {
+      if (filename.equals(WARM_UP_FILE)) {
+        return new Source(URI.create(WARM_UP_FILE), "var i: number = 0;");
+      }
+      return classPath.getSource(filename, baseFilename);
+    };
+    try {
+      if (c instanceof V8CompilerPool) {
+        // start all runtimes and not only the one that happens to get the
+        // first request
+        ((V8CompilerPool)c).warmUp(WARM_UP_FILE, sourceFactory);
+      } else {
+        c.compile(WARM_UP_FILE, sourceFactory);
+      }
+    } catch (Exception e) {
+      // ignore. the error will be reported when the first verticle
+      // is compiled.
+    }
+  }
+  
+  @Override
+  public void close() {
+    if (hotReloader != null) {
+      hotReloader.close();
+    }
+    delegateFactory.close();
+    closeTypeScriptCompiler();
+  }
+  
+  /**
+   * Release the resources held by the compiler (e.g. stop the Node.js
+   * process). Shared compilers are kept alive because other factories may
+   * still use them. They are released when the JVM exits.
+   */
+  private synchronized void closeTypeScriptCompiler() {
+    if (compiler != null && !compilerShared) {
+      try {
+        compiler.close();
+      } catch (Exception e) {
+        // ignore. there's nothing we can do about it.
+      }
+    }
+    compiler = null;
   }
   
   @Override
@@ -163,46 +425,167 @@ public class TypeScriptVerticleFactory implements VerticleFactory {
     return new TypeScriptVerticle(v);
   }
   
-  private <T extends TypeScriptCompiler> T makeTypeScriptCompiler(Class<T> compilerClass,
-      AtomicReference<T> sharedCompiler) throws ReflectiveOperationException {
+  private <T extends TypeScriptCompiler> T makeTypeScriptCompiler(Supplier<T> compilerFactory,
+      AtomicReference<T> sharedCompiler) {
     if (sharedCompiler != null) {
       T nc = sharedCompiler.get();
       if (nc == null) {
-        nc = compilerClass.newInstance();
+        nc = compilerFactory.get();
         if (!sharedCompiler.compareAndSet(null, nc)) {
+          // another factory was faster. release our instance.
+          try {
+            nc.close();
+          } catch (Exception e) {
+            // ignore
+          }
           nc = sharedCompiler.get();
         }
       }
       return nc;
     }
-    return compilerClass.newInstance();
+    return compilerFactory.get();
   }
   
   /**
    * @return the best available TypeScript compiler
    */
-  private TypeScriptCompiler getTypeScriptCompiler() {
+  private synchronized TypeScriptCompiler getTypeScriptCompiler() {
     boolean disableV8Compiler = Boolean.getBoolean(PROP_NAME_DISABLE_V8_COMPILER);
     boolean disableNodeCompiler = Boolean.getBoolean(PROP_NAME_DISABLE_NODE_COMPILER);
     if (compiler == null) {
       boolean share = Boolean.getBoolean(PROP_NAME_SHARE_COMPILER);
-      try {
-        if (!disableV8Compiler && V8Compiler.supportsV8()) {
-          compiler = makeTypeScriptCompiler(V8Compiler.class, null);
-        } else if (!disableNodeCompiler && NodeCompiler.supportsNode()) {
-          compiler = makeTypeScriptCompiler(NodeCompiler.class,
-              share ? sharedNodeCompiler : null);
-        } else {
-          compiler = makeTypeScriptCompiler(EngineCompiler.class,
-              share ? sharedEngineCompiler : null);
-        }
-      } catch (ReflectiveOperationException e) {
-        throw new RuntimeException("Could not create TypeScript compiler", e);
+      compilerShared = share;
+      transpileOnly = Boolean.getBoolean(PROP_NAME_TRANSPILE_ONLY);
+      CompilerOptions options = makeCompilerOptions();
+      if (!disableV8Compiler && V8Compiler.supportsV8()) {
+        int poolSize = Integer.getInteger(PROP_NAME_V8_POOL_SIZE,
+            Runtime.getRuntime().availableProcessors());
+        compiler = makeTypeScriptCompiler(() -> new V8CompilerPool(poolSize, options),
+            share ? sharedV8Compiler : null);
+      } else if (!disableNodeCompiler && NodeCompiler.supportsNode()) {
+        compiler = makeTypeScriptCompiler(() -> new NodeCompiler(options),
+            share ? sharedNodeCompiler : null);
+      } else {
+        String nashornCacheDir = System.getProperty(PROP_NAME_NASHORN_CACHE_DIR);
+        File codeCacheDir = nashornCacheDir != null ? new File(nashornCacheDir) : null;
+        compiler = makeTypeScriptCompiler(() -> new EngineCompiler(options, codeCacheDir),
+            share ? sharedEngineCompiler : null);
       }
     }
     return compiler;
   }
   
+  /**
+   * @return the compiler options configured through system properties
+   */
+  private CompilerOptions makeCompilerOptions() {
+    return new CompilerOptions()
+        .setIncremental(Boolean.getBoolean(PROP_NAME_INCREMENTAL) ||
+            Boolean.getBoolean(PROP_NAME_HOT_RELOAD))
+        .setTranspileOnly(Boolean.getBoolean(PROP_NAME_TRANSPILE_ONLY))
+        .setParallel(Boolean.getBoolean(PROP_NAME_PARALLEL_COMPILE));
+  }
+  
+  /**
+   * Get the TypeScript compiler or, if it has not been created yet, a
+   * compiler of the kind {@link #getTypeScriptCompiler()} will most likely
+   * create. The latter is never started. It only provides the fingerprint
+   * and name of the compiler, so code can be loaded from the cache without
+   * detecting available compilers (which includes starting Node.js). If
+   * the guess is wrong, cached code will just not be found.
+   * @return the compiler
+   */
+  private synchronized TypeScriptCompiler getExpectedTypeScriptCompiler() {
+    if (compiler != null) {
+      return compiler;
+    }
+    if (expectedCompiler == null) {
+      CompilerOptions options = makeCompilerOptions();
+      if (!Boolean.getBoolean(PROP_NAME_DISABLE_V8_COMPILER) && V8Compiler.supportsV8()) {
+        // a single V8 compiler has the same fingerprint as a pool
+        expectedCompiler = new V8Compiler(options);
+      } else if (!Boolean.getBoolean(PROP_NAME_DISABLE_NODE_COMPILER) &&
+          NodeCompiler.isNodeInPath()) {
+        expectedCompiler = new NodeCompiler(options);
+      } else {
+        expectedCompiler = new EngineCompiler(options);
+      }
+    }
+    return expectedCompiler;
+  }
+  
+  /**
+   * Type-check a file on a worker thread and report the result
+   * @param filename the name of the file to check
+   * @param sourceFactory the factory that loads source files
+   */
+  private void checkInBackground(String filename, SourceFactory sourceFactory) {
+    vertx.<List<String>>executeBlocking(future -> {
+      try {
+        future.complete(getTypeScriptCompiler().check(filename, sourceFactory));
+      } catch (Exception e) {
+        future.fail(e);
+      }
+    }, false, ar -> {
+      if (ar.failed()) {
+        log.warn("Could not type-check " + filename, ar.cause());
+        return;
+      }
+      
+      List<String> diagnostics = ar.result();
+      if (!diagnostics.isEmpty()) {
+        log.warn("Type check of " + filename + " failed:\n" + String.join("", diagnostics));
+      }
+      vertx.eventBus().publish(TYPE_CHECK_ADDRESS, new JsonObject()
+          .put("file", filename)
+          .put("success", diagnostics.isEmpty())
+          .put("diagnostics", new JsonArray(diagnostics)));
+    });
+  }
+  
+  /**
+   * Delegates to the best available TypeScript compiler but only looks for
+   * it when it is actually needed. Detecting available compilers may take
+   * a while and is not necessary if all code is precompiled.
+   */
+  private class LazyCompiler implements TypeScriptCompiler {
+    @Override
+    public String compile(String filename, SourceFactory sourceFactory) throws IOException {
+      String result = getTypeScriptCompiler().compile(filename, sourceFactory);
+      if (transpileOnly && vertx != null) {
+        // files read during the check must not end up in the cache manifest
+        checkInBackground(filename, CacheManifest.unwrap(sourceFactory));
+      }
+      return result;
+    }
+    
+    @Override
+    public Map<String, String> compileModules(String filename,
+        SourceFactory sourceFactory) throws IOException {
+      Map<String, String> result = getTypeScriptCompiler().compileModules(
+          filename, sourceFactory);
+      if (transpileOnly && vertx != null) {
+        checkInBackground(filename, CacheManifest.unwrap(sourceFactory));
+      }
+      return result;
+    }
+    
+    @Override
+    public List<String> check(String filename, SourceFactory sourceFactory) throws IOException {
+      return getTypeScriptCompiler().check(filename, sourceFactory);
+    }
+    
+    @Override
+    public String getFingerprint() {
+      return getExpectedTypeScriptCompiler().getFingerprint();
+    }
+    
+    @Override
+    public String getName() {
+      return getExpectedTypeScriptCompiler().getName();
+    }
+  }
+  
   /**
    * A verticle written in TypeScript
    */
@@ -212,6 +595,11 @@ public class TypeScriptVerticleFactory implements VerticleFactory {
      */
     private final Verticle delegateVerticle;
     
+    /**
+     * The context the verticle has been deployed to
+     */
+    private Context context;
+    
     /**
      * Creates a verticle
      * @param delegateVerticle the JavaScript verticle to delegate to
@@ -227,17 +615,21 @@ public class TypeScriptVerticleFactory implements VerticleFactory {
 
     @Override
     public void init(Vertx vertx, Context context) {
+      this.context = context;
       delegateVerticle.init(vertx, context);
     }
 
     @Override
     public void start(Future<Void> startFuture) throws Exception {
       // compile TypeScript source when verticle is started
+      AtomicReference<TypeScriptClassLoader> tsclRef = new AtomicReference<>();
       delegateVerticle.getVertx().executeBlocking((Future<Void> future) -> {
         // create a new class loader that automatically compiles sources
         ClassLoader cl = Thread.currentThread().getContextClassLoader();
-        Thread.currentThread().setContextClassLoader(new TypeScriptClassLoader(
-            cl, getTypeScriptCompiler(), CACHE));
+        TypeScriptClassLoader tscl = new TypeScriptClassLoader(
+            cl, new LazyCompiler(), CACHE, SOURCE_CACHE);
+        tsclRef.set(tscl);
+        Thread.currentThread().setContextClassLoader(tscl);
         
         // start the JavaScript verticle. this will trigger loading and compiling.
         try {
@@ -249,6 +641,11 @@ public class TypeScriptVerticleFactory implements VerticleFactory {
         }
       }, res -> {
         if (res.succeeded()) {
+          // only watch verticles that have actually been started. the
+          // start may complete asynchronously.
+          if (hotReloader != null && context != null) {
+            hotReloader.watch(context.deploymentID(), tsclRef.get());
+          }
           startFuture.complete();
         } else {
           startFuture.fail(res.cause());
@@ -258,6 +655,9 @@ public class TypeScriptVerticleFactory implements VerticleFactory {
 
     @Override
     public void stop(Future<Void> stopFuture) throws Exception {
+      if (hotReloader != null && context != null) {
+        hotReloader.unwatch(context.deploymentID());
+      }
       delegateVerticle.stop(stopFuture);
     }
   }
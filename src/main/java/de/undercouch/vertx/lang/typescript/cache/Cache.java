@@ -14,25 +14,56 @@
 
 package de.undercouch.vertx.lang.typescript.cache;
 
-import de.undercouch.vertx.lang.typescript.compiler.Source;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
 /**
- * A cache for already compiled sources
+ * A cache for already compiled sources. Keys are digests calculated by
+ * {@link CacheManifest}. They only consist of characters that are safe to
+ * use in file names. Items are stored as UTF-8 bytes so they can be served
+ * without decoding and encoding them again.
  * @author Michel Kraemer
  */
 public interface Cache {
   /**
-   * Get the compiled code for a given source
-   * @param src the source
-   * @return the compiled code or null if the cache does not contain code
-   * for the given source
+   * Get a cached item
+   * @param key the item's key
+   * @return the item (e.g. compiled code or a {@link CacheManifest}) as a
+   * read-only buffer of UTF-8 bytes or null if the cache does not contain
+   * an item with the given key. Callers may change the buffer's position
+   * and limit but this does not affect the cache.
    */
-  String get(Source src);
+  ByteBuffer getBytes(String key);
   
   /**
-   * Add compiled code to the cache
-   * @param src the source
-   * @param value the compiled code
+   * Add an item to the cache
+   * @param key the item's key
+   * @param value the item (e.g. compiled code or a {@link CacheManifest})
+   * as UTF-8 bytes between the buffer's position and its limit. The
+   * buffer's contents must not be modified afterwards.
    */
-  void put(Source src, String value);
+  void putBytes(String key, ByteBuffer value);
+  
+  /**
+   * Get a cached item as a string
+   * @param key the item's key
+   * @return the item (e.g. compiled code or a {@link CacheManifest}) or null
+   * if the cache does not contain an item with the given key
+   */
+  default String get(String key) {
+    ByteBuffer result = getBytes(key);
+    if (result == null) {
+      return null;
+    }
+    return StandardCharsets.UTF_8.decode(result).toString();
+  }
+  
+  /**
+   * Add a string to the cache
+   * @param key the item's key
+   * @param value the item (e.g. compiled code or a {@link CacheManifest})
+   */
+  default void put(String key, String value) {
+    putBytes(key, ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8)));
+  }
 }
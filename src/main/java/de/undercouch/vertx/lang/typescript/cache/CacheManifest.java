@@ -0,0 +1,316 @@
+// Copyright 2016 Michel Kraemer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.undercouch.vertx.lang.typescript.cache;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Map;
+import java.util.TreeMap;
+
+import de.undercouch.vertx.lang.typescript.compiler.Source;
+import de.undercouch.vertx.lang.typescript.compiler.SourceFactory;
+
+/**
+ * Describes everything the code generated for a source file depends on:
+ * the fingerprint of the compiler and the digests of all files the compiler
+ * read while compiling the source file (including files it looked for but
+ * could not find). Each file is recorded together with the base file name
+ * the compiler resolved it against, so the manifest can be validated
+ * regardless of which file it belongs to. Compiled code stays valid as
+ * long as its manifest is valid. If the compiler generated code for
+ * multiple files at once, the
+ * manifest of each of them additionally names the file the code belongs to
+ * (see {@link #forModule(String)}).
+ * @author Michel Kraemer
+ */
+public class CacheManifest {
+  /**
+   * The digest recorded for files that could not be found
+   */
+  private static final String MISSING = "-";
+  
+  /**
+   * The digest recorded for the file the code belongs to (see
+   * {@link #forModule(String)}). Not a valid Base64 character so it cannot
+   * be confused with an actual digest.
+   */
+  private static final String MODULE = "@";
+  
+  /**
+   * The fingerprint of the compiler
+   */
+  private final String fingerprint;
+  
+  /**
+   * Maps names of files read by the compiler to their digests. If a file
+   * has been requested relative to another one, the name is followed by a
+   * tab character and the other file's name (see {@link #getDependencyKey(String, String)}).
+   */
+  private final Map<String, String> dependencies = new TreeMap<>();
+  
+  /**
+   * The name of the file the code belongs to if it is not the file that
+   * has been passed to the compiler (may be <code>null</code>)
+   */
+  private String module;
+  
+  /**
+   * Creates an empty manifest
+   * @param fingerprint the fingerprint of the compiler
+   */
+  public CacheManifest(String fingerprint) {
+    this.fingerprint = fingerprint;
+  }
+  
+  /**
+   * Calculates the key under which the manifest for a given source file
+   * should be stored in the cache. The key depends on the file's location,
+   * so files with the same contents but different locations (which may
+   * import different files) get different manifests.
+   * @param fingerprint the fingerprint of the compiler
+   * @param src the source file
+   * @return the key
+   */
+  public static String getKey(String fingerprint, Source src) {
+    return getKey(fingerprint, src.getURI().toString(), src);
+  }
+  
+  /**
+   * Calculates the key under which the manifest for a given source file
+   * should be stored in the cache. Use this method instead of
+   * {@link #getKey(String, Source)} if the file's location may change
+   * between the time the manifest is written and the time it is read
+   * (e.g. for code compiled at build time).
+   * @param fingerprint the fingerprint of the compiler
+   * @param name the name of the source file
+   * @param src the source file
+   * @return the key
+   */
+  public static String getKey(String fingerprint, String name, Source src) {
+    return digest(fingerprint + "\n" + name + "\n" + src.getDigest());
+  }
+  
+  /**
+   * Parses a manifest previously serialized with {@link #toString()}
+   * @param str the serialized manifest
+   * @return the manifest or <code>null</code> if the string was not a
+   * valid manifest
+   */
+  public static CacheManifest parse(String str) {
+    String[] lines = str.split("\n");
+    if (lines.length == 0) {
+      return null;
+    }
+    CacheManifest result = new CacheManifest(lines[0]);
+    for (int i = 1; i < lines.length; ++i) {
+      int tab = lines[i].indexOf('\t');
+      if (tab <= 0) {
+        return null;
+      }
+      String digest = lines[i].substring(0, tab);
+      String filename = lines[i].substring(tab + 1);
+      if (digest.equals(MODULE)) {
+        result.module = filename;
+      } else {
+        result.dependencies.put(filename, digest);
+      }
+    }
+    return result;
+  }
+  
+  /**
+   * @return the fingerprint of the compiler
+   */
+  public String getFingerprint() {
+    return fingerprint;
+  }
+  
+  /**
+   * @return the name of the file the code belongs to if it is not the file
+   * that has been passed to the compiler (may be <code>null</code>)
+   */
+  public synchronized String getModule() {
+    return module;
+  }
+  
+  /**
+   * Creates a manifest for the code generated for another file that has
+   * been compiled together with the file this manifest belongs to. Both
+   * depend on the same files but their code is stored under different keys.
+   * @param module the name of the other file
+   * @return the new manifest
+   */
+  public synchronized CacheManifest forModule(String module) {
+    CacheManifest result = new CacheManifest(fingerprint);
+    result.dependencies.putAll(dependencies);
+    result.module = module;
+    return result;
+  }
+  
+  /**
+   * Wraps around a source factory and records all files loaded through it
+   * in this manifest
+   * @param sourceFactory the source factory to wrap
+   * @return a source factory recording loaded files
+   */
+  public SourceFactory record(SourceFactory sourceFactory) {
+    return new RecordingSourceFactory(sourceFactory);
+  }
+  
+  /**
+   * Get the source factory wrapped by {@link #record(SourceFactory)}. Use
+   * it to load files that should not be recorded in the manifest.
+   * @param sourceFactory a source factory that may record loaded files
+   * @return the wrapped source factory or the given one if it does not
+   * record anything
+   */
+  public static SourceFactory unwrap(SourceFactory sourceFactory) {
+    if (sourceFactory instanceof RecordingSourceFactory) {
+      return ((RecordingSourceFactory)sourceFactory).sourceFactory;
+    }
+    return sourceFactory;
+  }
+  
+  /**
+   * A source factory recording all files loaded through it in the manifest
+   */
+  private class RecordingSourceFactory implements SourceFactory {
+    /**
+     * The source factory to wrap
+     */
+    private final SourceFactory sourceFactory;
+    
+    /**
+     * Creates a new source factory
+     * @param sourceFactory the source factory to wrap
+     */
+    RecordingSourceFactory(SourceFactory sourceFactory) {
+      this.sourceFactory = sourceFactory;
+    }
+    
+    @Override
+    public Source getSource(String filename, String baseFilename) throws IOException {
+      Source result;
+      try {
+        result = sourceFactory.getSource(filename, baseFilename);
+      } catch (FileNotFoundException e) {
+        addDependency(getDependencyKey(filename, baseFilename), MISSING);
+        throw e;
+      }
+      addDependency(getDependencyKey(filename, baseFilename), result.getDigest());
+      return result;
+    }
+  }
+  
+  /**
+   * Get the key under which a dependency is recorded
+   * @param filename the name of the file
+   * @param baseFilename the name of the file the compiler resolved the
+   * file against (may be <code>null</code>)
+   * @return the key
+   */
+  private static String getDependencyKey(String filename, String baseFilename) {
+    if (baseFilename == null) {
+      return filename;
+    }
+    return filename + "\t" + baseFilename;
+  }
+  
+  /**
+   * Records a dependency
+   * @param key the dependency's key (see {@link #getDependencyKey(String, String)})
+   * @param digest the digest of the file's contents
+   */
+  private synchronized void addDependency(String key, String digest) {
+    dependencies.put(key, digest);
+  }
+  
+  /**
+   * Checks if none of the files recorded in this manifest has changed.
+   * Relative file names are resolved against the same base file names
+   * as when they were recorded.
+   * @param sourceFactory the factory used to load the files
+   * @return true if the manifest is still valid
+   */
+  public synchronized boolean isValid(SourceFactory sourceFactory) {
+    for (Map.Entry<String, String> e : dependencies.entrySet()) {
+      String filename = e.getKey();
+      String baseFilename = null;
+      int tab = filename.indexOf('\t');
+      if (tab >= 0) {
+        baseFilename = filename.substring(tab + 1);
+        filename = filename.substring(0, tab);
+      }
+      String digest;
+      try {
+        digest = sourceFactory.getSource(filename, baseFilename).getDigest();
+      } catch (FileNotFoundException ex) {
+        digest = MISSING;
+      } catch (IOException ex) {
+        return false;
+      }
+      if (!digest.equals(e.getValue())) {
+        return false;
+      }
+    }
+    return true;
+  }
+  
+  /**
+   * @return the key under which the code described by this manifest should
+   * be stored in the cache
+   */
+  public String getCodeKey() {
+    return digest(toString());
+  }
+  
+  @Override
+  public synchronized String toString() {
+    StringBuilder sb = new StringBuilder(fingerprint);
+    if (module != null) {
+      sb.append('\n');
+      sb.append(MODULE);
+      sb.append('\t');
+      sb.append(module);
+    }
+    for (Map.Entry<String, String> e : dependencies.entrySet()) {
+      sb.append('\n');
+      sb.append(e.getValue());
+      sb.append('\t');
+      sb.append(e.getKey());
+    }
+    return sb.toString();
+  }
+  
+  /**
+   * Calculates the SHA-1 digest of a string
+   * @param str the string
+   * @return the digest
+   */
+  private static String digest(String str) {
+    MessageDigest md;
+    try {
+      md = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+    byte[] digestBytes = md.digest(str.getBytes(StandardCharsets.UTF_8));
+    return Base64.getUrlEncoder().encodeToString(digestBytes);
+  }
+}
@@ -14,21 +14,54 @@
 
 package de.undercouch.vertx.lang.typescript.cache;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.CRC32;
 
-import de.undercouch.vertx.lang.typescript.compiler.Source;
+import de.undercouch.vertx.lang.typescript.metrics.Metrics;
+import de.undercouch.vertx.lang.typescript.metrics.TypeScriptMetrics;
 
 /**
- * A cache storing compiled code on disk
+ * <p>A cache storing compiled code on disk.</p>
+ * <p>Each entry is stored in its own file consisting of a header and the
+ * code encoded in UTF-8. The header contains a magic number, the length of
+ * the code in bytes and a CRC32 checksum. Entries are first written to a
+ * temporary file and then atomically moved to their final location, so
+ * multiple processes can share the same cache directory. Truncated or
+ * otherwise corrupt entries are deleted when they are read.</p>
+ * <p>The cache can optionally be limited to a maximum size and a maximum
+ * number of entries. In this case, it keeps an index of the size and the
+ * last access time of all entries and evicts the least recently used ones
+ * in the background (see {@link DiskCacheIndex}). Temporary files left
+ * over by crashed processes are deleted in the background when the cache
+ * is created.</p>
  * @author Michel Kraemer
  */
 public class DiskCache implements Cache {
+  /**
+   * The magic number at the beginning of each cache file ("VXTS")
+   */
+  private static final int MAGIC = 0x56585453;
+  
+  /**
+   * The version of the file format
+   */
+  private static final int VERSION = 1;
+  
+  /**
+   * The size of the header in bytes (magic number, version, length
+   * of the code and checksum)
+   */
+  private static final int HEADER_SIZE = 4 + 4 + 4 + 8;
+  
   /**
    * The cache directory
    */
@@ -37,65 +70,220 @@ public class DiskCache implements Cache {
   /**
    * A second-level cache keeping compiled sources in memory
    */
-  private final Cache memoryCache = new InMemoryCache();
+  private final Cache memoryCache;
   
   /**
-   * Creates a new cache
+   * Keeps track of the entries if the cache is bounded (may be
+   * <code>null</code> if the cache is unbounded)
+   */
+  private final DiskCacheIndex index;
+  
+  /**
+   * Deletes stale temporary files if the cache is unbounded (may be
+   * <code>null</code> if the cache is bounded, in which case the index
+   * does this)
+   */
+  private final CompletableFuture<Void> cleanup;
+  
+  /**
+   * Creates a new unbounded cache with a default second-level cache
    * @param cacheDir where the cache should store compiled code
    */
   public DiskCache(File cacheDir) {
+    this(cacheDir, new InMemoryCache());
+  }
+  
+  /**
+   * Creates a new unbounded cache
+   * @param cacheDir where the cache should store compiled code
+   * @param memoryCache a second-level cache keeping compiled sources in
+   * memory (may be a {@link NoopCache})
+   */
+  public DiskCache(File cacheDir, Cache memoryCache) {
+    this(cacheDir, memoryCache, Long.MAX_VALUE, Integer.MAX_VALUE);
+  }
+  
+  /**
+   * Creates a new cache
+   * @param cacheDir where the cache should store compiled code
+   * @param memoryCache a second-level cache keeping compiled sources in
+   * memory (may be a {@link NoopCache})
+   * @param maxSize the maximum total size of all entries on disk in bytes
+   * @param maxEntries the maximum number of entries on disk
+   */
+  public DiskCache(File cacheDir, Cache memoryCache, long maxSize, int maxEntries) {
     this.cacheDir = cacheDir;
+    this.memoryCache = memoryCache;
+    if (maxSize < Long.MAX_VALUE || maxEntries < Integer.MAX_VALUE) {
+      index = new DiskCacheIndex(cacheDir, maxSize, maxEntries);
+      cleanup = null;
+    } else {
+      index = null;
+      cleanup = CompletableFuture.runAsync(() ->
+          DiskCacheIndex.deleteStaleTemporaryFiles(cacheDir));
+    }
+  }
+  
+  /**
+   * Wait until the index of a bounded cache has processed all updates
+   * or until an unbounded cache has deleted stale temporary files.
+   * Used for testing.
+   */
+  void awaitIndex() {
+    if (index != null) {
+      index.await();
+    }
+    if (cleanup != null) {
+      cleanup.join();
+    }
   }
   
   /**
    * Get a file in the cache
-   * @param source the source
+   * @param key the key of the cached item
    * @return the cached file
    */
-  private File getFileOnDisk(Source source) {
-    return new File(cacheDir, source.getDigest());
+  private File getFileOnDisk(String key) {
+    return new File(cacheDir, key);
   }
   
   @Override
-  public String get(Source src) {
+  public ByteBuffer getBytes(String key) {
     // check second-level cache first
-    String result = memoryCache.get(src);
-    if (result == null) {
+    ByteBuffer result = memoryCache.getBytes(key);
+    if (result != null) {
+      if (index != null) {
+        index.touched(key);
+      }
+    } else {
       // check if the compiled code is on disk
-      File f = getFileOnDisk(src);
+      File f = getFileOnDisk(key);
+      TypeScriptMetrics metrics = Metrics.get();
       if (f.exists()) {
         // load cached code
-        Source rs;
         try {
-          rs = Source.fromFile(f, StandardCharsets.UTF_8);
-          result = rs.toString();
-          memoryCache.put(src, result);
+          result = decode(Files.readAllBytes(f.toPath()));
+          if (result == null) {
+            // entry is corrupt. delete it so it will be replaced.
+            f.delete();
+            if (index != null) {
+              index.removed(key);
+            }
+          } else {
+            memoryCache.putBytes(key, result.duplicate());
+            if (index != null) {
+              index.touched(key);
+            }
+          }
         } catch (IOException e) {
           // could not read item from disk cache
         }
       }
+      if (result != null) {
+        metrics.cacheHit(TypeScriptMetrics.TIER_DISK);
+      } else {
+        metrics.cacheMiss(TypeScriptMetrics.TIER_DISK);
+      }
     }
     
     return result;
   }
 
   @Override
-  public void put(Source src, String value) {
+  public void putBytes(String key, ByteBuffer value) {
     // also put into second-level cache
-    memoryCache.put(src, value);
+    memoryCache.putBytes(key, value.duplicate());
     
     // make sure the cache directory exists
     if (!cacheDir.exists()) {
       cacheDir.mkdirs();
     }
     
-    // write compiled code to disk
-    File f = getFileOnDisk(src);
-    try (Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(f)))) {
-      w.write(value);
-      w.flush();
+    // write compiled code to a temporary file first so other processes
+    // never see incomplete entries
+    Path target = getFileOnDisk(key).toPath();
+    Path tmp = null;
+    try {
+      tmp = Files.createTempFile(cacheDir.toPath(), key, DiskCacheIndex.TMP_EXTENSION);
+      ByteBuffer code = value.duplicate();
+      ByteBuffer header = encodeHeader(code);
+      long length = header.remaining() + code.remaining();
+      try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+        while (header.hasRemaining() || code.hasRemaining()) {
+          ch.write(new ByteBuffer[] { header, code });
+        }
+      }
+      try {
+        Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE,
+            StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+      }
+      tmp = null;
+      if (index != null) {
+        index.added(key, length);
+      }
     } catch (IOException e) {
       // could not write item to disk cache
+    } finally {
+      if (tmp != null) {
+        try {
+          Files.deleteIfExists(tmp);
+        } catch (IOException e) {
+          // ignore
+        }
+      }
+    }
+  }
+  
+  /**
+   * Creates the header of a cache file
+   * @param code the UTF-8 encoded code that will follow the header
+   * @return the header
+   */
+  private static ByteBuffer encodeHeader(ByteBuffer code) {
+    ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE);
+    buf.putInt(MAGIC);
+    buf.putInt(VERSION);
+    buf.putInt(code.remaining());
+    buf.putLong(checksum(code.duplicate()));
+    buf.flip();
+    return buf;
+  }
+  
+  /**
+   * Extracts code from the contents of a cache file
+   * @param bytes the file contents
+   * @return the UTF-8 encoded code or <code>null</code> if the file is corrupt
+   */
+  private static ByteBuffer decode(byte[] bytes) {
+    if (bytes.length < HEADER_SIZE) {
+      return null;
     }
+    ByteBuffer buf = ByteBuffer.wrap(bytes);
+    if (buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+      return null;
+    }
+    int length = buf.getInt();
+    long checksum = buf.getLong();
+    if (length != bytes.length - HEADER_SIZE) {
+      return null;
+    }
+    ByteBuffer code = buf.slice().asReadOnlyBuffer();
+    if (checksum != checksum(code.duplicate())) {
+      return null;
+    }
+    return code;
+  }
+  
+  /**
+   * Calculates the CRC32 checksum of the remaining bytes in a buffer
+   * @param bytes the buffer (will be consumed)
+   * @return the checksum
+   */
+  private static long checksum(ByteBuffer bytes) {
+    CRC32 crc = new CRC32();
+    crc.update(bytes);
+    return crc.getValue();
   }
 }
@@ -0,0 +1,383 @@
+// Copyright 2016 Michel Kraemer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.undercouch.vertx.lang.typescript.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Keeps track of the size and the last access time of all entries in a
+ * {@link DiskCache} and evicts the least recently used ones if the cache
+ * grows too large.</p>
+ * <p>The index is kept in memory and regularly written to a compact file in
+ * the cache directory. When the index is loaded, it is reconciled with the
+ * actual contents of the directory, so entries written or deleted by other
+ * processes are picked up. All work including eviction is done on a
+ * background thread. Callers only enqueue updates.</p>
+ * @author Michel Kraemer
+ */
+class DiskCacheIndex {
+  /**
+   * The name of the index file in the cache directory
+   */
+  static final String INDEX_FILE = ".index";
+  
+  /**
+   * The extension of temporary files in the cache directory
+   */
+  static final String TMP_EXTENSION = ".tmp";
+  
+  /**
+   * The magic number at the beginning of the index file ("VXTI")
+   */
+  private static final int MAGIC = 0x56585449;
+  
+  /**
+   * The number of milliseconds to wait before writing a modified index
+   * to disk. Collects multiple modifications into one write.
+   */
+  private static final long FLUSH_DELAY = 1000;
+  
+  /**
+   * The number of milliseconds after which a temporary file is considered
+   * to be left over from a process that crashed while writing it. Younger
+   * temporary files may still be written by another process.
+   */
+  static final long STALE_TMP_AGE = 60 * 60 * 1000;
+  
+  /**
+   * The cache directory
+   */
+  private final File cacheDir;
+  
+  /**
+   * The maximum total size of all entries in bytes
+   */
+  private final long maxSize;
+  
+  /**
+   * The maximum number of entries
+   */
+  private final int maxEntries;
+  
+  /**
+   * The background thread maintaining the index. All fields below
+   * may only be accessed by this thread.
+   */
+  private final ScheduledExecutorService executor;
+  
+  /**
+   * Maps cache keys to index entries
+   */
+  private final Map<String, Entry> entries = new HashMap<>();
+  
+  /**
+   * The total size of all entries in bytes
+   */
+  private long totalSize;
+  
+  /**
+   * True if the index has been modified since it was last written to disk
+   */
+  private boolean dirty;
+  
+  /**
+   * True if writing the index to disk has already been scheduled
+   */
+  private boolean flushScheduled;
+  
+  /**
+   * Creates a new index and starts loading it in the background
+   * @param cacheDir the cache directory
+   * @param maxSize the maximum total size of all entries in bytes
+   * @param maxEntries the maximum number of entries
+   */
+  DiskCacheIndex(File cacheDir, long maxSize, int maxEntries) {
+    this.cacheDir = cacheDir;
+    this.maxSize = maxSize;
+    this.maxEntries = maxEntries;
+    executor = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "vertx-typescript-disk-cache");
+      t.setDaemon(true);
+      return t;
+    });
+    executor.execute(this::load);
+  }
+  
+  /**
+   * Record that an entry has been read
+   * @param key the entry's key
+   */
+  void touched(String key) {
+    long now = System.currentTimeMillis();
+    executor.execute(() -> {
+      Entry e = entries.get(key);
+      if (e != null) {
+        e.lastAccess = now;
+        modified();
+      }
+    });
+  }
+  
+  /**
+   * Record that an entry has been written
+   * @param key the entry's key
+   * @param size the size of the entry's file in bytes
+   */
+  void added(String key, long size) {
+    long now = System.currentTimeMillis();
+    executor.execute(() -> {
+      put(key, size, now);
+      evict();
+      modified();
+    });
+  }
+  
+  /**
+   * Record that an entry has been deleted
+   * @param key the entry's key
+   */
+  void removed(String key) {
+    executor.execute(() -> {
+      remove(key);
+      modified();
+    });
+  }
+  
+  /**
+   * Wait until all updates enqueued so far have been processed
+   */
+  void await() {
+    try {
+      executor.submit(() -> { }).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+  
+  /**
+   * Add an entry to the index or replace an existing one
+   * @param key the entry's key
+   * @param size the size of the entry's file in bytes
+   * @param lastAccess the time the entry was last accessed
+   */
+  private void put(String key, long size, long lastAccess) {
+    remove(key);
+    Entry e = new Entry(key, size, lastAccess);
+    entries.put(key, e);
+    totalSize += size;
+  }
+  
+  /**
+   * Remove an entry from the index
+   * @param key the entry's key
+   */
+  private void remove(String key) {
+    Entry e = entries.remove(key);
+    if (e != null) {
+      totalSize -= e.size;
+    }
+  }
+  
+  /**
+   * Delete least recently used entries until the cache is within its limits
+   */
+  private void evict() {
+    if (totalSize <= maxSize && entries.size() <= maxEntries) {
+      return;
+    }
+    
+    List<Entry> lru = new ArrayList<>(entries.values());
+    lru.sort(Comparator.comparingLong(e -> e.lastAccess));
+    for (Entry e : lru) {
+      if (totalSize <= maxSize && entries.size() <= maxEntries) {
+        break;
+      }
+      new File(cacheDir, e.key).delete();
+      remove(e.key);
+    }
+  }
+  
+  /**
+   * Mark the index as modified and schedule writing it to disk
+   */
+  private void modified() {
+    dirty = true;
+    if (!flushScheduled) {
+      flushScheduled = true;
+      executor.schedule(this::flush, FLUSH_DELAY, TimeUnit.MILLISECONDS);
+    }
+  }
+  
+  /**
+   * Load the index from disk and reconcile it with the contents of the
+   * cache directory. Also deletes stale temporary files.
+   */
+  private void load() {
+    // read index file
+    Map<String, Long> lastAccessTimes = new HashMap<>();
+    File indexFile = new File(cacheDir, INDEX_FILE);
+    if (indexFile.exists()) {
+      try (InputStream is = new BufferedInputStream(Files.newInputStream(indexFile.toPath()));
+          DataInputStream in = new DataInputStream(is)) {
+        if (in.readInt() == MAGIC) {
+          int count = in.readInt();
+          for (int i = 0; i < count; ++i) {
+            String key = in.readUTF();
+            lastAccessTimes.put(key, in.readLong());
+          }
+        }
+      } catch (IOException e) {
+        // index is corrupt. rebuild it from the directory contents.
+      }
+    }
+    
+    deleteStaleTemporaryFiles(cacheDir);
+    
+    // add all entries in the cache directory
+    File[] files = cacheDir.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        String name = f.getName();
+        if (!f.isFile() || name.equals(INDEX_FILE) || name.endsWith(TMP_EXTENSION)) {
+          continue;
+        }
+        Long lastAccess = lastAccessTimes.get(name);
+        if (lastAccess == null) {
+          lastAccess = f.lastModified();
+        }
+        if (!entries.containsKey(name)) {
+          put(name, f.length(), lastAccess);
+        }
+      }
+    }
+    
+    evict();
+    modified();
+  }
+  
+  /**
+   * Delete temporary files left over by processes that crashed before
+   * they could rename them
+   * @param cacheDir the cache directory
+   */
+  static void deleteStaleTemporaryFiles(File cacheDir) {
+    long staleBefore = System.currentTimeMillis() - STALE_TMP_AGE;
+    File[] files = cacheDir.listFiles((dir, name) -> name.endsWith(TMP_EXTENSION));
+    if (files != null) {
+      for (File f : files) {
+        if (f.lastModified() < staleBefore) {
+          f.delete();
+        }
+      }
+    }
+  }
+  
+  /**
+   * Write the index to disk
+   */
+  private void flush() {
+    flushScheduled = false;
+    if (!dirty || !cacheDir.exists()) {
+      return;
+    }
+    dirty = false;
+    
+    Path target = new File(cacheDir, INDEX_FILE).toPath();
+    Path tmp = null;
+    try {
+      tmp = Files.createTempFile(cacheDir.toPath(), "index", TMP_EXTENSION);
+      try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(tmp));
+          DataOutputStream out = new DataOutputStream(os)) {
+        out.writeInt(MAGIC);
+        out.writeInt(entries.size());
+        for (Entry e : entries.values()) {
+          out.writeUTF(e.key);
+          out.writeLong(e.lastAccess);
+        }
+      }
+      try {
+        Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE,
+            StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+      }
+      tmp = null;
+    } catch (IOException e) {
+      // could not write index. it will be rebuilt next time.
+    } finally {
+      if (tmp != null) {
+        try {
+          Files.deleteIfExists(tmp);
+        } catch (IOException e) {
+          // ignore
+        }
+      }
+    }
+  }
+  
+  /**
+   * An entry in the index
+   */
+  private static class Entry {
+    /**
+     * The entry's key
+     */
+    final String key;
+    
+    /**
+     * The size of the entry's file in bytes
+     */
+    final long size;
+    
+    /**
+     * The time the entry was last accessed
+     */
+    long lastAccess;
+    
+    /**
+     * Creates a new entry
+     * @param key the entry's key
+     * @param size the size of the entry's file in bytes
+     * @param lastAccess the time the entry was last accessed
+     */
+    Entry(String key, long size, long lastAccess) {
+      this.key = key;
+      this.size = size;
+      this.lastAccess = lastAccess;
+    }
+  }
+}
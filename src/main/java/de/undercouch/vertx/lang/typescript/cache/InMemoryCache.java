@@ -14,26 +14,259 @@
 
 package de.undercouch.vertx.lang.typescript.cache;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 
-import de.undercouch.vertx.lang.typescript.compiler.Source;
+import de.undercouch.vertx.lang.typescript.metrics.Metrics;
+import de.undercouch.vertx.lang.typescript.metrics.TypeScriptMetrics;
 
 /**
- * A cache keeping compiled code in memory
+ * A cache keeping compiled code in memory. The cache is bounded by the
+ * estimated number of bytes its entries occupy. If this limit is exceeded
+ * the least recently used entries are evicted. Optionally, the cache only
+ * keeps soft references to the cached code so the garbage collector may
+ * reclaim it under memory pressure. Instances of this class can be safely
+ * shared between threads.
  * @author Michel Kraemer
  */
 public class InMemoryCache implements Cache {
-  // TODO use soft keys
-  private Map<Source, String> cache = new HashMap<>();
+  /**
+   * The default maximum size of the cache in bytes
+   */
+  public static final long DEFAULT_MAX_SIZE = 64 * 1024 * 1024;
+  
+  /**
+   * The estimated number of bytes each entry occupies in addition to
+   * its key and value
+   */
+  private static final int ENTRY_OVERHEAD = 96;
+  
+  /**
+   * The maximum size of the cache in bytes
+   */
+  private final long maxSize;
+  
+  /**
+   * True if the cache should only keep soft references to cached code
+   */
+  private final boolean softValues;
+  
+  /**
+   * The cached entries in access order (least recently used first)
+   */
+  private final LinkedHashMap<String, Entry> entries =
+      new LinkedHashMap<>(16, 0.75f, true);
+  
+  /**
+   * A queue receiving soft references whose values have been reclaimed
+   * by the garbage collector
+   */
+  private final ReferenceQueue<ByteBuffer> reclaimed = new ReferenceQueue<>();
+  
+  /**
+   * The estimated number of bytes all entries currently occupy
+   */
+  private long size;
+  
+  /**
+   * Creates a cache with a default maximum size and strong values
+   */
+  public InMemoryCache() {
+    this(DEFAULT_MAX_SIZE, false);
+  }
+  
+  /**
+   * Creates a new cache
+   * @param maxSize the maximum size of the cache in bytes
+   * @param softValues true if the cache should only keep soft references
+   * to cached code
+   */
+  public InMemoryCache(long maxSize, boolean softValues) {
+    if (maxSize < 0) {
+      throw new IllegalArgumentException("Maximum cache size must not be negative");
+    }
+    this.maxSize = maxSize;
+    this.softValues = softValues;
+  }
+  
+  /**
+   * @return the estimated number of bytes all entries currently occupy
+   */
+  public synchronized long getSize() {
+    expungeReclaimed();
+    return size;
+  }
   
   @Override
-  public String get(Source src) {
-    return cache.get(src);
+  public synchronized ByteBuffer getBytes(String key) {
+    expungeReclaimed();
+    Entry e = entries.get(key);
+    if (e == null) {
+      Metrics.get().cacheMiss(TypeScriptMetrics.TIER_MEMORY);
+      return null;
+    }
+    ByteBuffer result = e.getValue();
+    if (result == null) {
+      // value has been reclaimed but the reference has not been enqueued yet
+      remove(key, e);
+      Metrics.get().cacheMiss(TypeScriptMetrics.TIER_MEMORY);
+      return null;
+    }
+    Metrics.get().cacheHit(TypeScriptMetrics.TIER_MEMORY);
+    
+    // give each caller its own position and limit
+    return result.duplicate();
   }
 
   @Override
-  public void put(Source src, String value) {
-    cache.put(src, value);
+  public synchronized void putBytes(String key, ByteBuffer value) {
+    expungeReclaimed();
+    
+    Entry old = entries.get(key);
+    if (old != null) {
+      remove(key, old);
+    }
+    
+    ByteBuffer v = value.slice().asReadOnlyBuffer();
+    long weight = ENTRY_OVERHEAD + 2L * key.length() + v.remaining();
+    if (weight > maxSize) {
+      // the value would evict everything else
+      return;
+    }
+    
+    Entry e;
+    if (softValues) {
+      e = new SoftEntry(key, v, weight, reclaimed);
+    } else {
+      e = new StrongEntry(v, weight);
+    }
+    entries.put(key, e);
+    size += weight;
+    
+    // evict least recently used entries
+    Iterator<Entry> it = entries.values().iterator();
+    while (size > maxSize && it.hasNext()) {
+      Entry lru = it.next();
+      it.remove();
+      size -= lru.getWeight();
+    }
+  }
+  
+  /**
+   * Remove an entry from the cache
+   * @param key the entry's key
+   * @param e the entry
+   */
+  private void remove(String key, Entry e) {
+    if (entries.get(key) == e) {
+      entries.remove(key);
+      size -= e.getWeight();
+    }
+  }
+  
+  /**
+   * Remove all entries whose values have been reclaimed by the garbage
+   * collector
+   */
+  private void expungeReclaimed() {
+    Reference<? extends ByteBuffer> r;
+    while ((r = reclaimed.poll()) != null) {
+      SoftEntry e = (SoftEntry)r;
+      remove(e.key, e);
+    }
+  }
+  
+  /**
+   * An entry in the cache
+   */
+  private interface Entry {
+    /**
+     * @return the cached value or <code>null</code> if it has been
+     * reclaimed by the garbage collector
+     */
+    ByteBuffer getValue();
+    
+    /**
+     * @return the estimated number of bytes the entry occupies
+     */
+    long getWeight();
+  }
+  
+  /**
+   * An entry keeping a strong reference to its value
+   */
+  private static class StrongEntry implements Entry {
+    /**
+     * The cached value
+     */
+    private final ByteBuffer value;
+    
+    /**
+     * The estimated number of bytes the entry occupies
+     */
+    private final long weight;
+    
+    /**
+     * Creates a new entry
+     * @param value the cached value
+     * @param weight the estimated number of bytes the entry occupies
+     */
+    StrongEntry(ByteBuffer value, long weight) {
+      this.value = value;
+      this.weight = weight;
+    }
+    
+    @Override
+    public ByteBuffer getValue() {
+      return value;
+    }
+    
+    @Override
+    public long getWeight() {
+      return weight;
+    }
+  }
+  
+  /**
+   * An entry keeping a soft reference to its value
+   */
+  private static class SoftEntry extends SoftReference<ByteBuffer> implements Entry {
+    /**
+     * The entry's key
+     */
+    private final String key;
+    
+    /**
+     * The estimated number of bytes the entry occupies
+     */
+    private final long weight;
+    
+    /**
+     * Creates a new entry
+     * @param key the entry's key
+     * @param value the cached value
+     * @param weight the estimated number of bytes the entry occupies
+     * @param queue the queue the entry should be enqueued in when its value
+     * has been reclaimed
+     */
+    SoftEntry(String key, ByteBuffer value, long weight, ReferenceQueue<ByteBuffer> queue) {
+      super(value, queue);
+      this.key = key;
+      this.weight = weight;
+    }
+    
+    @Override
+    public ByteBuffer getValue() {
+      return get();
+    }
+    
+    @Override
+    public long getWeight() {
+      return weight;
+    }
   }
 }
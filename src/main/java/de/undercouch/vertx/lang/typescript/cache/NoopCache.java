@@ -14,7 +14,7 @@
 
 package de.undercouch.vertx.lang.typescript.cache;
 
-import de.undercouch.vertx.lang.typescript.compiler.Source;
+import java.nio.ByteBuffer;
 
 /**
  * A dummy cache that never stores anything
@@ -22,12 +22,12 @@ import de.undercouch.vertx.lang.typescript.compiler.Source;
  */
 public class NoopCache implements Cache {
   @Override
-  public String get(Source src) {
+  public ByteBuffer getBytes(String key) {
     return null;
   }
 
   @Override
-  public void put(Source src, String value) {
+  public void putBytes(String key, ByteBuffer value) {
     // do not cache
   }
 }
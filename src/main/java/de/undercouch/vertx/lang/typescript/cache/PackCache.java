@@ -0,0 +1,730 @@
+// Copyright 2016 Michel Kraemer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.undercouch.vertx.lang.typescript.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import de.undercouch.vertx.lang.typescript.metrics.Metrics;
+import de.undercouch.vertx.lang.typescript.metrics.TypeScriptMetrics;
+
+/**
+ * <p>A cache storing compiled code in a few large files on disk instead of
+ * one file per entry.</p>
+ * <p>Entries are appended to segment files. Each record consists of a
+ * header (magic number, key length, value length, CRC32 checksum), the key
+ * and the value, both encoded in UTF-8. A separate append-only index file
+ * maps keys to the location of their latest record. When the cache is
+ * opened it reads the whole index at once. Segments are memory-mapped for
+ * reading, so a warm start only needs a few I/O operations. Each segment
+ * is mapped only once. Records appended to a segment after it has been
+ * mapped are read directly from the file.</p>
+ * <p>Writes are serialized through a lock file and may be performed by
+ * several processes sharing the same directory. Instances within the same
+ * JVM additionally synchronize on a monitor per directory since file locks
+ * are held on behalf of the whole JVM. If more than half of the
+ * bytes in the segments belong to superseded entries, the cache is
+ * compacted: live records are copied to new segments, a new index is
+ * written and the old segments are deleted.</p>
+ * @author Michel Kraemer
+ */
+public class PackCache implements Cache {
+  /**
+   * The default maximum size of a segment in bytes
+   */
+  public static final long DEFAULT_MAX_SEGMENT_SIZE = 16 * 1024 * 1024;
+  
+  /**
+   * The name of the index file
+   */
+  private static final String INDEX_FILE = "pack.idx";
+  
+  /**
+   * The name of the lock file used to serialize writes
+   */
+  private static final String LOCK_FILE = "pack.lock";
+  
+  /**
+   * The prefix of segment file names
+   */
+  private static final String SEGMENT_PREFIX = "segment-";
+  
+  /**
+   * The extension of segment file names
+   */
+  private static final String SEGMENT_EXTENSION = ".pack";
+  
+  /**
+   * The magic number at the beginning of the index file ("VXTP")
+   */
+  private static final int INDEX_MAGIC = 0x56585450;
+  
+  /**
+   * The size of the index file header (magic number, generation, number
+   * of the first segment)
+   */
+  private static final int INDEX_HEADER_SIZE = 4 + 8 + 4;
+  
+  /**
+   * The magic number at the beginning of each record ("VXTR")
+   */
+  private static final int RECORD_MAGIC = 0x56585452;
+  
+  /**
+   * The size of a record header (magic number, key length, value length,
+   * checksum)
+   */
+  private static final int RECORD_HEADER_SIZE = 4 + 4 + 4 + 8;
+  
+  /**
+   * Segments smaller than this are never compacted
+   */
+  private static final long MIN_COMPACTION_SIZE = 1024 * 1024;
+  
+  /**
+   * Monitors used to serialize writes of all instances in this JVM sharing
+   * the same cache directory
+   */
+  private static final Map<Path, Object> directoryMonitors = new ConcurrentHashMap<>();
+  
+  /**
+   * The cache directory
+   */
+  private final File cacheDir;
+  
+  /**
+   * A second-level cache keeping compiled sources in memory
+   */
+  private final Cache memoryCache;
+  
+  /**
+   * The maximum size of a segment in bytes
+   */
+  private final long maxSegmentSize;
+  
+  /**
+   * Maps keys to the location of their latest record
+   */
+  private final Map<String, Location> locations = new HashMap<>();
+  
+  /**
+   * Memory-mapped segments
+   */
+  private final Map<Integer, MappedByteBuffer> segments = new HashMap<>();
+  
+  /**
+   * The generation of the index file read so far. Changes with every
+   * compaction.
+   */
+  private long generation = -1;
+  
+  /**
+   * The number of the last segment referenced by the index
+   */
+  private int lastSegment;
+  
+  /**
+   * The position up to which the index file has been read
+   */
+  private long indexPosition;
+  
+  /**
+   * The total size of all records referenced by the index in bytes
+   */
+  private long totalBytes;
+  
+  /**
+   * The size of all live records in bytes
+   */
+  private long liveBytes;
+  
+  /**
+   * Creates a new cache with a default second-level cache
+   * @param cacheDir where the cache should store compiled code
+   */
+  public PackCache(File cacheDir) {
+    this(cacheDir, new InMemoryCache());
+  }
+  
+  /**
+   * Creates a new cache
+   * @param cacheDir where the cache should store compiled code
+   * @param memoryCache a second-level cache keeping compiled sources in
+   * memory (may be a {@link NoopCache})
+   */
+  public PackCache(File cacheDir, Cache memoryCache) {
+    this(cacheDir, memoryCache, DEFAULT_MAX_SEGMENT_SIZE);
+  }
+  
+  /**
+   * Creates a new cache
+   * @param cacheDir where the cache should store compiled code
+   * @param memoryCache a second-level cache keeping compiled sources in
+   * memory (may be a {@link NoopCache})
+   * @param maxSegmentSize the maximum size of a segment file in bytes
+   */
+  public PackCache(File cacheDir, Cache memoryCache, long maxSegmentSize) {
+    this.cacheDir = cacheDir;
+    this.memoryCache = memoryCache;
+    this.maxSegmentSize = maxSegmentSize;
+  }
+  
+  @Override
+  public ByteBuffer getBytes(String key) {
+    // check second-level cache first
+    ByteBuffer result = memoryCache.getBytes(key);
+    if (result == null) {
+      result = getFromSegments(key);
+      if (result != null) {
+        Metrics.get().cacheHit(TypeScriptMetrics.TIER_PACK);
+        memoryCache.putBytes(key, result.duplicate());
+      } else {
+        Metrics.get().cacheMiss(TypeScriptMetrics.TIER_PACK);
+      }
+    }
+    return result;
+  }
+  
+  /**
+   * Read an entry from the segments
+   * @param key the entry's key
+   * @return a read-only view on the entry's value in the mapped segment or
+   * <code>null</code> if there is no such entry or if it was corrupt
+   */
+  private synchronized ByteBuffer getFromSegments(String key) {
+    try {
+      Location loc = locations.get(key);
+      if (loc == null) {
+        // another process may have added the entry in the meantime
+        Path indexPath = getIndexPath();
+        if (!Files.exists(indexPath)) {
+          return null;
+        }
+        try (FileChannel index = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+          readIndex(index);
+        }
+        loc = locations.get(key);
+        if (loc == null) {
+          return null;
+        }
+      }
+      
+      ByteBuffer record = readRecord(loc);
+      if (record == null) {
+        // entry is corrupt. forget it so it will be replaced.
+        locations.remove(key);
+        liveBytes -= loc.length;
+        return null;
+      }
+      int keyLength = record.getInt(4);
+      int valueLength = record.getInt(8);
+      byte[] recordKey = new byte[keyLength];
+      record.position(RECORD_HEADER_SIZE);
+      record.get(recordKey);
+      if (!key.equals(new String(recordKey, StandardCharsets.UTF_8))) {
+        return null;
+      }
+      record.limit(record.position() + valueLength);
+      return record.slice().asReadOnlyBuffer();
+    } catch (IOException e) {
+      // could not read item from cache
+      return null;
+    }
+  }
+
+  @Override
+  public void putBytes(String key, ByteBuffer value) {
+    // also put into second-level cache
+    memoryCache.putBytes(key, value.duplicate());
+    
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer valueBytes = value.duplicate();
+    ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE +
+        keyBytes.length + valueBytes.remaining());
+    record.putInt(RECORD_MAGIC);
+    record.putInt(keyBytes.length);
+    record.putInt(valueBytes.remaining());
+    CRC32 crc = new CRC32();
+    crc.update(keyBytes);
+    crc.update(valueBytes.duplicate());
+    record.putLong(crc.getValue());
+    record.put(keyBytes);
+    record.put(valueBytes);
+    record.flip();
+    
+    try {
+      append(key, record);
+    } catch (IOException | OverlappingFileLockException e) {
+      // could not write item to cache
+    }
+  }
+  
+  /**
+   * Append a record to the last segment and add it to the index
+   * @param key the record's key
+   * @param record the record
+   * @throws IOException if the record could not be written
+   */
+  private synchronized void append(String key, ByteBuffer record) throws IOException {
+    // make sure the cache directory exists
+    if (!cacheDir.exists()) {
+      cacheDir.mkdirs();
+    }
+    
+    // file locks are held by the whole JVM and cannot be acquired twice,
+    // so serialize writes of all instances sharing this directory first
+    Object monitor = directoryMonitors.computeIfAbsent(
+        cacheDir.getAbsoluteFile().toPath().normalize(), p -> new Object());
+    synchronized (monitor) {
+      try (FileChannel lockChannel = FileChannel.open(getLockPath(),
+          StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+        FileLock lock = lockChannel.lock();
+        try {
+          appendLocked(key, record);
+        } finally {
+          lock.release();
+        }
+      }
+    }
+  }
+  
+  /**
+   * Append a record to the last segment and add it to the index. Must be
+   * called while holding the lock.
+   * @param key the record's key
+   * @param record the record
+   * @throws IOException if the record could not be written
+   */
+  private void appendLocked(String key, ByteBuffer record) throws IOException {
+    try (FileChannel index = FileChannel.open(getIndexPath(),
+        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      // catch up with entries written by other processes
+      if (!readIndex(index)) {
+        // index is new or corrupt. start a new generation.
+        writeIndexHeader(index, lastSegment + 1);
+      } else if (index.size() > indexPosition) {
+        // remove incomplete entry written by a crashed process
+        index.truncate(indexPosition);
+      }
+      
+      // write record to the last segment or start a new one if it is full
+      int segment = lastSegment;
+      Path segmentPath = getSegmentPath(segment);
+      if (Files.exists(segmentPath) && Files.size(segmentPath) >= maxSegmentSize) {
+        ++segment;
+        segmentPath = getSegmentPath(segment);
+      }
+      long offset;
+      int length = record.remaining();
+      try (FileChannel sc = FileChannel.open(segmentPath,
+          StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+        offset = sc.size();
+        writeFully(sc, record, offset);
+      }
+      
+      // add record to index
+      Location loc = new Location(segment, offset, length);
+      ByteBuffer entry = encodeIndexEntry(key, loc);
+      writeFully(index, entry, indexPosition);
+      indexPosition += entry.capacity();
+      addLocation(key, loc);
+      
+      if (totalBytes >= MIN_COMPACTION_SIZE && liveBytes < totalBytes / 2) {
+        compact(index);
+      }
+    }
+  }
+  
+  /**
+   * Copy all live records to new segments, write a new index and delete
+   * the old segments. Must be called while holding the lock.
+   * @param index the current index file
+   * @throws IOException if the cache could not be compacted
+   */
+  private void compact(FileChannel index) throws IOException {
+    // copy live records
+    int newFirstSegment = lastSegment + 1;
+    int segment = newFirstSegment;
+    long offset = 0;
+    Map<String, Location> newLocations = new HashMap<>();
+    FileChannel sc = null;
+    try {
+      for (Map.Entry<String, Location> e : locations.entrySet()) {
+        ByteBuffer record = readRecord(e.getValue());
+        if (record == null) {
+          continue;
+        }
+        if (sc == null || offset >= maxSegmentSize) {
+          if (sc != null) {
+            sc.close();
+            ++segment;
+          }
+          Path p = getSegmentPath(segment);
+          sc = FileChannel.open(p, StandardOpenOption.CREATE,
+              StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+          offset = 0;
+        }
+        int length = record.remaining();
+        writeFully(sc, record, offset);
+        newLocations.put(e.getKey(), new Location(segment, offset, length));
+        offset += length;
+      }
+    } finally {
+      if (sc != null) {
+        sc.close();
+      }
+    }
+    
+    // write new index
+    Path tmp = Files.createTempFile(cacheDir.toPath(), "pack", ".tmp");
+    try {
+      try (FileChannel newIndex = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+        writeIndexHeader(newIndex, newFirstSegment);
+        for (Map.Entry<String, Location> e : newLocations.entrySet()) {
+          ByteBuffer entry = encodeIndexEntry(e.getKey(), e.getValue());
+          writeFully(newIndex, entry, indexPosition);
+          indexPosition += entry.capacity();
+          addLocation(e.getKey(), e.getValue());
+        }
+      }
+      try {
+        Files.move(tmp, getIndexPath(), StandardCopyOption.ATOMIC_MOVE,
+            StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(tmp, getIndexPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+      tmp = null;
+    } finally {
+      if (tmp != null) {
+        Files.deleteIfExists(tmp);
+      }
+    }
+    
+    // delete old segments. on some platforms this fails while they
+    // are still mapped. they will be deleted by the next compaction then.
+    File[] files = cacheDir.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        int n = getSegmentNumber(f.getName());
+        if (n >= 0 && n < newFirstSegment) {
+          segments.remove(n);
+          f.delete();
+        }
+      }
+    }
+  }
+  
+  /**
+   * Read new entries from the index file
+   * @param index the index file
+   * @return false if the index file is empty or corrupt
+   * @throws IOException if the index file could not be read
+   */
+  private boolean readIndex(FileChannel index) throws IOException {
+    long size = index.size();
+    if (size < INDEX_HEADER_SIZE) {
+      return false;
+    }
+    
+    ByteBuffer header = readFully(index, 0, INDEX_HEADER_SIZE);
+    if (header.getInt() != INDEX_MAGIC) {
+      return false;
+    }
+    long gen = header.getLong();
+    if (gen != generation) {
+      // index has been compacted by another process. start over.
+      reset(gen, header.getInt());
+    }
+    
+    if (size > indexPosition) {
+      ByteBuffer buf = readFully(index, indexPosition, (int)(size - indexPosition));
+      while (buf.remaining() >= 2) {
+        int start = buf.position();
+        int keyLength = buf.getShort() & 0xffff;
+        if (buf.remaining() < keyLength + 4 + 8 + 4) {
+          // incomplete entry
+          break;
+        }
+        byte[] key = new byte[keyLength];
+        buf.get(key);
+        Location loc = new Location(buf.getInt(), buf.getLong(), buf.getInt());
+        addLocation(new String(key, StandardCharsets.UTF_8), loc);
+        indexPosition += buf.position() - start;
+      }
+    }
+    
+    return true;
+  }
+  
+  /**
+   * Write the header of a new index generation and reset the in-memory
+   * state accordingly
+   * @param index the index file
+   * @param first the number of the first segment of the new generation
+   * @throws IOException if the header could not be written
+   */
+  private void writeIndexHeader(FileChannel index, int first) throws IOException {
+    long gen = Math.max(System.currentTimeMillis(), generation + 1);
+    ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER_SIZE);
+    header.putInt(INDEX_MAGIC);
+    header.putLong(gen);
+    header.putInt(first);
+    header.flip();
+    index.truncate(0);
+    writeFully(index, header, 0);
+    reset(gen, first);
+  }
+  
+  /**
+   * Forget all entries read so far
+   * @param gen the new index generation
+   * @param first the number of the first segment of the new generation
+   */
+  private void reset(long gen, int first) {
+    generation = gen;
+    lastSegment = first;
+    indexPosition = INDEX_HEADER_SIZE;
+    totalBytes = 0;
+    liveBytes = 0;
+    locations.clear();
+    
+    // release mappings of segments that do not belong to this generation
+    segments.keySet().removeIf(n -> n < first);
+  }
+  
+  /**
+   * Add the location of a record to the in-memory index
+   * @param key the record's key
+   * @param loc the record's location
+   */
+  private void addLocation(String key, Location loc) {
+    Location old = locations.put(key, loc);
+    if (old != null) {
+      liveBytes -= old.length;
+    }
+    liveBytes += loc.length;
+    totalBytes += loc.length;
+    lastSegment = Math.max(lastSegment, loc.segment);
+  }
+  
+  /**
+   * Read a record and verify its checksum
+   * @param loc the record's location
+   * @return a buffer containing the record or <code>null</code> if the
+   * record is corrupt or the segment does not exist
+   * @throws IOException if the segment could not be read
+   */
+  private ByteBuffer readRecord(Location loc) throws IOException {
+    MappedByteBuffer segment = segments.get(loc.segment);
+    long end = loc.offset + loc.length;
+    ByteBuffer record;
+    if (segment != null && segment.capacity() >= end) {
+      record = slice(segment, loc);
+    } else {
+      try (FileChannel sc = FileChannel.open(getSegmentPath(loc.segment),
+          StandardOpenOption.READ)) {
+        long size = sc.size();
+        if (size < end) {
+          return null;
+        }
+        if (segment == null) {
+          segment = sc.map(FileChannel.MapMode.READ_ONLY, 0, size);
+          segments.put(loc.segment, segment);
+          record = slice(segment, loc);
+        } else {
+          // the segment has grown since we mapped it. do not map it again
+          // because the old mapping would stay alive as long as buffers
+          // returned earlier still refer to it.
+          record = readFully(sc, loc.offset, loc.length);
+        }
+      } catch (NoSuchFileException e) {
+        return null;
+      }
+    }
+    
+    if (loc.length < RECORD_HEADER_SIZE || record.getInt(0) != RECORD_MAGIC) {
+      return null;
+    }
+    int keyLength = record.getInt(4);
+    int valueLength = record.getInt(8);
+    if (keyLength < 0 || valueLength < 0 ||
+        RECORD_HEADER_SIZE + (long)keyLength + valueLength != loc.length) {
+      return null;
+    }
+    CRC32 crc = new CRC32();
+    ByteBuffer payload = record.duplicate();
+    payload.position(RECORD_HEADER_SIZE);
+    crc.update(payload);
+    if (crc.getValue() != record.getLong(12)) {
+      return null;
+    }
+    return record;
+  }
+  
+  /**
+   * Get a view on a record in a mapped segment
+   * @param segment the segment
+   * @param loc the record's location
+   * @return the view
+   */
+  private static ByteBuffer slice(MappedByteBuffer segment, Location loc) {
+    ByteBuffer record = segment.duplicate();
+    record.position((int)loc.offset);
+    record.limit((int)(loc.offset + loc.length));
+    return record.slice();
+  }
+  
+  /**
+   * Convert an index entry to bytes
+   * @param key the record's key
+   * @param loc the record's location
+   * @return the encoded entry
+   */
+  private static ByteBuffer encodeIndexEntry(String key, Location loc) {
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer entry = ByteBuffer.allocate(2 + keyBytes.length + 4 + 8 + 4);
+    entry.putShort((short)keyBytes.length);
+    entry.put(keyBytes);
+    entry.putInt(loc.segment);
+    entry.putLong(loc.offset);
+    entry.putInt(loc.length);
+    entry.flip();
+    return entry;
+  }
+  
+  /**
+   * Read bytes from a file
+   * @param channel the file
+   * @param position the position of the first byte to read
+   * @param length the number of bytes to read
+   * @return a buffer containing the bytes read
+   * @throws IOException if the bytes could not be read
+   */
+  private static ByteBuffer readFully(FileChannel channel, long position,
+      int length) throws IOException {
+    ByteBuffer buf = ByteBuffer.allocate(length);
+    while (buf.hasRemaining()) {
+      int n = channel.read(buf, position + buf.position());
+      if (n < 0) {
+        throw new IOException("Unexpected end of file");
+      }
+    }
+    buf.flip();
+    return buf;
+  }
+  
+  /**
+   * Write a buffer to a file
+   * @param channel the file
+   * @param buf the buffer to write
+   * @param position the position in the file to write to
+   * @throws IOException if the buffer could not be written
+   */
+  private static void writeFully(FileChannel channel, ByteBuffer buf,
+      long position) throws IOException {
+    long p = position;
+    while (buf.hasRemaining()) {
+      p += channel.write(buf, p);
+    }
+  }
+  
+  /**
+   * @return the path to the index file
+   */
+  private Path getIndexPath() {
+    return new File(cacheDir, INDEX_FILE).toPath();
+  }
+  
+  /**
+   * @return the path to the lock file
+   */
+  private Path getLockPath() {
+    return new File(cacheDir, LOCK_FILE).toPath();
+  }
+  
+  /**
+   * Get the path to a segment file
+   * @param segment the number of the segment
+   * @return the path
+   */
+  private Path getSegmentPath(int segment) {
+    return new File(cacheDir, SEGMENT_PREFIX + segment + SEGMENT_EXTENSION).toPath();
+  }
+  
+  /**
+   * Get the number of a segment from its file name
+   * @param name the file name
+   * @return the segment number or -1 if the file is not a segment
+   */
+  private static int getSegmentNumber(String name) {
+    if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_EXTENSION)) {
+      return -1;
+    }
+    try {
+      return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+          name.length() - SEGMENT_EXTENSION.length()));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+  
+  /**
+   * The location of a record
+   */
+  private static class Location {
+    /**
+     * The number of the segment containing the record
+     */
+    final int segment;
+    
+    /**
+     * The position of the record in the segment
+     */
+    final long offset;
+    
+    /**
+     * The length of the record in bytes
+     */
+    final int length;
+    
+    /**
+     * Creates a new location
+     * @param segment the number of the segment containing the record
+     * @param offset the position of the record in the segment
+     * @param length the length of the record in bytes
+     */
+    Location(int segment, long offset, int length) {
+      this.segment = segment;
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+}
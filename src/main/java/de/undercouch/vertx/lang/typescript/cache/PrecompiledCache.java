@@ -0,0 +1,80 @@
+// Copyright 2016 Michel Kraemer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.undercouch.vertx.lang.typescript.cache;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import de.undercouch.vertx.lang.typescript.compiler.Source;
+
+/**
+ * A read-only cache serving code that has been compiled at build time
+ * and put on the class path (see
+ * {@link de.undercouch.vertx.lang.typescript.TypeScriptPrecompiler}).
+ * Entries are stored as plain UTF-8 resources in the directory
+ * {@value #PATH}. The compiler does not have to be initialized to serve
+ * code from this cache. Hits and misses are not recorded here because
+ * most lookups are for files that have not been precompiled. The
+ * {@link de.undercouch.vertx.lang.typescript.TypeScriptClassLoader}
+ * records them instead.
+ * @author Michel Kraemer
+ */
+public class PrecompiledCache implements Cache {
+  /**
+   * The directory on the class path containing precompiled code
+   */
+  public static final String PATH = "META-INF/vertx-typescript/precompiled/";
+  
+  /**
+   * The fingerprint recorded in the manifests of precompiled code. Code
+   * compiled at build time stays valid no matter which compiler is
+   * available at runtime.
+   */
+  public static final String FINGERPRINT = "precompiled";
+  
+  /**
+   * The class loader used to load precompiled code
+   */
+  private final ClassLoader classLoader;
+  
+  /**
+   * Creates a new cache
+   * @param classLoader the class loader used to load precompiled code
+   */
+  public PrecompiledCache(ClassLoader classLoader) {
+    this.classLoader = classLoader;
+  }
+  
+  @Override
+  public ByteBuffer getBytes(String key) {
+    URL u = classLoader.getResource(PATH + key);
+    if (u == null) {
+      return null;
+    }
+    try {
+      return Source.fromURL(u, StandardCharsets.UTF_8).getBytes();
+    } catch (IOException e) {
+      // could not read precompiled code
+      return null;
+    }
+  }
+
+  @Override
+  public void putBytes(String key, ByteBuffer value) {
+    // precompiled code can only be written at build time
+  }
+}
@@ -0,0 +1,334 @@
+// Copyright 2016 Michel Kraemer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.undercouch.vertx.lang.typescript.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import de.undercouch.vertx.lang.typescript.compiler.Source;
+import de.undercouch.vertx.lang.typescript.metrics.Metrics;
+
+/**
+ * A cache for source files that can be shared between multiple class
+ * loaders so files such as type definitions are only read and decoded once.
+ * Each time a cached file is requested the cache checks if it is still up
+ * to date. Files in the file system are compared by modification time and
+ * size. Resources in jar files are compared by modification time and size
+ * of the jar file. Sources from other locations are compared by the
+ * modification time and content length their {@link URLConnection}
+ * reports. If it reports neither, the source is never read again while it
+ * is cached. Modification times have a limited resolution, so a file
+ * changed shortly before it was cached may change again without getting a
+ * new time stamp. Such files are read again and compared by digest until
+ * their modification time is old enough. Files are
+ * kept as UTF-8 bytes and only decoded when the compiler needs their text.
+ * Resources from jar files (typically large type definitions that never
+ * change) are kept outside the Java heap. The cache
+ * is bounded by the estimated number of bytes its entries occupy. If this
+ * limit is exceeded the least recently used entries are evicted. Instances
+ * of this class can be safely shared between threads.
+ * @author Michel Kraemer
+ */
+public class SourceCache {
+  /**
+   * The default maximum size of the cache in bytes
+   */
+  public static final long DEFAULT_MAX_SIZE = 32 * 1024 * 1024;
+  
+  /**
+   * The estimated number of bytes each entry occupies in addition to
+   * the source file's UTF-8 bytes
+   */
+  private static final int ENTRY_OVERHEAD = 256;
+  
+  /**
+   * The resolution of file modification times we have to expect in
+   * milliseconds (some file systems only store even seconds)
+   */
+  private static final long MODIFICATION_TIME_RESOLUTION = 2000;
+  
+  /**
+   * The maximum size of the cache in bytes
+   */
+  private final long maxSize;
+  
+  /**
+   * The cached entries in access order (least recently used first). Keys
+   * are the URLs of the source files.
+   */
+  private final LinkedHashMap<String, Entry> entries =
+      new LinkedHashMap<>(16, 0.75f, true);
+  
+  /**
+   * The estimated number of bytes all entries currently occupy
+   */
+  private long size;
+  
+  /**
+   * Creates a cache with a default maximum size
+   */
+  public SourceCache() {
+    this(DEFAULT_MAX_SIZE);
+  }
+  
+  /**
+   * Creates a new cache
+   * @param maxSize the maximum size of the cache in bytes
+   */
+  public SourceCache(long maxSize) {
+    if (maxSize < 0) {
+      throw new IllegalArgumentException("Maximum cache size must not be negative");
+    }
+    this.maxSize = maxSize;
+  }
+  
+  /**
+   * @return the estimated number of bytes all entries currently occupy
+   */
+  public synchronized long getSize() {
+    return size;
+  }
+  
+  /**
+   * Get a source file from the cache or read it if it has not been cached
+   * yet or if it has changed since it was cached
+   * @param url the source file's URL
+   * @return the source file
+   * @throws IOException if the file could not be read
+   */
+  public Source get(URL url) throws IOException {
+    String key = url.toExternalForm();
+    long now = System.currentTimeMillis();
+    File file = getFile(url);
+    URLConnection conn = null;
+    Stamp stamp;
+    if (file != null) {
+      stamp = new Stamp(file.lastModified(), file.length());
+    } else {
+      conn = openConnection(url);
+      stamp = new Stamp(conn.getLastModified(), conn.getContentLengthLong());
+    }
+    
+    Entry e;
+    synchronized (this) {
+      e = entries.get(key);
+    }
+    boolean sameStamp = e != null && e.stamp.equals(stamp);
+    if (sameStamp && !e.isRacy()) {
+      return e.source;
+    }
+    
+    // read the file outside the lock. the stamp has been taken before
+    // reading, so if the file changes in the meantime, it will just be
+    // read again next time.
+    Source result = read(conn != null ? conn : openConnection(url), url);
+    Metrics.get().sourceRead(result.getLength());
+    if (sameStamp && result.getDigest().equals(e.source.getDigest())) {
+      // the file has not changed. keep the instance other class loaders
+      // may already use.
+      result = e.source;
+    } else if ("jar".equals(url.getProtocol())) {
+      result = result.toDirect();
+    }
+    put(key, new Entry(result, stamp, now));
+    return result;
+  }
+  
+  /**
+   * Open a connection to a source file
+   * @param url the source file's URL
+   * @return the connection
+   * @throws IOException if the connection could not be opened
+   */
+  private static URLConnection openConnection(URL url) throws IOException {
+    URLConnection conn = url.openConnection();
+    
+    // do not let the JDK reuse an open jar file. it would not notice if
+    // the jar file has been replaced.
+    conn.setUseCaches(false);
+    
+    return conn;
+  }
+  
+  /**
+   * Read a source file
+   * @param conn a connection to the source file
+   * @param url the source file's URL
+   * @return the source file
+   * @throws IOException if the file could not be read
+   */
+  private static Source read(URLConnection conn, URL url) throws IOException {
+    try (InputStream is = conn.getInputStream()) {
+      return Source.fromStream(is, url.toURI(), StandardCharsets.UTF_8);
+    } catch (URISyntaxException e) {
+      throw new IOException("Illegal URI", e);
+    }
+  }
+  
+  /**
+   * Put an entry into the cache and evict least recently used entries
+   * if necessary
+   * @param key the entry's key
+   * @param e the entry
+   */
+  private synchronized void put(String key, Entry e) {
+    Entry old = entries.remove(key);
+    if (old != null) {
+      size -= old.weight;
+    }
+    
+    if (e.weight > maxSize) {
+      // the source would evict everything else
+      return;
+    }
+    
+    entries.put(key, e);
+    size += e.weight;
+    
+    Iterator<Entry> it = entries.values().iterator();
+    while (size > maxSize && it.hasNext()) {
+      Entry lru = it.next();
+      it.remove();
+      size -= lru.weight;
+    }
+  }
+  
+  /**
+   * Get the file whose modification time and size indicate if the
+   * resource with the given URL has changed
+   * @param url the resource's URL
+   * @return the file or <code>null</code> if the resource is neither a
+   * file in the file system nor an entry of a jar file in the file system
+   */
+  private static File getFile(URL url) {
+    String protocol = url.getProtocol();
+    if ("jar".equals(protocol)) {
+      // jar URLs look like jar:file:/path/to/file.jar!/entry
+      String path = url.getPath();
+      int sep = path.indexOf("!/");
+      if (sep < 0) {
+        return null;
+      }
+      try {
+        return getFile(new URL(path.substring(0, sep)));
+      } catch (IOException e) {
+        return null;
+      }
+    }
+    if ("file".equals(protocol)) {
+      try {
+        return new File(url.toURI());
+      } catch (URISyntaxException | IllegalArgumentException e) {
+        return null;
+      }
+    }
+    return null;
+  }
+  
+  /**
+   * Modification time and size of a file or of the resource a
+   * {@link URLConnection} refers to
+   */
+  private static class Stamp {
+    /**
+     * The file's modification time
+     */
+    private final long lastModified;
+    
+    /**
+     * The file's size
+     */
+    private final long length;
+    
+    /**
+     * Creates a new stamp
+     * @param lastModified the file's modification time (0 if unknown)
+     * @param length the file's size (-1 if unknown)
+     */
+    Stamp(long lastModified, long length) {
+      this.lastModified = lastModified;
+      this.length = length;
+    }
+    
+    @Override
+    public int hashCode() {
+      return Long.hashCode(lastModified) * 31 + Long.hashCode(length);
+    }
+    
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Stamp)) {
+        return false;
+      }
+      Stamp other = (Stamp)obj;
+      return lastModified == other.lastModified && length == other.length;
+    }
+  }
+  
+  /**
+   * An entry in the cache
+   */
+  private static class Entry {
+    /**
+     * The cached source file
+     */
+    private final Source source;
+    
+    /**
+     * The stamp of the file the source was read from
+     */
+    private final Stamp stamp;
+    
+    /**
+     * The time when the source was read
+     */
+    private final long cachedAt;
+    
+    /**
+     * The estimated number of bytes the entry occupies
+     */
+    private final long weight;
+    
+    /**
+     * Creates a new entry
+     * @param source the cached source file
+     * @param stamp the stamp of the file the source was read from
+     * @param cachedAt the time when the source was read
+     */
+    Entry(Source source, Stamp stamp, long cachedAt) {
+      this.source = source;
+      this.stamp = stamp;
+      this.cachedAt = cachedAt;
+      this.weight = ENTRY_OVERHEAD + source.getLength();
+    }
+    
+    /**
+     * Check if the file may have been modified again within the resolution
+     * of its modification time after the source was read
+     * @return true if the stamp is not sufficient to tell if the file
+     * has changed
+     */
+    boolean isRacy() {
+      return stamp.lastModified + MODIFICATION_TIME_RESOLUTION > cachedAt;
+    }
+  }
+}
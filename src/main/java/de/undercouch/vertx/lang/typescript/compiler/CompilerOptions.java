@@ -0,0 +1,220 @@
+// Copyright 2016 Michel Kraemer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.undercouch.vertx.lang.typescript.compiler;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Options for the TypeScript compilers
+ * @author Michel Kraemer
+ */
+public class CompilerOptions {
+  /**
+   * Path to the package descriptor of the TypeScript compiler
+   */
+  private static final String TYPESCRIPT_PACKAGE_JSON = "typescript/package.json";
+  
+  /**
+   * The version of the TypeScript compiler on the classpath (lazily
+   * initialized)
+   * @see #getTypeScriptVersion()
+   */
+  private static String typeScriptVersion;
+  
+  /**
+   * Digests of the helper scripts the compilers use to call the TypeScript
+   * compiler. Keys are the paths of the scripts on the classpath.
+   * @see #getHelperScriptDigest(String)
+   */
+  private static final Map<String, String> helperScriptDigests = new ConcurrentHashMap<>();
+  
+  /**
+   * True if the compiler should keep the program of each compiled file and
+   * reuse unchanged parts of it the next time the file is compiled
+   */
+  private boolean incremental;
+  
+  /**
+   * True if each file should be transpiled on its own without resolving
+   * imports and without type checking
+   */
+  private boolean transpileOnly;
+  
+  /**
+   * True if compilers that support it should compile the files of a large
+   * program in parallel
+   */
+  private boolean parallel;
+  
+  /**
+   * Creates default options
+   */
+  public CompilerOptions() {
+    // nothing to do here
+  }
+  
+  /**
+   * Copy constructor
+   * @param other the options to copy
+   */
+  public CompilerOptions(CompilerOptions other) {
+    this.incremental = other.incremental;
+    this.transpileOnly = other.transpileOnly;
+    this.parallel = other.parallel;
+  }
+  
+  /**
+   * @return true if the compiler should keep the program of each compiled
+   * file and reuse unchanged parts of it the next time the file is compiled
+   */
+  public boolean isIncremental() {
+    return incremental;
+  }
+  
+  /**
+   * Specify if the compiler should keep the program of each compiled file
+   * and reuse unchanged parts of it the next time the file is compiled.
+   * This speeds up recompilation but consumes more memory.
+   * @param incremental true if incremental compilation should be enabled
+   * @return this object
+   */
+  public CompilerOptions setIncremental(boolean incremental) {
+    this.incremental = incremental;
+    return this;
+  }
+  
+  /**
+   * @return true if each file should be transpiled on its own without
+   * resolving imports and without type checking
+   */
+  public boolean isTranspileOnly() {
+    return transpileOnly;
+  }
+  
+  /**
+   * Specify if each file should be transpiled on its own without resolving
+   * imports and without type checking. This is much faster than a full
+   * compilation but errors will only be detected if the file is
+   * type-checked separately (see {@link TypeScriptCompiler#check(String,
+   * SourceFactory)}).
+   * @param transpileOnly true if files should only be transpiled
+   * @return this object
+   */
+  public CompilerOptions setTranspileOnly(boolean transpileOnly) {
+    this.transpileOnly = transpileOnly;
+    return this;
+  }
+  
+  /**
+   * @return true if compilers that support it should compile the files of
+   * a large program in parallel
+   */
+  public boolean isParallel() {
+    return parallel;
+  }
+  
+  /**
+   * Specify if compilers that support it should compile the files of a
+   * large program in parallel. The program's dependency graph will be
+   * resolved first and the files will then be distributed to multiple
+   * workers. The generated code and the problems reported are the same as
+   * if the program was compiled by a single worker, but problems are
+   * ordered by file. Currently, only {@link V8CompilerPool} supports
+   * this option.
+   * @param parallel true if files should be compiled in parallel
+   * @return this object
+   */
+  public CompilerOptions setParallel(boolean parallel) {
+    this.parallel = parallel;
+    return this;
+  }
+  
+  /**
+   * Get a string identifying the version of the TypeScript compiler and all
+   * options that have an influence on the generated code. Code generated by
+   * compilers with different fingerprints should not be mixed up.
+   * @return the fingerprint
+   */
+  public String getFingerprint() {
+    String result = "typescript=" + getTypeScriptVersion();
+    if (transpileOnly) {
+      result += ";transpileOnly";
+    }
+    return result;
+  }
+  
+  /**
+   * Get a string identifying the compiler backend, the version of the
+   * TypeScript compiler, the helper script calling it and all options that
+   * have an influence on the generated code
+   * @param compiler the name of the compiler backend (see
+   * {@link TypeScriptCompiler#getName()})
+   * @param helperScript the path of the helper script on the classpath
+   * @return the fingerprint
+   * @see #getFingerprint()
+   */
+  public String getFingerprint(String compiler, String helperScript) {
+    return getFingerprint() + ";compiler=" + compiler + ";helper=" +
+        getHelperScriptDigest(helperScript);
+  }
+  
+  /**
+   * Get the digest of a helper script
+   * @param helperScript the path of the helper script on the classpath
+   * @return the digest or "unknown" if the script could not be read
+   */
+  private static String getHelperScriptDigest(String helperScript) {
+    return helperScriptDigests.computeIfAbsent(helperScript, name -> {
+      URL u = CompilerOptions.class.getClassLoader().getResource(name);
+      if (u != null) {
+        try {
+          return Source.fromURL(u, StandardCharsets.UTF_8).getDigest();
+        } catch (IOException e) {
+          // digest cannot be determined
+        }
+      }
+      return "unknown";
+    });
+  }
+  
+  /**
+   * @return the version of the TypeScript compiler on the classpath or
+   * "unknown" if the version could not be determined
+   */
+  private static synchronized String getTypeScriptVersion() {
+    if (typeScriptVersion == null) {
+      typeScriptVersion = "unknown";
+      URL u = CompilerOptions.class.getClassLoader().getResource(TYPESCRIPT_PACKAGE_JSON);
+      if (u != null) {
+        try {
+          String packageJson = Source.fromURL(u, StandardCharsets.UTF_8).toString();
+          Matcher m = Pattern.compile("\"version\"\\s*:\\s*\"(.+?)\"").matcher(packageJson);
+          if (m.find()) {
+            typeScriptVersion = m.group(1);
+          }
+        } catch (IOException e) {
+          // version cannot be determined
+        }
+      }
+    }
+    return typeScriptVersion;
+  }
+}
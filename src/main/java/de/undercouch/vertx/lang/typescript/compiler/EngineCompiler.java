@@ -14,10 +14,19 @@
 
 package de.undercouch.vertx.lang.typescript.compiler;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
@@ -25,8 +34,11 @@ import javax.script.ScriptEngine;
 import javax.script.ScriptEngineManager;
 import javax.script.ScriptException;
 
+import jdk.nashorn.api.scripting.NashornScriptEngineFactory;
 import jdk.nashorn.api.scripting.ScriptObjectMirror;
 
+import de.undercouch.vertx.lang.typescript.metrics.Metrics;
+
 /**
  * Compiles TypeScript sources with the TypeScript compiler hosted by a
  * JavaScript engine
@@ -43,11 +55,67 @@ public class EngineCompiler implements TypeScriptCompiler {
    */
   static final String COMPILE_JS = "vertx-typescript/util/compile.js";
   
+  /**
+   * The engine option that enables Nashorn's persistent code cache
+   */
+  private static final String NASHORN_PERSISTENT_CODE_CACHE_OPTION = "--persistent-code-cache";
+  
+  /**
+   * The version of the preprocessing applied to scripts before they are
+   * evaluated. Must be incremented whenever the preprocessing changes so
+   * scripts cached by an older version are not used anymore.
+   */
+  static final int SCRIPT_PREPROCESSING_VERSION = 1;
+  
+  /**
+   * The compiler options
+   */
+  private final CompilerOptions options;
+  
+  /**
+   * A directory where preprocessed scripts should be stored (may be
+   * <code>null</code>)
+   */
+  private final File codeCacheDir;
+  
   /**
    * The JavaScript engine hosting the TypeScript compiler
    */
   private ScriptEngine engine;
   
+  /**
+   * Creates a compiler with default options
+   */
+  public EngineCompiler() {
+    this(new CompilerOptions());
+  }
+  
+  /**
+   * Creates a compiler
+   * @param options the compiler options
+   */
+  public EngineCompiler(CompilerOptions options) {
+    this(options, null);
+  }
+  
+  /**
+   * Creates a compiler that stores preprocessed scripts in the given
+   * directory and enables Nashorn's persistent code cache for them. This
+   * reduces the time it takes to load the TypeScript compiler when the
+   * JVM is started again. Nashorn stores the classes it generates in the
+   * directory specified by the system property
+   * <code>nashorn.persistent.code.cache</code> or, if it is not set, in
+   * the directory <code>nashorn_code_cache</code> in the current working
+   * directory.
+   * @param options the compiler options
+   * @param codeCacheDir the cache directory (may be <code>null</code> if
+   * nothing should be cached)
+   */
+  public EngineCompiler(CompilerOptions options, File codeCacheDir) {
+    this.options = new CompilerOptions(options);
+    this.codeCacheDir = codeCacheDir;
+  }
+  
   /**
    * Creates the JavaScript engine that hosts the TypeScript compiler. Loads
    * the compiler and a helper script and evaluates them within the engine.
@@ -58,9 +126,17 @@ public class EngineCompiler implements TypeScriptCompiler {
       return engine;
     }
     
+    long initStart = System.nanoTime();
+    
     // create JavaScript engine
-    ScriptEngineManager mgr = new ScriptEngineManager();
-    engine = mgr.getEngineByName("nashorn");
+    if (codeCacheDir != null) {
+      // enable Nashorn's persistent code cache
+      engine = new NashornScriptEngineFactory().getScriptEngine(
+          NASHORN_PERSISTENT_CODE_CACHE_OPTION);
+    } else {
+      ScriptEngineManager mgr = new ScriptEngineManager();
+      engine = mgr.getEngineByName("nashorn");
+    }
     if (engine == null) {
       throw new IllegalStateException("Could not find Nashorn JavaScript engine.");
     }
@@ -101,6 +177,8 @@ public class EngineCompiler implements TypeScriptCompiler {
         e instanceof FileNotFoundException));
     engine.put("__printlnErr", (Consumer<Object>)System.err::println);
     
+    Metrics.get().compilerInitialized(getName(), System.nanoTime() - initStart);
+    
     return engine;
   }
   
@@ -115,20 +193,141 @@ public class EngineCompiler implements TypeScriptCompiler {
     }
     
     try {
-      String src = Source.fromURL(url, StandardCharsets.UTF_8).toString();
+      Source src = Source.fromURL(url, StandardCharsets.UTF_8);
+      if (codeCacheDir != null) {
+        // Nashorn only caches classes for scripts loaded from files
+        File f = getCachedScript(src, processSource);
+        engine.put("__vertxScriptFile", f.getAbsolutePath());
+        engine.eval("load(__vertxScriptFile)");
+        return;
+      }
+      String s = src.toString();
       if (processSource != null) {
-        src = processSource.apply(src);
+        s = processSource.apply(s);
       }
-      engine.eval(src);
+      engine.eval(s);
     } catch (ScriptException | IOException e) {
       throw new IllegalStateException("Could not evaluate " + name, e);
     }
   }
   
+  /**
+   * Get the preprocessed version of a script from the cache directory.
+   * Preprocess the script and write it to the cache directory if necessary.
+   * The name of the cached file depends on the original script and on
+   * {@link #SCRIPT_PREPROCESSING_VERSION}.
+   * @param src the original script
+   * @param processSource a function that preprocesses the script (may be
+   * <code>null</code>)
+   * @return the file containing the preprocessed script
+   * @throws IOException if the file could not be written
+   */
+  File getCachedScript(Source src, Function<String, String> processSource)
+      throws IOException {
+    String name = src.getDigest();
+    if (processSource != null) {
+      name += "-" + SCRIPT_PREPROCESSING_VERSION;
+    }
+    File f = new File(codeCacheDir, name + ".js");
+    if (f.exists()) {
+      return f;
+    }
+    
+    String s = src.toString();
+    if (processSource != null) {
+      s = processSource.apply(s);
+    }
+    
+    // write to a temporary file first so other processes never see
+    // an incomplete script
+    if (!codeCacheDir.exists() && !codeCacheDir.mkdirs()) {
+      throw new IOException("Could not create directory " + codeCacheDir);
+    }
+    Path tmp = Files.createTempFile(codeCacheDir.toPath(), name, ".tmp");
+    try {
+      Files.write(tmp, s.getBytes(StandardCharsets.UTF_8));
+      try {
+        Files.move(tmp, f.toPath(), StandardCopyOption.ATOMIC_MOVE,
+            StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(tmp, f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+    return f;
+  }
+  
   @Override
-  public String compile(String filename, SourceFactory sourceFactory) throws IOException {
+  public synchronized String compile(String filename, SourceFactory sourceFactory) throws IOException {
+    // this method is synchronized because neither the engine nor the
+    // caches kept by the helper script are thread-safe
     ScriptEngine e = getEngine();
     ScriptObjectMirror o = (ScriptObjectMirror)e.get("compileTypescript");
-    return (String)o.call(null, filename, sourceFactory);
+    return (String)o.call(null, filename, sourceFactory, options);
+  }
+  
+  @Override
+  public synchronized Map<String, String> compileModules(String filename,
+      SourceFactory sourceFactory) throws IOException {
+    ScriptEngine e = getEngine();
+    ScriptObjectMirror o = (ScriptObjectMirror)e.get("compileTypescriptModules");
+    ModuleCollector collector = new ModuleCollector();
+    o.call(null, filename, sourceFactory, options, collector);
+    return collector.outputs;
+  }
+  
+  @Override
+  public synchronized List<String> check(String filename, SourceFactory sourceFactory)
+      throws IOException {
+    ScriptEngine e = getEngine();
+    ScriptObjectMirror o = (ScriptObjectMirror)e.get("checkTypescript");
+    List<Object> diagnostics = new ArrayList<>();
+    o.call(null, filename, sourceFactory, options, diagnostics);
+    
+    // diagnostics may not be Java strings but JavaScript string objects
+    List<String> result = new ArrayList<>();
+    for (Object d : diagnostics) {
+      result.add(String.valueOf(d));
+    }
+    return result;
+  }
+  
+  /**
+   * Discards the JavaScript engine
+   */
+  @Override
+  public synchronized void close() {
+    engine = null;
+  }
+  
+  @Override
+  public String getFingerprint() {
+    return options.getFingerprint(getName(), COMPILE_JS);
+  }
+  
+  @Override
+  public String getName() {
+    return "nashorn";
+  }
+  
+  /**
+   * Receives the code the helper script generates for each compiled file.
+   * Must be public so the script can call it.
+   */
+  public static class ModuleCollector {
+    /**
+     * Maps names of compiled files to the generated code
+     */
+    private final Map<String, String> outputs = new LinkedHashMap<>();
+    
+    /**
+     * Called by the helper script for each generated file
+     * @param filename the name of the compiled file
+     * @param data the generated code
+     */
+    public void output(String filename, String data) {
+      outputs.merge(filename, data, String::concat);
+    }
   }
 }
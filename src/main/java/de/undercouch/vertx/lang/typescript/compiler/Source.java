@@ -19,17 +19,24 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.ref.SoftReference;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Base64;
 
 /**
- * Represents a source file
+ * Represents a source file. The file's contents are either kept as text or
+ * as UTF-8 bytes. In the latter case, the text is only decoded when it is
+ * actually needed and the garbage collector may reclaim it again under
+ * memory pressure. Digests, hash codes and equality are calculated on the
+ * bytes, so they never require decoding.
  * @author Michel Kraemer
  */
 public class Source {
@@ -44,25 +51,70 @@ public class Source {
   private final URI uri;
   
   /**
-   * The file's contents
+   * The file's contents (<code>null</code> if the source is backed by bytes)
    */
   private final String contents;
   
+  /**
+   * The file's contents as read-only UTF-8 bytes (<code>null</code> if the
+   * source is backed by a string)
+   */
+  private final ByteBuffer bytes;
+  
+  /**
+   * The text decoded from {@link #bytes} (may be <code>null</code> if it
+   * has not been decoded yet)
+   */
+  private SoftReference<String> decoded;
+  
   /**
    * The SHA-1 digest of the file's contents
    * @see #getDigest()
    */
   private String digest;
   
+  /**
+   * The cached hash code (0 if it has not been calculated yet)
+   */
+  private int hash;
+  
   /**
    * Creates a new source file object
    * @param uri the file's URI
    * @param contents the file contents
    */
   public Source(URI uri, String contents) {
+    this(uri, contents, null, null);
+  }
+  
+  /**
+   * Creates a new source file object
+   * @param uri the file's URI
+   * @param contents the file contents (<code>null</code> if the source
+   * is backed by bytes)
+   * @param bytes the file contents as read-only UTF-8 bytes
+   * (<code>null</code> if the source is backed by a string)
+   * @param digest the SHA-1 digest of the file's contents (may be
+   * <code>null</code> if it should be calculated on demand)
+   */
+  private Source(URI uri, String contents, ByteBuffer bytes, String digest) {
     this.filename = basename(uri.toString());
     this.uri = uri;
     this.contents = contents;
+    this.bytes = bytes;
+    this.digest = digest;
+  }
+  
+  /**
+   * Creates a new source object from UTF-8 bytes. The bytes will only be
+   * decoded when the source's text is needed.
+   * @param uri the file's URI
+   * @param bytes the file contents between the buffer's position and its
+   * limit. The buffer's contents must not be modified afterwards.
+   * @return the new source object
+   */
+  public static Source fromBytes(URI uri, ByteBuffer bytes) {
+    return new Source(uri, null, bytes.slice().asReadOnlyBuffer(), null);
   }
   
   /**
@@ -98,7 +150,9 @@ public class Source {
   }
   
   /**
-   * Creates a new source object from a stream. Does not close the given stream.
+   * Creates a new source object from a stream. Does not close the given
+   * stream. If the stream is read as UTF-8, the source keeps the bytes read
+   * and the digest of its contents is calculated while reading.
    * @param is the input stream to read
    * @param uri the file's URI
    * @param cs the character set to use when reading
@@ -106,9 +160,53 @@ public class Source {
    * @throws IOException if reading from the given stream failed
    */
   public static Source fromStream(InputStream is, URI uri, Charset cs) throws IOException {
-    byte[] barr = readFully(is);
-    String source = new String(barr, cs);
-    return new Source(uri, source);
+    if (!StandardCharsets.UTF_8.equals(cs)) {
+      // the digest is defined on UTF-8 bytes, so we cannot use the raw
+      // bytes to calculate it
+      byte[] barr = readFully(is);
+      return new Source(uri, new String(barr, cs));
+    }
+    
+    MessageDigest md = newDigest();
+    byte[] barr = readFully(new DigestInputStream(is, md));
+    return new Source(uri, null, ByteBuffer.wrap(barr).asReadOnlyBuffer(),
+        encodeDigest(md.digest()));
+  }
+  
+  /**
+   * Creates a copy of this source whose bytes are kept outside the Java
+   * heap. Useful for large files that never change (e.g. type definitions
+   * on the classpath).
+   * @return the copy
+   */
+  public Source toDirect() {
+    ByteBuffer src = getBytes();
+    ByteBuffer direct = ByteBuffer.allocateDirect(src.remaining());
+    direct.put(src);
+    direct.flip();
+    Source result = new Source(uri, null, direct.asReadOnlyBuffer(), digest);
+    result.hash = hash;
+    return result;
+  }
+  
+  /**
+   * @return the file's contents as a read-only buffer of UTF-8 bytes
+   */
+  public ByteBuffer getBytes() {
+    if (bytes != null) {
+      return bytes.duplicate();
+    }
+    return ByteBuffer.wrap(contents.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+  }
+  
+  /**
+   * @return the number of UTF-8 bytes of the file's contents
+   */
+  public int getLength() {
+    if (bytes != null) {
+      return bytes.remaining();
+    }
+    return getBytes().remaining();
   }
   
   /**
@@ -131,31 +229,57 @@ public class Source {
    */
   public String getDigest() {
     if (digest == null) {
-      MessageDigest md;
-      try {
-        md = MessageDigest.getInstance("SHA-1");
-      } catch (NoSuchAlgorithmException e) {
-        throw new RuntimeException(e);
-      }
-      
-      byte[] digestBytes = md.digest(contents.getBytes(StandardCharsets.UTF_8));
-      digest = Base64.getUrlEncoder().encodeToString(digestBytes);
+      MessageDigest md = newDigest();
+      md.update(getBytes());
+      digest = encodeDigest(md.digest());
     }
     return digest;
   }
   
+  /**
+   * @return a new SHA-1 message digest
+   */
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+  
+  /**
+   * Converts digest bytes to a string
+   * @param digestBytes the bytes
+   * @return the string
+   */
+  private static String encodeDigest(byte[] digestBytes) {
+    return Base64.getUrlEncoder().encodeToString(digestBytes);
+  }
+  
   @Override
   public String toString() {
-    return contents;
+    if (contents != null) {
+      return contents;
+    }
+    String result = decoded != null ? decoded.get() : null;
+    if (result == null) {
+      result = StandardCharsets.UTF_8.decode(bytes.duplicate()).toString();
+      decoded = new SoftReference<>(result);
+    }
+    return result;
   }
   
   @Override
   public int hashCode() {
-    final int prime = 31;
-    int result = 1;
-    result = prime * result + ((contents == null) ? 0 : contents.hashCode());
-    result = prime * result + ((filename == null) ? 0 : filename.hashCode());
-    result = prime * result + ((uri == null) ? 0 : uri.hashCode());
+    int result = hash;
+    if (result == 0) {
+      final int prime = 31;
+      result = 1;
+      result = prime * result + getDigest().hashCode();
+      result = prime * result + ((filename == null) ? 0 : filename.hashCode());
+      result = prime * result + ((uri == null) ? 0 : uri.hashCode());
+      hash = result;
+    }
     return result;
   }
 
@@ -174,11 +298,13 @@ public class Source {
     }
     
     Source other = (Source) obj;
-    if (contents == null) {
-      if (other.contents != null) {
-        return false;
-      }
-    } else if (!contents.equals(other.contents)) {
+    if (hash != 0 && other.hash != 0 && hash != other.hash) {
+      return false;
+    }
+    
+    // comparing digests is much faster than comparing large files and
+    // does not require decoding them
+    if (!getDigest().equals(other.getDigest())) {
       return false;
     }
     
@@ -15,12 +15,17 @@
 package de.undercouch.vertx.lang.typescript.compiler;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 
 /**
- * Compiles TypeScript source files
+ * Compiles TypeScript source files. Compilers may hold native resources
+ * or external processes and should be closed when they are not needed
+ * anymore.
  * @author Michel Kraemer
  */
-public interface TypeScriptCompiler {
+public interface TypeScriptCompiler extends AutoCloseable {
   /**
    * Compiles the given TypeScript file
    * @param filename the name of the file to compile
@@ -29,4 +34,72 @@ public interface TypeScriptCompiler {
    * @throws IOException if one of the source files to compile could not be loaded
    */
   String compile(String filename, SourceFactory sourceFactory) throws IOException;
+  
+  /**
+   * Compiles the given TypeScript file and all files it imports and
+   * returns the code generated for each of them separately. The default
+   * implementation just returns the code generated by
+   * {@link #compile(String, SourceFactory)} for the given file.
+   * @param filename the name of the file to compile
+   * @param sourceFactory the factory that loads source files
+   * @return a map of names of compiled files to the code generated for
+   * them. The map's iteration order is the order in which the code has
+   * been generated. Concatenating all values yields the same code as
+   * {@link #compile(String, SourceFactory)}.
+   * @throws IOException if one of the source files to compile could not be loaded
+   */
+  default Map<String, String> compileModules(String filename,
+      SourceFactory sourceFactory) throws IOException {
+    return Collections.singletonMap(filename, compile(filename, sourceFactory));
+  }
+  
+  /**
+   * Type-checks the given TypeScript file and all files it imports without
+   * generating code. The default implementation throws an
+   * {@link UnsupportedOperationException}. It does not return an empty
+   * list because this would report that the file has no problems.
+   * @param filename the name of the file to check
+   * @param sourceFactory the factory that loads source files
+   * @return the problems found by the compiler (empty if there are none)
+   * @throws IOException if one of the source files could not be loaded
+   * @throws UnsupportedOperationException if the compiler cannot type-check
+   * files without generating code
+   */
+  default List<String> check(String filename, SourceFactory sourceFactory)
+      throws IOException {
+    throw new UnsupportedOperationException(getName() +
+        " does not support type-checking");
+  }
+  
+  /**
+   * Get a string identifying the compiler backend, the version of the
+   * TypeScript compiler, the helper script calling it and all options that
+   * have an influence on the generated code. The default implementation
+   * returns the compiler's fully qualified class name. Compilers whose
+   * output depends on options or on the TypeScript version should override
+   * this method, otherwise cached code is not invalidated when they change.
+   * @return the fingerprint
+   * @see CompilerOptions#getFingerprint(String, String)
+   */
+  default String getFingerprint() {
+    return getClass().getName();
+  }
+  
+  /**
+   * Get a short name identifying the compiler (e.g. in metrics). The
+   * default implementation returns the compiler's simple class name.
+   * @return the name
+   */
+  default String getName() {
+    return getClass().getSimpleName();
+  }
+  
+  /**
+   * Releases all resources held by this compiler. The compiler must not be
+   * used anymore afterwards. The default implementation does nothing.
+   */
+  @Override
+  default void close() {
+    // nothing to do by default
+  }
 }
@@ -19,6 +19,12 @@ import java.io.IOException;
 import java.lang.reflect.Method;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import com.eclipsesource.v8.JavaCallback;
 import com.eclipsesource.v8.JavaVoidCallback;
@@ -27,6 +33,8 @@ import com.eclipsesource.v8.V8Array;
 import com.eclipsesource.v8.V8Object;
 import com.eclipsesource.v8.V8Value;
 
+import de.undercouch.vertx.lang.typescript.metrics.Metrics;
+
 /**
  * Compiles TypeScript sources using a V8 runtime
  * @author Michel Kraemer
@@ -48,11 +56,67 @@ public class V8Compiler implements TypeScriptCompiler {
     }
   }
   
+  /**
+   * A problem found while compiling a subset of the files of a program
+   * (see {@link V8Compiler#compileFiles(String, SourceFactory, List,
+   * boolean, Map, List)})
+   */
+  static class FileDiagnostic {
+    /**
+     * The kind of the problem (<code>"syntactic"</code>,
+     * <code>"global"</code>, <code>"semantic"</code> or <code>"emit"</code>)
+     */
+    final String kind;
+    
+    /**
+     * The name of the file the problem was found in (an empty string if
+     * it is not related to a specific file)
+     */
+    final String filename;
+    
+    /**
+     * A human-readable message
+     */
+    final String message;
+    
+    /**
+     * Creates a new diagnostic
+     * @param kind the kind of the problem
+     * @param filename the name of the file the problem was found in
+     * @param message a human-readable message
+     */
+    FileDiagnostic(String kind, String filename, String message) {
+      this.kind = kind;
+      this.filename = filename;
+      this.message = message;
+    }
+  }
+  
+  /**
+   * The compiler options
+   */
+  private final CompilerOptions options;
+  
   /**
    * The V8 runtime hosting the TypeScript compiler
    */
   private V8 runtime;
   
+  /**
+   * Creates a compiler with default options
+   */
+  public V8Compiler() {
+    this(new CompilerOptions());
+  }
+  
+  /**
+   * Creates a compiler
+   * @param options the compiler options
+   */
+  public V8Compiler(CompilerOptions options) {
+    this.options = new CompilerOptions(options);
+  }
+  
   /**
    * Create a V8 runtime that hosts the TypeScript compiler. Load the
    * compiler and a helper script and evaluates them within the runtime.
@@ -60,6 +124,8 @@ public class V8Compiler implements TypeScriptCompiler {
    */
   private V8 getRuntime() {
     if (runtime == null) {
+      long start = System.nanoTime();
+      
       // create runtime
       runtime = V8.createV8Runtime();
       
@@ -79,6 +145,8 @@ public class V8Compiler implements TypeScriptCompiler {
       JavaVoidCallback printlnErr = (V8Object receiver, V8Array parameters) ->
         java.lang.System.err.println(parameters.get(0));
       runtime.registerJavaMethod(printlnErr, "__printlnErr");
+      
+      Metrics.get().compilerInitialized(getName(), System.nanoTime() - start);
     }
     return runtime;
   }
@@ -101,14 +169,119 @@ public class V8Compiler implements TypeScriptCompiler {
     }
   }
 
+  /**
+   * Wrap a source into a V8 object that provides the same methods to
+   * JavaScript as {@link Source} does
+   * @param runtime the V8 runtime
+   * @param source the source to wrap
+   * @return the V8 object
+   */
+  private static V8Object wrapSource(V8 runtime, Source source) {
+    V8Object result = new V8Object(runtime);
+    JavaCallback toString = (V8Object receiver, V8Array parameters) ->
+      source.toString();
+    result.registerJavaMethod(toString, "toString");
+    JavaCallback getDigest = (V8Object receiver, V8Array parameters) ->
+      source.getDigest();
+    result.registerJavaMethod(getDigest, "getDigest");
+    return result;
+  }
+
   @Override
   public String compile(String filename, SourceFactory sourceFactory)
       throws IOException {
+    return (String)call("compileTypescript", filename, sourceFactory, null, null);
+  }
+  
+  @Override
+  public Map<String, String> compileModules(String filename,
+      SourceFactory sourceFactory) throws IOException {
+    Map<String, String> result = new LinkedHashMap<>();
+    call("compileTypescriptModules", filename, sourceFactory,
+        Collections.singletonMap("output", (V8Object receiver, V8Array parameters) ->
+          result.merge(String.valueOf(parameters.get(0)),
+              String.valueOf(parameters.get(1)), String::concat)), null);
+    return result;
+  }
+  
+  @Override
+  public List<String> check(String filename, SourceFactory sourceFactory)
+      throws IOException {
+    List<String> result = new ArrayList<>();
+    call("checkTypescript", filename, sourceFactory,
+        Collections.singletonMap("add", (V8Object receiver, V8Array parameters) ->
+          result.add(String.valueOf(parameters.get(0)))), null);
+    return result;
+  }
+  
+  /**
+   * Find all files that would be generated if the given file was compiled
+   * @param filename the name of the file to compile
+   * @param sourceFactory the factory that loads source files
+   * @return the names of the source files that would be compiled in the
+   * order in which the generated code would be concatenated
+   */
+  List<String> resolve(String filename, SourceFactory sourceFactory) {
+    List<String> result = new ArrayList<>();
+    call("resolveTypescript", filename, sourceFactory,
+        Collections.singletonMap("add", (V8Object receiver, V8Array parameters) ->
+          result.add(String.valueOf(parameters.get(0)))), null);
+    return result;
+  }
+  
+  /**
+   * Compile a subset of the files that would be compiled if the given file
+   * was compiled
+   * @param filename the name of the file to compile
+   * @param sourceFactory the factory that loads source files
+   * @param files the files to compile (see
+   * {@link #resolve(String, SourceFactory)})
+   * @param reportGlobal true if problems not related to a specific file
+   * and problems in declaration files should be reported
+   * @param outputs a map receiving the code generated for each file
+   * @param diagnostics a list receiving all problems found in the given
+   * files, regardless of their kind
+   */
+  void compileFiles(String filename, SourceFactory sourceFactory,
+      List<String> files, boolean reportGlobal, Map<String, String> outputs,
+      List<FileDiagnostic> diagnostics) {
+    Map<String, JavaVoidCallback> collector = new HashMap<>();
+    collector.put("output", (V8Object receiver, V8Array parameters) ->
+      outputs.merge(String.valueOf(parameters.get(0)),
+          String.valueOf(parameters.get(1)), String::concat));
+    collector.put("diagnostic", (V8Object receiver, V8Array parameters) ->
+      diagnostics.add(new FileDiagnostic(String.valueOf(parameters.get(0)),
+          String.valueOf(parameters.get(1)), String.valueOf(parameters.get(2)))));
+    Map<String, Object> extraOptions = new HashMap<>();
+    extraOptions.put("emitFiles", String.join("\n", files));
+    extraOptions.put("reportGlobal", reportGlobal);
+    call("compileTypescriptFiles", filename, sourceFactory, collector, extraOptions);
+  }
+  
+  /**
+   * Call a function of the helper script
+   * @param function the name of the function to call
+   * @param filename the name of the file to compile
+   * @param sourceFactory the factory that loads source files
+   * @param collector callbacks that should be passed to the function as
+   * methods of an object (may be <code>null</code> if the function does
+   * not expect such an object)
+   * @param extraOptions additional options (strings or booleans) to pass
+   * to the function (may be <code>null</code>)
+   * @return the function's return value
+   */
+  private Object call(String function, String filename, SourceFactory sourceFactory,
+      Map<String, JavaVoidCallback> collector, Map<String, Object> extraOptions) {
+    V8 runtime = getRuntime();
+    List<V8Object> wrappedSources = new ArrayList<>();
     JavaCallback getSource = (V8Object receiver, V8Array parameters) -> {
       String sourceFilename = parameters.get(0).toString();
       String baseFilename = parameters.get(1).toString();
       try {
-        return sourceFactory.getSource(sourceFilename, baseFilename).toString();
+        V8Object result = wrapSource(runtime,
+            sourceFactory.getSource(sourceFilename, baseFilename));
+        wrappedSources.add(result);
+        return result;
       } catch (FileNotFoundException e) {
         throw new UncheckedFileNotFoundException();
       } catch (IOException e) {
@@ -116,10 +289,30 @@ public class V8Compiler implements TypeScriptCompiler {
       }
     };
     
-    V8 runtime = getRuntime();
     V8Object v8sourceFactory = new V8Object(runtime);
     v8sourceFactory.registerJavaMethod(getSource, "getSource");
     
+    V8Object v8options = new V8Object(runtime);
+    v8options.add("incremental", options.isIncremental());
+    v8options.add("transpileOnly", options.isTranspileOnly());
+    if (extraOptions != null) {
+      for (Map.Entry<String, Object> e : extraOptions.entrySet()) {
+        if (e.getValue() instanceof Boolean) {
+          v8options.add(e.getKey(), (Boolean)e.getValue());
+        } else {
+          v8options.add(e.getKey(), String.valueOf(e.getValue()));
+        }
+      }
+    }
+    
+    V8Object v8collector = null;
+    if (collector != null) {
+      v8collector = new V8Object(runtime);
+      for (Map.Entry<String, JavaVoidCallback> e : collector.entrySet()) {
+        v8collector.registerJavaMethod(e.getValue(), e.getKey());
+      }
+    }
+    
     V8Array args = new V8Array(runtime);
     args.push(filename);
     try {
@@ -127,18 +320,53 @@ public class V8Compiler implements TypeScriptCompiler {
       // to load V8Value
       Method push = V8Array.class.getMethod("push", V8Value.class);
       push.invoke(args, v8sourceFactory);
+      push.invoke(args, v8options);
+      if (v8collector != null) {
+        push.invoke(args, v8collector);
+      }
     } catch (ReflectiveOperationException e) {
       throw new RuntimeException(e);
     }
     
     try {
-      return runtime.executeStringFunction("compileTypescript", args);
+      return runtime.executeFunction(function, args);
     } finally {
       args.release();
       v8sourceFactory.release();
+      v8options.release();
+      if (v8collector != null) {
+        v8collector.release();
+      }
+      for (V8Object o : wrappedSources) {
+        if (!o.isReleased()) {
+          o.release();
+        }
+      }
     }
   }
   
+  /**
+   * Releases the V8 runtime. Must be called by the same thread that used
+   * the compiler.
+   */
+  @Override
+  public void close() {
+    if (runtime != null) {
+      runtime.release();
+      runtime = null;
+    }
+  }
+  
+  @Override
+  public String getFingerprint() {
+    return options.getFingerprint(getName(), EngineCompiler.COMPILE_JS);
+  }
+  
+  @Override
+  public String getName() {
+    return "v8";
+  }
+  
   /**
    * @return true if the V8 runtime is available, false otherwise
    */
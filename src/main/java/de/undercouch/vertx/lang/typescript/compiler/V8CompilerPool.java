@@ -0,0 +1,391 @@
+// Copyright 2016 Michel Kraemer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.undercouch.vertx.lang.typescript.compiler;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import de.undercouch.vertx.lang.typescript.compiler.V8Compiler.FileDiagnostic;
+
+/**
+ * A bounded pool of V8 runtimes hosting the TypeScript compiler. A V8
+ * runtime may only be accessed by the thread that created it. The pool
+ * therefore keeps a fixed number of worker threads, each of them owning
+ * its own {@link V8Compiler}, and dispatches compile requests to them.
+ * Runtimes are created lazily when a worker receives its first request.
+ * If {@link CompilerOptions#isParallel()} is set, the files of a program
+ * are distributed to all workers and compiled in parallel.
+ * Instances of this class can be safely shared between threads.
+ * @author Michel Kraemer
+ */
+public class V8CompilerPool implements TypeScriptCompiler {
+  /**
+   * A counter used to generate unique thread names
+   */
+  private static final AtomicInteger threadCount = new AtomicInteger();
+  
+  /**
+   * The options for the compilers in this pool
+   */
+  private final CompilerOptions options;
+  
+  /**
+   * The maximum number of V8 runtimes
+   */
+  private final int size;
+  
+  /**
+   * The worker threads
+   */
+  private final ExecutorService executor;
+  
+  /**
+   * The compilers confined to the worker threads
+   */
+  private final ThreadLocal<V8Compiler> compilers;
+  
+  /**
+   * Makes sure only one batch of tasks that run on every worker is queued
+   * at a time (see {@link #runOnEveryWorker(Callable)})
+   */
+  private final Object batchLock = new Object();
+  
+  /**
+   * Creates a new pool of compilers with default options
+   * @param size the maximum number of V8 runtimes
+   */
+  public V8CompilerPool(int size) {
+    this(size, new CompilerOptions());
+  }
+  
+  /**
+   * Creates a new pool
+   * @param size the maximum number of V8 runtimes
+   * @param options the options for the compilers in this pool
+   */
+  public V8CompilerPool(int size, CompilerOptions options) {
+    this(size, options, V8Compiler::new);
+  }
+  
+  /**
+   * Creates a new pool whose workers use compilers created by the given
+   * factory (useful for testing)
+   * @param size the maximum number of V8 runtimes
+   * @param options the options for the compilers in this pool
+   * @param compilerFactory creates the compiler of a worker thread
+   */
+  V8CompilerPool(int size, CompilerOptions options,
+      Function<CompilerOptions, ? extends V8Compiler> compilerFactory) {
+    if (size < 1) {
+      throw new IllegalArgumentException("Pool size must be greater than 0");
+    }
+    this.options = new CompilerOptions(options);
+    this.size = size;
+    compilers = ThreadLocal.withInitial(() -> compilerFactory.apply(this.options));
+    executor = Executors.newFixedThreadPool(size, r -> {
+      Thread t = new Thread(r, "vertx-typescript-v8-compiler-" +
+          threadCount.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+  }
+  
+  @Override
+  public String compile(String filename, SourceFactory sourceFactory)
+      throws IOException {
+    if (isParallel()) {
+      List<String> files = run(() -> compilers.get().resolve(
+          filename, sourceFactory), filename);
+      if (files.size() > 1) {
+        return String.join("", compileParallel(filename, sourceFactory,
+            files).values());
+      }
+    }
+    return run(() -> compilers.get().compile(filename, sourceFactory), filename);
+  }
+  
+  @Override
+  public Map<String, String> compileModules(String filename,
+      SourceFactory sourceFactory) throws IOException {
+    if (isParallel()) {
+      List<String> files = run(() -> compilers.get().resolve(
+          filename, sourceFactory), filename);
+      if (files.size() > 1) {
+        return compileParallel(filename, sourceFactory, files);
+      }
+    }
+    return run(() -> compilers.get().compileModules(filename, sourceFactory),
+        filename);
+  }
+  
+  /**
+   * @return true if files should be compiled in parallel
+   */
+  private boolean isParallel() {
+    return options.isParallel() && !options.isTranspileOnly() && size > 1;
+  }
+  
+  /**
+   * <p>Compile the files of a program in parallel. Distribute the files
+   * round-robin to the workers and concatenate the generated code in the
+   * same order a single compiler would have generated it.</p>
+   * <p>The workers report all problems they find. This method then selects
+   * the ones a single compiler would have reported: syntactic problems or,
+   * if there are none, global problems or, if there are none either,
+   * semantic problems, followed by problems found while generating code.
+   * Problems are ordered by the file they have been found in. Problems in
+   * declaration files and problems not related to a specific file come
+   * first.</p>
+   * @param filename the name of the program's root file
+   * @param sourceFactory the factory that loads source files
+   * @param files the files to compile in the order in which the generated
+   * code should be concatenated
+   * @return a map of names of compiled files to the code generated for
+   * them in the order of the given list of files
+   * @throws IOException if one of the files could not be loaded
+   */
+  private Map<String, String> compileParallel(String filename, SourceFactory sourceFactory,
+      List<String> files) throws IOException {
+    int workers = Math.min(size, files.size());
+    List<List<String>> partitions = new ArrayList<>(workers);
+    for (int i = 0; i < workers; ++i) {
+      partitions.add(new ArrayList<>());
+    }
+    for (int i = 0; i < files.size(); ++i) {
+      partitions.get(i % workers).add(files.get(i));
+    }
+    
+    Map<String, String> outputs = new ConcurrentHashMap<>();
+    List<FileDiagnostic> diagnostics = Collections.synchronizedList(new ArrayList<>());
+    List<Future<Void>> results = new ArrayList<>(workers);
+    for (int i = 0; i < workers; ++i) {
+      List<String> partition = partitions.get(i);
+      // only one worker should report problems not related to a file
+      // or to one of the program's files
+      boolean reportGlobal = i == 0;
+      results.add(executor.submit(() -> {
+        compilers.get().compileFiles(filename, sourceFactory, partition,
+            reportGlobal, outputs, diagnostics);
+        return null;
+      }));
+    }
+    for (Future<Void> r : results) {
+      await(r, filename);
+    }
+    
+    List<String> selectedDiagnostics = selectDiagnostics(diagnostics, files);
+    if (!selectedDiagnostics.isEmpty()) {
+      for (String d : selectedDiagnostics) {
+        System.err.println(d);
+      }
+      throw new IllegalStateException("Could not compile source file " + filename);
+    }
+    
+    Map<String, String> result = new LinkedHashMap<>();
+    for (String f : files) {
+      String output = outputs.get(f);
+      if (output != null) {
+        result.put(f, output);
+      }
+    }
+    return result;
+  }
+  
+  /**
+   * Select the problems a single compiler would have reported from the
+   * problems found by the workers of a parallel compilation
+   * @param diagnostics the problems found by the workers
+   * @param files the files compiled in the order in which the generated
+   * code has been concatenated
+   * @return the messages of the selected problems
+   */
+  static List<String> selectDiagnostics(List<FileDiagnostic> diagnostics,
+      List<String> files) {
+    Map<String, Integer> fileOrder = new HashMap<>();
+    for (int i = 0; i < files.size(); ++i) {
+      fileOrder.put(files.get(i), i);
+    }
+    
+    List<FileDiagnostic> sorted = new ArrayList<>(diagnostics);
+    sorted.sort(Comparator.comparingInt(d -> fileOrder.getOrDefault(d.filename, -1)));
+    
+    List<String> result = new ArrayList<>();
+    for (String kind : new String[] { "syntactic", "global", "semantic" }) {
+      for (FileDiagnostic d : sorted) {
+        if (d.kind.equals(kind)) {
+          result.add(d.message);
+        }
+      }
+      if (!result.isEmpty()) {
+        break;
+      }
+    }
+    for (FileDiagnostic d : sorted) {
+      if (d.kind.equals("emit")) {
+        result.add(d.message);
+      }
+    }
+    return result;
+  }
+  
+  @Override
+  public List<String> check(String filename, SourceFactory sourceFactory)
+      throws IOException {
+    return run(() -> compilers.get().check(filename, sourceFactory), filename);
+  }
+  
+  /**
+   * Run a task on one of the worker threads and wait for its result
+   * @param task the task to run
+   * @param filename the name of the file the task processes
+   * @return the task's result
+   * @throws IOException if the task threw an {@link IOException}
+   */
+  private <T> T run(Callable<T> task, String filename) throws IOException {
+    return await(executor.submit(task), filename);
+  }
+  
+  /**
+   * Wait for the result of a task submitted to the worker threads
+   * @param result the future result of the task
+   * @param filename the name of the file the task processes
+   * @return the task's result
+   * @throws IOException if the task threw an {@link IOException}
+   */
+  private static <T> T await(Future<T> result, String filename) throws IOException {
+    try {
+      return result.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for V8 compiler", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException)cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException)cause;
+      }
+      throw new IllegalStateException("Could not compile " + filename, cause);
+    }
+  }
+  
+  /**
+   * Compile a file on every worker so all of them have created their V8
+   * runtime and loaded the TypeScript compiler afterwards
+   * @param filename the name of the file to compile
+   * @param sourceFactory the factory that loads source files
+   * @throws IOException if the file could not be loaded
+   */
+  public void warmUp(String filename, SourceFactory sourceFactory) throws IOException {
+    List<Future<String>> results = runOnEveryWorker(
+        () -> compilers.get().compile(filename, sourceFactory));
+    for (Future<String> r : results) {
+      await(r, filename);
+    }
+  }
+  
+  /**
+   * Run a task once on every worker. Blocks every worker until all of them
+   * have started the task, so no worker can run it twice. Only one such
+   * batch is queued at a time. Otherwise, two batches could split the
+   * workers between them and all workers would wait forever.
+   * @param task the task to run
+   * @return the results of the tasks. All tasks have finished when this
+   * method returns.
+   */
+  private <T> List<Future<T>> runOnEveryWorker(Callable<T> task) {
+    synchronized (batchLock) {
+      CountDownLatch allStarted = new CountDownLatch(size);
+      List<Future<T>> results = new ArrayList<>(size);
+      for (int i = 0; i < size; ++i) {
+        results.add(executor.submit(() -> {
+          allStarted.countDown();
+          allStarted.await();
+          return task.call();
+        }));
+      }
+      
+      // wait for all tasks, even if we are interrupted, so the next batch
+      // is not queued before this one has finished
+      boolean interrupted = false;
+      for (Future<T> r : results) {
+        while (!r.isDone()) {
+          try {
+            r.get();
+          } catch (InterruptedException e) {
+            interrupted = true;
+          } catch (ExecutionException e) {
+            // will be reported by the caller
+          }
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+      return results;
+    }
+  }
+  
+  /**
+   * Releases the V8 runtimes and stops the worker threads. A runtime may
+   * only be released by the thread that created it, so this method runs
+   * a task on every worker releasing its own runtime.
+   */
+  @Override
+  public void close() {
+    List<Future<Void>> results = runOnEveryWorker(() -> {
+      compilers.get().close();
+      compilers.remove();
+      return null;
+    });
+    executor.shutdown();
+    for (Future<Void> r : results) {
+      try {
+        r.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (ExecutionException e) {
+        throw new IllegalStateException("Could not release V8 runtime", e.getCause());
+      }
+    }
+  }
+  
+  @Override
+  public String getFingerprint() {
+    return options.getFingerprint(getName(), EngineCompiler.COMPILE_JS);
+  }
+  
+  @Override
+  public String getName() {
+    return "v8";
+  }
+}
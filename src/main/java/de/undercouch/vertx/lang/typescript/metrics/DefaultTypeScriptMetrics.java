@@ -0,0 +1,160 @@
+// Copyright 2016 Michel Kraemer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.undercouch.vertx.lang.typescript.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Default metrics that keep counters and histograms in memory. They can be
+ * queried through JMX (see {@link TypeScriptMetricsMXBean}).
+ * @author Michel Kraemer
+ */
+public class DefaultTypeScriptMetrics implements TypeScriptMetrics,
+    TypeScriptMetricsMXBean {
+  /**
+   * The name under which the metrics are published via JMX
+   */
+  public static final String OBJECT_NAME =
+      "de.undercouch.vertx.lang.typescript:type=TypeScriptMetrics";
+  
+  /**
+   * Cache hits per cache tier
+   */
+  private final ConcurrentMap<String, LongAdder> cacheHits = new ConcurrentHashMap<>();
+  
+  /**
+   * Cache misses per cache tier
+   */
+  private final ConcurrentMap<String, LongAdder> cacheMisses = new ConcurrentHashMap<>();
+  
+  /**
+   * Compile times per compiler
+   */
+  private final ConcurrentMap<String, Histogram> compileTimes = new ConcurrentHashMap<>();
+  
+  /**
+   * Initialization times per compiler
+   */
+  private final ConcurrentMap<String, Histogram> compilerInitTimes = new ConcurrentHashMap<>();
+  
+  /**
+   * The number of compilations currently in progress
+   */
+  private final LongAdder compilesInFlight = new LongAdder();
+  
+  /**
+   * The number of source files read from disk or another location
+   */
+  private final LongAdder sourceFilesRead = new LongAdder();
+  
+  /**
+   * The total size of all source files read from disk or another location
+   */
+  private final LongAdder sourceBytesRead = new LongAdder();
+  
+  @Override
+  public void cacheHit(String tier) {
+    cacheHits.computeIfAbsent(tier, k -> new LongAdder()).increment();
+  }
+  
+  @Override
+  public void cacheMiss(String tier) {
+    cacheMisses.computeIfAbsent(tier, k -> new LongAdder()).increment();
+  }
+  
+  @Override
+  public void compileStarted() {
+    compilesInFlight.increment();
+  }
+  
+  @Override
+  public void compileFinished(String compiler, long nanos) {
+    compilesInFlight.decrement();
+    compileTimes.computeIfAbsent(compiler, k -> new Histogram()).record(nanos);
+  }
+  
+  @Override
+  public void compilerInitialized(String compiler, long nanos) {
+    compilerInitTimes.computeIfAbsent(compiler, k -> new Histogram()).record(nanos);
+  }
+  
+  @Override
+  public void sourceRead(long bytes) {
+    sourceFilesRead.increment();
+    sourceBytesRead.add(bytes);
+  }
+  
+  @Override
+  public Map<String, Long> getCacheHits() {
+    return sums(cacheHits);
+  }
+  
+  @Override
+  public Map<String, Long> getCacheMisses() {
+    return sums(cacheMisses);
+  }
+  
+  @Override
+  public Map<String, HistogramSnapshot> getCompileTimes() {
+    return snapshots(compileTimes);
+  }
+  
+  @Override
+  public Map<String, HistogramSnapshot> getCompilerInitTimes() {
+    return snapshots(compilerInitTimes);
+  }
+  
+  @Override
+  public long getCompilesInFlight() {
+    return compilesInFlight.sum();
+  }
+  
+  @Override
+  public long getSourceFilesRead() {
+    return sourceFilesRead.sum();
+  }
+  
+  @Override
+  public long getSourceBytesRead() {
+    return sourceBytesRead.sum();
+  }
+  
+  /**
+   * Get the current values of a map of counters
+   * @param counters the counters
+   * @return the values sorted by key
+   */
+  private static Map<String, Long> sums(Map<String, LongAdder> counters) {
+    Map<String, Long> result = new TreeMap<>();
+    counters.forEach((k, v) -> result.put(k, v.sum()));
+    return result;
+  }
+  
+  /**
+   * Get the current state of a map of histograms
+   * @param histograms the histograms
+   * @return the snapshots sorted by key
+   */
+  private static Map<String, HistogramSnapshot> snapshots(
+      Map<String, Histogram> histograms) {
+    Map<String, HistogramSnapshot> result = new TreeMap<>();
+    histograms.forEach((k, v) -> result.put(k, v.snapshot()));
+    return result;
+  }
+}
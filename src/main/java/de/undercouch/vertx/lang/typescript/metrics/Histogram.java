@@ -0,0 +1,110 @@
+// Copyright 2016 Michel Kraemer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.undercouch.vertx.lang.typescript.metrics;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of durations. Values are counted in buckets whose
+ * bounds are powers of two nanoseconds, so recording a value is cheap and
+ * the histogram occupies constant space.
+ * @author Michel Kraemer
+ */
+class Histogram {
+  /**
+   * The number of nanoseconds per millisecond
+   */
+  private static final double NANOS_PER_MILLI = 1000000.0;
+  
+  /**
+   * The buckets. Bucket <code>i</code> counts values less than
+   * <code>2^i</code> nanoseconds and greater than or equal to
+   * <code>2^(i-1)</code> nanoseconds.
+   */
+  private final LongAdder[] buckets = new LongAdder[64];
+  
+  /**
+   * The sum of all recorded values
+   */
+  private final LongAdder sum = new LongAdder();
+  
+  /**
+   * The largest recorded value
+   */
+  private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+  
+  /**
+   * Creates an empty histogram
+   */
+  Histogram() {
+    for (int i = 0; i < buckets.length; ++i) {
+      buckets[i] = new LongAdder();
+    }
+  }
+  
+  /**
+   * Record a value
+   * @param nanos the value in nanoseconds (negative values are treated as 0)
+   */
+  void record(long nanos) {
+    long v = Math.max(0, nanos);
+    buckets[64 - Long.numberOfLeadingZeros(v)].increment();
+    sum.add(v);
+    max.accumulate(v);
+  }
+  
+  /**
+   * @return the current state of the histogram
+   */
+  HistogramSnapshot snapshot() {
+    long[] counts = new long[buckets.length];
+    long count = 0;
+    for (int i = 0; i < buckets.length; ++i) {
+      counts[i] = buckets[i].sum();
+      count += counts[i];
+    }
+    if (count == 0) {
+      return new HistogramSnapshot(0, 0, 0, 0, 0, 0);
+    }
+    double maxMillis = max.get() / NANOS_PER_MILLI;
+    return new HistogramSnapshot(count, sum.sum() / NANOS_PER_MILLI / count,
+        maxMillis, percentile(counts, count, 0.5, maxMillis),
+        percentile(counts, count, 0.95, maxMillis),
+        percentile(counts, count, 0.99, maxMillis));
+  }
+  
+  /**
+   * Approximate a percentile
+   * @param counts the number of values in each bucket
+   * @param count the total number of values
+   * @param p the percentile (between 0 and 1)
+   * @param maxMillis the largest recorded value in milliseconds
+   * @return the upper bound of the bucket the percentile falls into in
+   * milliseconds (but not more than the largest recorded value)
+   */
+  private static double percentile(long[] counts, long count, double p,
+      double maxMillis) {
+    long rank = (long)Math.ceil(count * p);
+    long seen = 0;
+    for (int i = 0; i < counts.length; ++i) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return Math.min(Math.pow(2, i) / NANOS_PER_MILLI, maxMillis);
+      }
+    }
+    return maxMillis;
+  }
+}
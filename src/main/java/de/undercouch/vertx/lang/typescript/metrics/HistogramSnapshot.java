@@ -0,0 +1,117 @@
+// Copyright 2016 Michel Kraemer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.undercouch.vertx.lang.typescript.metrics;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * The state of a {@link Histogram} at a certain point in time. All times
+ * are in milliseconds. Percentiles are approximated by the upper bound of
+ * the histogram bucket they fall into.
+ * @author Michel Kraemer
+ */
+public class HistogramSnapshot {
+  /**
+   * The number of recorded values
+   */
+  private final long count;
+  
+  /**
+   * The mean of all recorded values
+   */
+  private final double mean;
+  
+  /**
+   * The largest recorded value
+   */
+  private final double max;
+  
+  /**
+   * The median
+   */
+  private final double p50;
+  
+  /**
+   * The 95th percentile
+   */
+  private final double p95;
+  
+  /**
+   * The 99th percentile
+   */
+  private final double p99;
+  
+  /**
+   * Creates a new snapshot
+   * @param count the number of recorded values
+   * @param mean the mean of all recorded values
+   * @param max the largest recorded value
+   * @param p50 the median
+   * @param p95 the 95th percentile
+   * @param p99 the 99th percentile
+   */
+  @ConstructorProperties({ "count", "mean", "max", "p50", "p95", "p99" })
+  public HistogramSnapshot(long count, double mean, double max, double p50,
+      double p95, double p99) {
+    this.count = count;
+    this.mean = mean;
+    this.max = max;
+    this.p50 = p50;
+    this.p95 = p95;
+    this.p99 = p99;
+  }
+  
+  /**
+   * @return the number of recorded values
+   */
+  public long getCount() {
+    return count;
+  }
+  
+  /**
+   * @return the mean of all recorded values
+   */
+  public double getMean() {
+    return mean;
+  }
+  
+  /**
+   * @return the largest recorded value
+   */
+  public double getMax() {
+    return max;
+  }
+  
+  /**
+   * @return the median
+   */
+  public double getP50() {
+    return p50;
+  }
+  
+  /**
+   * @return the 95th percentile
+   */
+  public double getP95() {
+    return p95;
+  }
+  
+  /**
+   * @return the 99th percentile
+   */
+  public double getP99() {
+    return p99;
+  }
+}
@@ -0,0 +1,130 @@
+// Copyright 2016 Michel Kraemer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.undercouch.vertx.lang.typescript.metrics;
+
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.util.Iterator;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import de.undercouch.vertx.lang.typescript.TypeScriptVerticleFactory;
+
+/**
+ * Provides the metrics that measurements should be reported to. The
+ * implementation is selected as follows:
+ * <ol>
+ * <li>If the {@value TypeScriptVerticleFactory#PROP_NAME_METRICS} system
+ * property is set to {@value #METRICS_NONE}, all measurements are
+ * discarded.</li>
+ * <li>If the property contains the name of a class implementing
+ * {@link TypeScriptMetrics}, this class is instantiated. This can be used
+ * to forward measurements to other metrics libraries such as Dropwizard
+ * Metrics.</li>
+ * <li>Otherwise, the first implementation found through the
+ * {@link ServiceLoader} mechanism is used.</li>
+ * <li>If there is none, an instance of {@link DefaultTypeScriptMetrics}
+ * is created and published via JMX.</li>
+ * </ol>
+ * If the configured class cannot be instantiated or the service cannot be
+ * loaded, an error is logged and the next option is tried.
+ * @author Michel Kraemer
+ */
+public final class Metrics {
+  /**
+   * A value for the {@value TypeScriptVerticleFactory#PROP_NAME_METRICS}
+   * system property that disables metrics
+   */
+  public static final String METRICS_NONE = "none";
+  
+  /**
+   * The logger used to report metrics that could not be created
+   */
+  private static final Logger log = LoggerFactory.getLogger(Metrics.class);
+  
+  /**
+   * Holds the metrics. Initialized on first access.
+   */
+  private static class Holder {
+    /**
+     * The metrics
+     */
+    static final TypeScriptMetrics INSTANCE = create();
+  }
+  
+  /**
+   * This class only has static methods
+   */
+  private Metrics() {
+    // nothing to do here
+  }
+  
+  /**
+   * @return the metrics that measurements should be reported to
+   */
+  public static TypeScriptMetrics get() {
+    return Holder.INSTANCE;
+  }
+  
+  /**
+   * Create the metrics
+   * @return the metrics
+   */
+  private static TypeScriptMetrics create() {
+    String name = System.getProperty(TypeScriptVerticleFactory.PROP_NAME_METRICS);
+    if (METRICS_NONE.equals(name)) {
+      return new NoopMetrics();
+    }
+    
+    if (name != null) {
+      // do not throw an exception here. it would be thrown from the static
+      // initializer of the holder class and make the metrics (and all
+      // compilers using them) unusable for the lifetime of the class loader.
+      try {
+        return Class.forName(name).asSubclass(TypeScriptMetrics.class).newInstance();
+      } catch (ReflectiveOperationException | ClassCastException | LinkageError e) {
+        log.error("Could not create metrics " + name + ". Falling back to " +
+            "default metrics.", e);
+      }
+    }
+    
+    try {
+      Iterator<TypeScriptMetrics> it = ServiceLoader.load(TypeScriptMetrics.class,
+          Metrics.class.getClassLoader()).iterator();
+      if (it.hasNext()) {
+        return it.next();
+      }
+    } catch (ServiceConfigurationError e) {
+      log.error("Could not load metrics service. Falling back to " +
+          "default metrics.", e);
+    }
+    
+    DefaultTypeScriptMetrics result = new DefaultTypeScriptMetrics();
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(result,
+          new ObjectName(DefaultTypeScriptMetrics.OBJECT_NAME));
+    } catch (JMException | SecurityException e) {
+      // ignore. metrics may already have been published by another
+      // class loader or JMX may not be available. the metrics are still
+      // recorded, they just cannot be queried.
+    }
+    return result;
+  }
+}
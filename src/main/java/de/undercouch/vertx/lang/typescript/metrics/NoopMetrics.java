@@ -0,0 +1,51 @@
+// Copyright 2016 Michel Kraemer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.undercouch.vertx.lang.typescript.metrics;
+
+/**
+ * Metrics that discard all measurements
+ * @author Michel Kraemer
+ */
+public class NoopMetrics implements TypeScriptMetrics {
+  @Override
+  public void cacheHit(String tier) {
+    // do not record
+  }
+  
+  @Override
+  public void cacheMiss(String tier) {
+    // do not record
+  }
+  
+  @Override
+  public void compileStarted() {
+    // do not record
+  }
+  
+  @Override
+  public void compileFinished(String compiler, long nanos) {
+    // do not record
+  }
+  
+  @Override
+  public void compilerInitialized(String compiler, long nanos) {
+    // do not record
+  }
+  
+  @Override
+  public void sourceRead(long bytes) {
+    // do not record
+  }
+}
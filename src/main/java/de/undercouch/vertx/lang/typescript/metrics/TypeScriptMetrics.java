@@ -0,0 +1,86 @@
+// Copyright 2016 Michel Kraemer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.undercouch.vertx.lang.typescript.metrics;
+
+/**
+ * Receives measurements from the TypeScript class loader, the code caches
+ * and the compilers. Implementations must be thread-safe and fast since
+ * they are called on every cache lookup. An implementation can be selected
+ * with the <code>vertx.typescriptMetrics</code> system property or through
+ * the {@link java.util.ServiceLoader} mechanism (see {@link Metrics}).
+ * @author Michel Kraemer
+ */
+public interface TypeScriptMetrics {
+  /**
+   * The tier of caches that keep compiled code in memory
+   */
+  String TIER_MEMORY = "memory";
+  
+  /**
+   * The tier of caches that keep compiled code in separate files on disk
+   */
+  String TIER_DISK = "disk";
+  
+  /**
+   * The tier of caches that keep compiled code in memory-mapped pack files
+   */
+  String TIER_PACK = "pack";
+  
+  /**
+   * The tier of code that has been compiled at build time
+   */
+  String TIER_PRECOMPILED = "precompiled";
+  
+  /**
+   * Called when a cache contained the requested entry
+   * @param tier the cache tier (e.g. {@link #TIER_MEMORY})
+   */
+  void cacheHit(String tier);
+  
+  /**
+   * Called when a cache did not contain the requested entry
+   * @param tier the cache tier (e.g. {@link #TIER_MEMORY})
+   */
+  void cacheMiss(String tier);
+  
+  /**
+   * Called when the class loader starts compiling a file
+   */
+  void compileStarted();
+  
+  /**
+   * Called when the class loader has finished compiling a file (whether
+   * compilation was successful or not)
+   * @param compiler the name of the compiler
+   * @param nanos the time compilation took in nanoseconds
+   */
+  void compileFinished(String compiler, long nanos);
+  
+  /**
+   * Called when a compiler has loaded the TypeScript compiler and is
+   * ready to compile files
+   * @param compiler the name of the compiler
+   * @param nanos the time initialization took in nanoseconds
+   */
+  void compilerInitialized(String compiler, long nanos);
+  
+  /**
+   * Called when a source file has been read from the file system, from a
+   * jar file or from another location. Not called if the file could be
+   * served from a {@link de.undercouch.vertx.lang.typescript.cache.SourceCache}.
+   * @param bytes the size of the source file in bytes
+   */
+  void sourceRead(long bytes);
+}
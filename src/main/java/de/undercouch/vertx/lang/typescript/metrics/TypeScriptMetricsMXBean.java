@@ -0,0 +1,60 @@
+// Copyright 2016 Michel Kraemer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.undercouch.vertx.lang.typescript.metrics;
+
+import java.util.Map;
+
+/**
+ * The management interface of {@link DefaultTypeScriptMetrics}. Published
+ * via JMX under the name {@value DefaultTypeScriptMetrics#OBJECT_NAME}.
+ * @author Michel Kraemer
+ */
+public interface TypeScriptMetricsMXBean {
+  /**
+   * @return the number of cache hits per cache tier
+   */
+  Map<String, Long> getCacheHits();
+  
+  /**
+   * @return the number of cache misses per cache tier
+   */
+  Map<String, Long> getCacheMisses();
+  
+  /**
+   * @return the time compilations took per compiler
+   */
+  Map<String, HistogramSnapshot> getCompileTimes();
+  
+  /**
+   * @return the time the compilers took to initialize
+   */
+  Map<String, HistogramSnapshot> getCompilerInitTimes();
+  
+  /**
+   * @return the number of compilations currently in progress
+   */
+  long getCompilesInFlight();
+  
+  /**
+   * @return the number of source files read from disk or another location
+   */
+  long getSourceFilesRead();
+  
+  /**
+   * @return the total size of all source files read from disk or another
+   * location in bytes
+   */
+  long getSourceBytesRead();
+}
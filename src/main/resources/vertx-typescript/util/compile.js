@@ -13,18 +13,240 @@
 // limitations under the License.
 
 /**
- * Compile a TypeScript file to JavaScript
- * @param file the name of the file to compile
- * @param sourceFactory a factory that loads source files
- * @returns {String} the generated JavaScript code
+ * Parsed declaration files (e.g. lib.core.d.ts or the Vert.x type
+ * definitions) that are reused across compilations. Keys consist of the
+ * file name and the target language version. Values are objects with the
+ * attributes 'digest' (the digest of the file contents the source file has
+ * been parsed from) and 'sourceFile'.
  */
-function compileTypescript(file, sourceFactory) {
-  var output = "";
+var declarationSourceFiles = {};
+
+/**
+ * The maximum number of previous compilations to keep
+ */
+var MAX_PREVIOUS_COMPILATIONS = 16;
+
+/**
+ * The state of previous compilations (only used in incremental mode). Keys
+ * are the names of the compiled files. Values are objects with the
+ * attributes 'program' (the program created during the last compilation)
+ * and 'digests' (the digests of the contents of all files in this program).
+ * Entries are kept in the order in which they have been used last (least
+ * recently used first).
+ */
+var previousCompilations = {};
+
+/**
+ * The number of entries in previousCompilations
+ */
+var previousCompilationsCount = 0;
+
+/**
+ * Remember the state of a compilation and forget the least recently used
+ * one if there are too many
+ * @param file the name of the compiled file
+ * @param compilation the state of the compilation
+ */
+function rememberCompilation(file, compilation) {
+  if (previousCompilations.hasOwnProperty(file)) {
+    // remove the old entry so the new one is appended at the end
+    delete previousCompilations[file];
+  } else {
+    ++previousCompilationsCount;
+  }
+  previousCompilations[file] = compilation;
+  
+  if (previousCompilationsCount > MAX_PREVIOUS_COMPILATIONS) {
+    for (var oldest in previousCompilations) {
+      delete previousCompilations[oldest];
+      --previousCompilationsCount;
+      break;
+    }
+  }
+}
+
+/**
+ * Check if the given file is a declaration file
+ * @param filename the file name
+ * @returns {Boolean} true if the file is a declaration file
+ */
+function isDeclarationFile(filename) {
+  return /\.d\.ts$/i.test(filename);
+}
+
+/**
+ * Get the options for the TypeScript compiler
+ * @returns {Object} the options
+ */
+function getCompilerOptions() {
   var opts = ts.getDefaultCompilerOptions();
 
   // enable commonjs modules
   opts.module = 1; // 1 = CommonJS
   
+  // use the platform's line separator (0 = CRLF, 1 = LF)
+  opts.newLine = __lineSeparator === "\r\n" ? 0 : 1;
+  
+  return opts;
+}
+
+/**
+ * Convert a diagnostic to a human-readable string
+ * @param diagnostic the diagnostic
+ * @returns {String} the string
+ */
+function formatDiagnostic(diagnostic) {
+  var output = "";
+  if (diagnostic.file) {
+      var loc = ts.getLineAndCharacterOfPosition(diagnostic.file, diagnostic.start);
+      output += diagnostic.file.fileName + "(" + (loc.line + 1) + "," + (loc.character + 1) + "): ";
+  }
+  var category = ts.DiagnosticCategory[diagnostic.category].toLowerCase();
+  output += category + " TS" + diagnostic.code + ": " + ts.flattenDiagnosticMessageText(diagnostic.messageText, __lineSeparator) + __lineSeparator;
+  return output;
+}
+
+/**
+ * Find all files that would be generated if the given file was compiled
+ * @param file the name of the file to compile
+ * @param sourceFactory a factory that loads source files
+ * @param options compiler options (an object with the attribute
+ * 'incremental', may be undefined)
+ * @param collector an object with a method 'add' that will be called with
+ * the name of each file that would be generated in the order in which
+ * they would be generated
+ */
+function resolveTypescript(file, sourceFactory, options, collector) {
+  var incremental = !!(options && options.incremental);
+  var program = createProgram(file, sourceFactory, getCompilerOptions(),
+    incremental, function(data) {
+      // we don't generate code
+    });
+  var sourceFiles = program.getSourceFiles();
+  for (var i = 0; i < sourceFiles.length; ++i) {
+    if (!isDeclarationFile(sourceFiles[i].fileName)) {
+      collector.add(sourceFiles[i].fileName);
+    }
+  }
+}
+
+/**
+ * Compile a subset of the files of a program. Used to compile a large
+ * program in parallel. Reports all syntactic and semantic diagnostics of
+ * the files compiled and leaves it to the caller to select the ones a
+ * compilation of the whole program would report (see getDiagnostics()).
+ * @param file the name of the program's root file
+ * @param sourceFactory a factory that loads source files
+ * @param options compiler options (an object with the attributes
+ * 'incremental', 'emitFiles' (the names of the files to compile separated
+ * by new line characters) and 'reportGlobal' (true if global diagnostics
+ * and diagnostics of declaration files should be reported))
+ * @param collector an object with a method 'output' that will be called
+ * with the name of each compiled file and the generated code and a method
+ * 'diagnostic' that will be called for each problem found with the kind
+ * of the problem ('syntactic', 'global', 'semantic' or 'emit'), the name
+ * of the file it was found in (an empty string if it is not related to a
+ * specific file) and a human-readable message
+ */
+function compileTypescriptFiles(file, sourceFactory, options, collector) {
+  var incremental = !!options.incremental;
+  var currentFile;
+  var program = createProgram(file, sourceFactory, getCompilerOptions(),
+    incremental, function(data) {
+      collector.output(currentFile, data);
+    });
+  
+  var sourceFiles = [];
+  var names = String(options.emitFiles).split("\n");
+  for (var i = 0; i < names.length; ++i) {
+    var sourceFile = program.getSourceFile(names[i]);
+    if (sourceFile !== undefined) {
+      sourceFiles.push(sourceFile);
+    }
+  }
+  
+  // check the files assigned to us. declaration files are checked by
+  // the worker that also reports global diagnostics.
+  var checkedFiles = sourceFiles;
+  if (options.reportGlobal) {
+    checkedFiles = [];
+    var allFiles = program.getSourceFiles();
+    for (var a = 0; a < allFiles.length; ++a) {
+      if (isDeclarationFile(allFiles[a].fileName)) {
+        checkedFiles.push(allFiles[a]);
+      }
+    }
+    checkedFiles = checkedFiles.concat(sourceFiles);
+  }
+  function report(kind, diagnostics) {
+    for (var i = 0; i < diagnostics.length; ++i) {
+      var d = diagnostics[i];
+      collector.diagnostic(kind, d.file ? d.file.fileName : "", formatDiagnostic(d));
+    }
+  }
+  for (var i = 0; i < checkedFiles.length; ++i) {
+    report("syntactic", program.getSyntacticDiagnostics(checkedFiles[i]));
+  }
+  if (options.reportGlobal) {
+    report("global", program.getGlobalDiagnostics());
+  }
+  for (var k = 0; k < checkedFiles.length; ++k) {
+    report("semantic", program.getSemanticDiagnostics(checkedFiles[k]));
+  }
+  
+  // generate code
+  for (var j = 0; j < sourceFiles.length; ++j) {
+    currentFile = sourceFiles[j].fileName;
+    var emitOutput = program.emit(sourceFiles[j]);
+    report("emit", emitOutput.diagnostics);
+  }
+}
+
+/**
+ * Type-check a TypeScript file without generating code
+ * @param file the name of the file to check
+ * @param sourceFactory a factory that loads source files
+ * @param options compiler options (an object with the attribute
+ * 'incremental', may be undefined)
+ * @param diagnosticsCollector an object with a method 'add' that will be
+ * called for each problem found
+ */
+function checkTypescript(file, sourceFactory, options, diagnosticsCollector) {
+  var incremental = !!(options && options.incremental);
+  var program = createProgram(file, sourceFactory, getCompilerOptions(),
+    incremental, function(data) {
+      // we don't generate code
+    });
+  var diagnostics = getDiagnostics(program);
+  for (var i = 0; i < diagnostics.length; ++i) {
+    diagnosticsCollector.add(formatDiagnostic(diagnostics[i]));
+  }
+}
+
+/**
+ * Print diagnostics to stderr
+ * @param diagnostics the diagnostics to print
+ */
+function reportDiagnostics(diagnostics) {
+  for (var i = 0; i < diagnostics.length; i++) {
+      __printlnErr(formatDiagnostic(diagnostics[i]));
+  }
+}
+
+/**
+ * Create a TypeScript program for the given file
+ * @param file the name of the file to compile
+ * @param sourceFactory a factory that loads source files
+ * @param opts the options for the TypeScript compiler
+ * @param incremental true if the program of a previous compilation of the
+ * same file should be reused
+ * @param writeFile a function that will be called for each generated file
+ * @returns the program
+ */
+function createProgram(file, sourceFactory, opts, incremental, writeFile) {
+  var previousCompilation = incremental ? previousCompilations[file] : undefined;
+  var digests = {};
+
   // prepare a host object that we can pass to the TypeScript compiler
   var host = {
     getDefaultLibFileName: function() {
@@ -52,6 +274,33 @@ function compileTypescript(file, sourceFactory) {
       var body;
       try {
         var input = sourceFactory.getSource(filename, file);
+        if (isDeclarationFile(filename)) {
+          // declaration files rarely change. reuse them if we've parsed
+          // the same contents before.
+          var key = filename + "|" + opts.target;
+          var digest = String(input.getDigest());
+          var cached = declarationSourceFiles[key];
+          if (cached === undefined || cached.digest !== digest) {
+            cached = {
+              digest: digest,
+              sourceFile: ts.createSourceFile(filename, input.toString(), opts.target, '0')
+            };
+            declarationSourceFiles[key] = cached;
+          }
+          return cached.sourceFile;
+        }
+        if (incremental) {
+          // reuse source file from previous compilation if it has not changed
+          var fileDigest = String(input.getDigest());
+          digests[filename] = fileDigest;
+          if (previousCompilation !== undefined &&
+              previousCompilation.digests[filename] === fileDigest) {
+            var oldSourceFile = previousCompilation.program.getSourceFile(filename);
+            if (oldSourceFile !== undefined) {
+              return oldSourceFile;
+            }
+          }
+        }
         body = input.toString();
       } catch (e) {
         if (__isFileNotFoundException(e)) {
@@ -69,7 +318,7 @@ function compileTypescript(file, sourceFactory) {
     },
 
     writeFile: function(filename, data, writeByteOrderMark, onError) {
-      output += data;
+      writeFile(data);
     },
     
     fileExists: function(filename) {
@@ -83,44 +332,134 @@ function compileTypescript(file, sourceFactory) {
     }
   };
   
-  var program = ts.createProgram([file], opts, host);
-
-  function reportDiagnostic(diagnostic) {
-    var output = "";
-    if (diagnostic.file) {
-        var loc = ts.getLineAndCharacterOfPosition(diagnostic.file, diagnostic.start);
-        output += diagnostic.file.fileName + "(" + (loc.line + 1) + "," + (loc.character + 1) + "): ";
-    }
-    var category = ts.DiagnosticCategory[diagnostic.category].toLowerCase();
-    output += category + " TS" + diagnostic.code + ": " + ts.flattenDiagnosticMessageText(diagnostic.messageText, host.getNewLine()) + host.getNewLine();
-    __printlnErr(output);
-  }
-
-  function reportDiagnostics(diagnostics) {
-      for (var i = 0; i < diagnostics.length; i++) {
-          reportDiagnostic(diagnostics[i]);
-      }
+  var program = ts.createProgram([file], opts, host,
+    previousCompilation && previousCompilation.program);
+  if (incremental) {
+    rememberCompilation(file, {
+      program: program,
+      digests: digests
+    });
   }
+  
+  return program;
+}
 
-  // report errors
+/**
+ * Get the syntactic diagnostics of a program or, if there are none, its
+ * global and semantic diagnostics
+ * @param program the program
+ * @returns {Array} the diagnostics
+ */
+function getDiagnostics(program) {
   var diagnostics = program.getSyntacticDiagnostics();
-  reportDiagnostics(diagnostics);
   if (diagnostics.length === 0) {
-      var diagnostics = program.getGlobalDiagnostics();
-      reportDiagnostics(diagnostics);
+      diagnostics = program.getGlobalDiagnostics();
       if (diagnostics.length === 0) {
-          var diagnostics = program.getSemanticDiagnostics();
-          reportDiagnostics(diagnostics);
+          diagnostics = program.getSemanticDiagnostics();
       }
   }
+  return diagnostics;
+}
 
-  // generate code now
-  var emitOutput = program.emit();
-  reportDiagnostics(emitOutput.diagnostics);
+/**
+ * Transpile a single TypeScript file to JavaScript without resolving
+ * imports and without type checking
+ * @param file the name of the file to compile
+ * @param sourceFactory a factory that loads source files
+ * @returns {String} the generated JavaScript code
+ */
+function transpileTypescript(file, sourceFactory) {
+  var input = sourceFactory.getSource(file, file);
+  var result = ts.transpileModule(String(input.toString()), {
+    compilerOptions: getCompilerOptions(),
+    fileName: file,
+    reportDiagnostics: true
+  });
+  reportDiagnostics(result.diagnostics);
+  if (result.diagnostics.length > 0) {
+    throw "Could not compile source file " + file;
+  }
+  return result.outputText;
+}
+
+/**
+ * Compile a TypeScript file and all files it imports to JavaScript
+ * @param file the name of the file to compile
+ * @param sourceFactory a factory that loads source files
+ * @param incremental true if the program of a previous compilation of the
+ * same file should be reused
+ * @param output a function that will be called with the name of each
+ * compiled file and the code generated for it
+ */
+function emitTypescript(file, sourceFactory, incremental, output) {
+  var currentFile;
+  var program = createProgram(file, sourceFactory, getCompilerOptions(),
+    incremental, function(data) {
+      output(currentFile, data);
+    });
+
+  // report errors
+  var diagnostics = getDiagnostics(program);
+  reportDiagnostics(diagnostics);
+
+  // generate code now. emit one file after the other so we know which
+  // source file the generated code belongs to.
+  var emitDiagnostics = [];
+  var sourceFiles = program.getSourceFiles();
+  for (var i = 0; i < sourceFiles.length; ++i) {
+    if (!isDeclarationFile(sourceFiles[i].fileName)) {
+      currentFile = sourceFiles[i].fileName;
+      var emitOutput = program.emit(sourceFiles[i]);
+      emitDiagnostics = emitDiagnostics.concat(emitOutput.diagnostics);
+    }
+  }
+  reportDiagnostics(emitDiagnostics);
   
-  if (diagnostics.length > 0 || emitOutput.diagnostics.length > 0) {
+  if (diagnostics.length > 0 || emitDiagnostics.length > 0) {
     throw "Could not compile source file " + file;
   }
+}
 
+/**
+ * Compile a TypeScript file to JavaScript
+ * @param file the name of the file to compile
+ * @param sourceFactory a factory that loads source files
+ * @param options compiler options (an object with the attributes
+ * 'incremental' and 'transpileOnly', may be undefined)
+ * @returns {String} the generated JavaScript code
+ */
+function compileTypescript(file, sourceFactory, options) {
+  if (options && options.transpileOnly) {
+    return transpileTypescript(file, sourceFactory);
+  }
+  
+  var output = "";
+  emitTypescript(file, sourceFactory, !!(options && options.incremental),
+    function(f, data) {
+      output += data;
+    });
   return output;
 }
+
+/**
+ * Compile a TypeScript file and all files it imports to JavaScript and
+ * return the code generated for each file separately
+ * @param file the name of the file to compile
+ * @param sourceFactory a factory that loads source files
+ * @param options compiler options (an object with the attributes
+ * 'incremental' and 'transpileOnly', may be undefined)
+ * @param collector an object with a method 'output' that will be called
+ * with the name of each compiled file and the code generated for it in
+ * the order in which the code was generated
+ */
+function compileTypescriptModules(file, sourceFactory, options, collector) {
+  if (options && options.transpileOnly) {
+    collector.output(file, transpileTypescript(file, sourceFactory));
+    return;
+  }
+  
+  emitTypescript(file, sourceFactory, !!(options && options.incremental),
+    function(f, data) {
+      collector.output(f, data);
+    });
+}
@@ -2,13 +2,42 @@
   var fs = require("fs");
   var path = require("path");
   
-  process.stdin.resume();
+  // file descriptors of stdin and stdout. we access them directly and do not
+  // use process.stdin and process.stdout because Node.js would then switch
+  // them to non-blocking mode
+  var STDIN_FD = 0;
+  var STDOUT_FD = 1;
   
-  function doWriteSync(fd, data) {
-    while (true) {
+  // message types. each message consists of a type byte, the length of the
+  // payload in bytes (unsigned 32-bit integer, big endian) and the payload.
+  // keep in sync with NodeCompiler.java
+  
+  // messages sent by the parent process
+  var MSG_COMPILE = 0x43; // 'C', payload: name of the file to compile
+  var MSG_CHECK = 0x4b; // 'K', payload: name of the file to type-check
+  var MSG_FILE = 0x46; // 'F', payload: contents of a file
+  var MSG_FILENOTFOUND = 0x4e; // 'N', no payload
+  var MSG_BOOLEAN = 0x42; // 'B', payload: one byte (0 or 1)
+  
+  // messages sent to the parent process
+  var MSG_READFILE = 0x52; // 'R', payload: name of the file to read
+  var MSG_FILEEXISTS = 0x58; // 'X', payload: name of the file to look up
+  var MSG_MODULE = 0x4d; // 'M', payload: name of the file whose code follows
+  var MSG_OUTPUT = 0x4f; // 'O', payload: generated code
+  var MSG_DIAGNOSTIC = 0x44; // 'D', payload: compiler message
+  var MSG_DONE = 0x5a; // 'Z', payload: exit code (signed 32-bit integer, big endian)
+  
+  var HEADER_LENGTH = 5;
+  
+  function allocBuffer(size) {
+    return Buffer.allocUnsafe ? Buffer.allocUnsafe(size) : new Buffer(size);
+  }
+  
+  function doWriteSync(fd, buffer) {
+    var written = 0;
+    while (written < buffer.length) {
       try {
-        fs.writeSync(fd, data);
-        break;
+        written += fs.writeSync(fd, buffer, written, buffer.length - written);
       } catch (e) {
         if (e.code === 'EINTR' || e.code === 'EAGAIN') {
           // resource not available. try again.
@@ -28,6 +57,8 @@
         if (e.code === 'EINTR' || e.code === 'EAGAIN') {
           // resource not available. try again.
           continue;
+        } else if (e.code === 'EOF') {
+          return 0;
         } else {
           throw e;
         }
@@ -35,6 +66,91 @@
     }
   }
   
+  /**
+   * Read the given number of bytes from stdin
+   * @param length the number of bytes to read
+   * @return a buffer holding the bytes read or undefined if the end of the
+   * stream was reached before any byte could be read
+   */
+  function readFully(length) {
+    var buf = allocBuffer(length);
+    var read = 0;
+    while (read < length) {
+      var res = doReadSync(STDIN_FD, buf, read, length - read);
+      if (res <= 0) {
+        if (read === 0) {
+          return undefined;
+        }
+        throw new Error("Unexpected end of input stream");
+      }
+      read += res;
+    }
+    return buf;
+  }
+  
+  /**
+   * Read a message from stdin
+   * @return an object with the attributes 'type' and 'payload' (a buffer)
+   * or undefined if the end of the stream has been reached
+   */
+  function readMessage() {
+    var header = readFully(HEADER_LENGTH);
+    if (header === undefined) {
+      return undefined;
+    }
+    var length = header.readUInt32BE(1);
+    var payload = allocBuffer(0);
+    if (length > 0) {
+      payload = readFully(length);
+      if (payload === undefined) {
+        throw new Error("Unexpected end of input stream");
+      }
+    }
+    return {
+      type: header[0],
+      payload: payload
+    };
+  }
+  
+  /**
+   * Read a message of one of the given types from stdin
+   * @param expectedTypes the types of messages that are allowed
+   * @return the message
+   */
+  function expectMessage(expectedTypes) {
+    var msg = readMessage();
+    if (msg === undefined || expectedTypes.indexOf(msg.type) < 0) {
+      throw new Error("Unexpected message from parent process");
+    }
+    return msg;
+  }
+  
+  /**
+   * Write a message to stdout with a single system call
+   * @param type the message type
+   * @param payload the payload (a string or a buffer, may be undefined)
+   */
+  function writeMessage(type, payload) {
+    var length;
+    if (payload === undefined) {
+      length = 0;
+    } else if (typeof payload === "string") {
+      length = Buffer.byteLength(payload, "utf8");
+    } else {
+      length = payload.length;
+    }
+    
+    var buf = allocBuffer(HEADER_LENGTH + length);
+    buf[0] = type;
+    buf.writeUInt32BE(length, 1);
+    if (typeof payload === "string") {
+      buf.write(payload, HEADER_LENGTH, length, "utf8");
+    } else if (payload !== undefined) {
+      payload.copy(buf, HEADER_LENGTH);
+    }
+    doWriteSync(STDOUT_FD, buf);
+  }
+  
   // override host to use the lib.core.d.ts instead of lib.d.ts. The latter
   // contains too many definitions that we don't need. In fact WebSocket
   // conflicts with Vert.x WebSocket.
@@ -48,61 +164,296 @@
       return "";
     };
     host.fileExists = function(path) {
-      // send tag and filename to parent process
-      doWriteSync(process.stdout.fd, "VERTX_TYPESCRIPT_FILEEXISTS" + path + "\n");
-      var buf = new Buffer(1);
-      var res = doReadSync(process.stdin.fd, buf, 0, 1);
-      if (res != 1) {
-        throw new Error("Could not read boolean from input stream");
-      }
-      return !!parseInt(buf.toString());
+      // ask parent process if the file exists
+      writeMessage(MSG_FILEEXISTS, path);
+      var msg = expectMessage([MSG_BOOLEAN]);
+      return msg.payload.length > 0 && msg.payload[0] !== 0;
     };
     return host;
   };
   
   ts.sys.readFile = function(fileName, encoding) {
-    // send tag and filename to parent process
-    doWriteSync(process.stdout.fd, "VERTX_TYPESCRIPT_READFILE" + fileName + "\n");
-    
-    // read number of bytes to read from stdin
-    var res;
-    var buf = new Buffer(1);
-    var size = "";
-    do {
-      res = doReadSync(process.stdin.fd, buf, 0, 1);
-      if (res != 1) {
-        throw new Error("Could not read size from input stream");
-      }
-      var c = buf.toString();
-      if (c == " ") {
-        break;
-      }
-      size += c;
-    } while(true);
-    
-    if (size < 0) {
-      // file not found
+    // ask parent process to read the file
+    writeMessage(MSG_READFILE, fileName);
+    var msg = expectMessage([MSG_FILE, MSG_FILENOTFOUND]);
+    if (msg.type === MSG_FILENOTFOUND) {
       return undefined;
     }
-
-    // read file contents from stdin
-    size = parseInt(size);
-    buf = new Buffer(size);
-    var read = 0;
-    while (read < size) {
-      res = doReadSync(process.stdin.fd, buf, read, size - read);
-      read += res;
-    }
-
-    return buf.toString();
-  };
-
-  ts.sys.writeFile = function(fileName, data, writeByteOrderMark) {
-    doWriteSync(process.stdout.fd, data);
+    return msg.payload.toString("utf8");
   };
 
   ts.sys.getExecutingFilePath = function() {
     // virtual path to typescript compiler (i.e. where tsc.js is in the classpath)
     return path.join("typescript/lib/", path.basename(__filename));
   };
+  
+  /**
+   * Convert a diagnostic to a human-readable string
+   * @param diagnostic the diagnostic
+   * @param newLine the line separator to use
+   * @return the string
+   */
+  function formatDiagnostic(diagnostic, newLine) {
+    var output = "";
+    if (diagnostic.file) {
+      var loc = ts.getLineAndCharacterOfPosition(diagnostic.file, diagnostic.start);
+      output += diagnostic.file.fileName + "(" + (loc.line + 1) + "," + (loc.character + 1) + "): ";
+    }
+    var category = ts.DiagnosticCategory[diagnostic.category].toLowerCase();
+    output += category + " TS" + diagnostic.code + ": " +
+      ts.flattenDiagnosticMessageText(diagnostic.messageText, newLine) + newLine;
+    return output;
+  }
+  
+  /**
+   * The maximum number of programs of previous compilations to keep
+   */
+  var MAX_PREVIOUS_PROGRAMS = 16;
+  
+  /**
+   * Programs of previous compilations (only used in incremental mode). Keys
+   * are the names of the compiled files. Entries are kept in the order in
+   * which they have been used last (least recently used first).
+   */
+  var previousPrograms = {};
+  
+  /**
+   * The number of entries in previousPrograms
+   */
+  var previousProgramsCount = 0;
+  
+  /**
+   * Remember the program of a compilation and forget the least recently
+   * used one if there are too many
+   * @param file the name of the compiled file
+   * @param program the program
+   */
+  function rememberProgram(file, program) {
+    if (previousPrograms.hasOwnProperty(file)) {
+      // remove the old entry so the new one is appended at the end
+      delete previousPrograms[file];
+    } else {
+      ++previousProgramsCount;
+    }
+    previousPrograms[file] = program;
+    
+    if (previousProgramsCount > MAX_PREVIOUS_PROGRAMS) {
+      for (var oldest in previousPrograms) {
+        delete previousPrograms[oldest];
+        --previousProgramsCount;
+        break;
+      }
+    }
+  }
+  
+  /**
+   * Send diagnostics to the parent process
+   * @param diagnostics the diagnostics
+   * @param newLine the line separator to use
+   */
+  function writeDiagnostics(diagnostics, newLine) {
+    for (var i = 0; i < diagnostics.length; ++i) {
+      writeMessage(MSG_DIAGNOSTIC, formatDiagnostic(diagnostics[i], newLine));
+    }
+  }
+  
+  /**
+   * Create a program for the given file
+   * @param file the file to compile
+   * @param options the compiler options
+   * @param incremental true if the program of a previous compilation of
+   * the same file should be reused
+   * @param outputs an array receiving generated code
+   * @return an object with the attributes 'program' and 'host'
+   */
+  function createProgram(file, options, incremental, outputs) {
+    var host = ts.createCompilerHost(options);
+    host.writeFile = function(fileName, data, writeByteOrderMark, onError) {
+      outputs.push(data);
+    };
+    
+    var oldProgram = incremental ? previousPrograms[file] : undefined;
+    if (oldProgram !== undefined) {
+      // reuse source files that have not changed since the last compilation
+      var getSourceFile = host.getSourceFile;
+      host.getSourceFile = function(fileName, languageVersion, onError) {
+        var oldSourceFile = oldProgram.getSourceFile(fileName);
+        if (oldSourceFile === undefined) {
+          return getSourceFile(fileName, languageVersion, onError);
+        }
+        var text = ts.sys.readFile(fileName);
+        if (text === undefined) {
+          return undefined;
+        }
+        if (text === oldSourceFile.text) {
+          return oldSourceFile;
+        }
+        return ts.createSourceFile(fileName, text, languageVersion);
+      };
+    }
+    
+    var program = ts.createProgram([file], options, host, oldProgram);
+    if (incremental) {
+      rememberProgram(file, program);
+    }
+    
+    return {
+      program: program,
+      host: host
+    };
+  }
+  
+  /**
+   * Get the syntactic diagnostics of a program or, if there are none, its
+   * options, global and semantic diagnostics
+   * @param program the program
+   * @return the diagnostics
+   */
+  function getDiagnostics(program) {
+    var diagnostics = program.getSyntacticDiagnostics();
+    if (diagnostics.length === 0) {
+      diagnostics = program.getOptionsDiagnostics().concat(program.getGlobalDiagnostics());
+      if (diagnostics.length === 0) {
+        diagnostics = program.getSemanticDiagnostics();
+      }
+    }
+    return diagnostics;
+  }
+  
+  /**
+   * Transpile a single file without resolving imports and without type
+   * checking. Send generated code or diagnostics to the parent process.
+   * @param file the file to transpile
+   * @param options the compiler options
+   * @return the exit code (0 if the file could be transpiled successfully)
+   */
+  function transpile(file, options) {
+    var text = ts.sys.readFile(file);
+    if (text === undefined) {
+      writeMessage(MSG_DIAGNOSTIC, "error: File not found: " + file + "\n");
+      return 1;
+    }
+    var result = ts.transpileModule(text, {
+      compilerOptions: options,
+      fileName: file,
+      reportDiagnostics: true
+    });
+    if (result.diagnostics.length > 0) {
+      writeDiagnostics(result.diagnostics, ts.sys.newLine);
+      return 1;
+    }
+    writeMessage(MSG_OUTPUT, result.outputText);
+    return 0;
+  }
+  
+  /**
+   * Type-check a file and send diagnostics to the parent process
+   * @param file the file to check
+   * @param options the compiler options
+   * @param incremental true if the program of a previous compilation of
+   * the same file should be reused
+   * @return the exit code (0 if no problems were found)
+   */
+  function check(file, options, incremental) {
+    var p = createProgram(file, options, incremental, []);
+    var diagnostics = getDiagnostics(p.program);
+    writeDiagnostics(diagnostics, p.host.getNewLine());
+    return diagnostics.length > 0 ? 1 : 0;
+  }
+  
+  /**
+   * Compile a file and send generated code or diagnostics to the parent process
+   * @param file the file to compile
+   * @param options the compiler options
+   * @param incremental true if the program of a previous compilation of
+   * the same file should be reused
+   * @return the exit code (0 if the file could be compiled successfully)
+   */
+  function compile(file, options, incremental) {
+    var outputs = [];
+    var p = createProgram(file, options, incremental, outputs);
+    
+    // report errors
+    var diagnostics = getDiagnostics(p.program);
+    
+    // generate code now. emit one file after the other so we know which
+    // source file the generated code belongs to.
+    var modules = [];
+    var sourceFiles = p.program.getSourceFiles();
+    for (var i = 0; i < sourceFiles.length; ++i) {
+      if (!/\.d\.ts$/i.test(sourceFiles[i].fileName)) {
+        var first = outputs.length;
+        var emitOutput = p.program.emit(sourceFiles[i]);
+        diagnostics = diagnostics.concat(emitOutput.diagnostics);
+        modules.push({
+          name: sourceFiles[i].fileName,
+          outputs: outputs.slice(first)
+        });
+      }
+    }
+    
+    if (diagnostics.length > 0) {
+      writeDiagnostics(diagnostics, p.host.getNewLine());
+      return 1;
+    }
+    
+    for (var j = 0; j < modules.length; ++j) {
+      writeMessage(MSG_MODULE, modules[j].name);
+      for (var k = 0; k < modules[j].outputs.length; ++k) {
+        writeMessage(MSG_OUTPUT, modules[j].outputs[k]);
+      }
+    }
+    return 0;
+  }
+  
+  // replace command line compiler by a loop that compiles each file
+  // the parent process sends us. keep running until stdin is closed.
+  ts.executeCommandLine = function(args) {
+    // parse our own arguments
+    var incremental = false;
+    var transpileOnly = false;
+    args = args.filter(function(arg) {
+      if (arg === "--vertxIncremental") {
+        incremental = true;
+        return false;
+      }
+      if (arg === "--vertxTranspileOnly") {
+        transpileOnly = true;
+        return false;
+      }
+      return true;
+    });
+    
+    var commandLine = ts.parseCommandLine(args);
+    var options = commandLine.options;
+    while (true) {
+      var msg = readMessage();
+      if (msg === undefined) {
+        break;
+      }
+      if (msg.type !== MSG_COMPILE && msg.type !== MSG_CHECK) {
+        throw new Error("Unexpected message from parent process");
+      }
+      
+      var exitCode;
+      try {
+        var file = msg.payload.toString("utf8");
+        if (msg.type === MSG_CHECK) {
+          exitCode = check(file, options, incremental);
+        } else if (transpileOnly) {
+          exitCode = transpile(file, options);
+        } else {
+          exitCode = compile(file, options, incremental);
+        }
+      } catch (e) {
+        writeMessage(MSG_DIAGNOSTIC, String((e && e.stack) || e) + "\n");
+        exitCode = 2;
+      }
+      
+      var code = allocBuffer(4);
+      code.writeInt32BE(exitCode, 0);
+      writeMessage(MSG_DONE, code);
+    }
+    process.exit(0);
+  };
 })();
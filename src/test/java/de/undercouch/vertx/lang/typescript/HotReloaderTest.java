@@ -0,0 +1,304 @@
+// Copyright 2016 Michel Kraemer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.undercouch.vertx.lang.typescript;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.undercouch.vertx.lang.typescript.cache.InMemoryCache;
+import de.undercouch.vertx.lang.typescript.cache.SourceCache;
+import de.undercouch.vertx.lang.typescript.compiler.SourceFactory;
+import de.undercouch.vertx.lang.typescript.compiler.TypeScriptCompiler;
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Tests {@link HotReloader}
+ * @author Michel Kraemer
+ */
+public class HotReloaderTest {
+  /**
+   * A temporary folder for the watched source files
+   */
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+  
+  /**
+   * The configurations of all started {@link RecordingVerticle}s
+   */
+  private static final List<JsonObject> started = new CopyOnWriteArrayList<>();
+  
+  /**
+   * The deployment ID of the verticle deployed by the last started
+   * {@link ParentVerticle}
+   */
+  private static volatile String childDeploymentID;
+  
+  /**
+   * A verticle recording its configuration when it is started
+   */
+  public static class RecordingVerticle extends AbstractVerticle {
+    @Override
+    public void start() {
+      started.add(config());
+    }
+  }
+  
+  /**
+   * A verticle deploying a {@link RecordingVerticle}
+   */
+  public static class ParentVerticle extends AbstractVerticle {
+    @Override
+    public void start(Future<Void> startFuture) {
+      vertx.deployVerticle(RecordingVerticle.class.getName(), ar -> {
+        if (ar.failed()) {
+          startFuture.fail(ar.cause());
+        } else {
+          childDeploymentID = ar.result();
+          startFuture.complete();
+        }
+      });
+    }
+  }
+  
+  /**
+   * A fake compiler that fails if a file contains the word 'error'
+   */
+  private static class FakeCompiler implements TypeScriptCompiler {
+    /**
+     * The number of calls
+     */
+    final AtomicInteger calls = new AtomicInteger();
+    
+    @Override
+    public String compile(String filename, SourceFactory sourceFactory) throws IOException {
+      calls.incrementAndGet();
+      String src = sourceFactory.getSource(filename, null).toString();
+      if (src.contains("error")) {
+        throw new IllegalStateException("Could not compile " + filename);
+      }
+      return "// " + src;
+    }
+    
+    @Override
+    public List<String> check(String filename, SourceFactory sourceFactory) {
+      return new ArrayList<>();
+    }
+    
+    @Override
+    public String getFingerprint() {
+      return "test";
+    }
+  }
+  
+  /**
+   * The Vert.x instance the verticles are deployed to
+   */
+  private Vertx vertx;
+  
+  /**
+   * The compiler used to compile the watched files
+   */
+  private FakeCompiler compiler;
+  
+  /**
+   * The code cache the hot reloader refreshes
+   */
+  private InMemoryCache codeCache;
+  
+  /**
+   * The cache for source files
+   */
+  private SourceCache sourceCache;
+  
+  /**
+   * The hot reloader to test
+   */
+  private HotReloader reloader;
+  
+  /**
+   * Set up the test
+   */
+  @Before
+  public void setUp() {
+    started.clear();
+    childDeploymentID = null;
+    vertx = Vertx.vertx();
+    compiler = new FakeCompiler();
+    codeCache = new InMemoryCache();
+    sourceCache = new SourceCache();
+    reloader = new HotReloader(vertx, compiler, codeCache, sourceCache);
+  }
+  
+  /**
+   * Tear down the test
+   * @throws Exception if Vert.x could not be closed
+   */
+  @After
+  public void tearDown() throws Exception {
+    reloader.close();
+    CompletableFuture<Void> closed = new CompletableFuture<>();
+    vertx.close(ar -> closed.complete(null));
+    closed.get(10, TimeUnit.SECONDS);
+  }
+  
+  /**
+   * Deploy a verticle and wait until it has been started
+   * @param verticle the name of the verticle's class
+   * @param options the deployment options
+   * @return the deployment ID
+   * @throws Exception if the verticle could not be deployed
+   */
+  private String deploy(String verticle, DeploymentOptions options) throws Exception {
+    CompletableFuture<String> f = new CompletableFuture<>();
+    vertx.deployVerticle(verticle, options, ar -> {
+      if (ar.failed()) {
+        f.completeExceptionally(ar.cause());
+      } else {
+        f.complete(ar.result());
+      }
+    });
+    return f.get(10, TimeUnit.SECONDS);
+  }
+  
+  /**
+   * Create a source file, compile it and let the hot reloader watch it
+   * @param deploymentID the deployment that depends on the file
+   * @return the source file
+   * @throws Exception if something goes wrong
+   */
+  private File watchSource(String deploymentID) throws Exception {
+    File f = folder.newFile("main.ts");
+    write(f, "var i = 1;");
+    TypeScriptClassLoader cl = new TypeScriptClassLoader(
+        getClass().getClassLoader(), compiler, codeCache, sourceCache);
+    try (InputStream is = cl.getResourceAsStream(f.getAbsolutePath())) {
+      assertEquals("// var i = 1;", IOUtils.toString(is, StandardCharsets.UTF_8));
+    }
+    reloader.watch(deploymentID, cl);
+    return f;
+  }
+  
+  /**
+   * Write a file
+   * @param f the file
+   * @param contents the file's new contents
+   * @throws IOException if the file could not be written
+   */
+  private static void write(File f, String contents) throws IOException {
+    Files.write(f.toPath(), contents.getBytes(StandardCharsets.UTF_8));
+  }
+  
+  /**
+   * Wait until a condition becomes true
+   * @param condition the condition
+   * @return true if the condition has become true, false if it has still
+   * been false after 10 seconds
+   * @throws InterruptedException if the thread has been interrupted
+   */
+  private static boolean waitFor(BooleanSupplier condition) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (!condition.getAsBoolean()) {
+      if (System.currentTimeMillis() > deadline) {
+        return false;
+      }
+      Thread.sleep(50);
+    }
+    return true;
+  }
+  
+  /**
+   * Checks if a deployment is redeployed with the same options when one of
+   * its source files changes
+   * @throws Exception if something goes wrong
+   */
+  @Test
+  public void redeploy() throws Exception {
+    DeploymentOptions options = new DeploymentOptions()
+        .setConfig(new JsonObject().put("answer", 42));
+    String deploymentID = deploy(RecordingVerticle.class.getName(), options);
+    File f = watchSource(deploymentID);
+    
+    write(f, "var i = 2; var j = 3;");
+    assertTrue(waitFor(() -> started.size() == 2));
+    assertEquals(options.getConfig(), started.get(1));
+    assertFalse(vertx.deploymentIDs().contains(deploymentID));
+    assertEquals(1, vertx.deploymentIDs().size());
+    assertEquals(2, compiler.calls.get());
+  }
+  
+  /**
+   * Checks if the old verticle keeps running if the changed source file
+   * cannot be compiled
+   * @throws Exception if something goes wrong
+   */
+  @Test
+  public void compileError() throws Exception {
+    String deploymentID = deploy(RecordingVerticle.class.getName(),
+        new DeploymentOptions());
+    File f = watchSource(deploymentID);
+    
+    write(f, "var i = error;");
+    assertTrue(waitFor(() -> compiler.calls.get() == 2));
+    
+    // give the hot reloader a chance to do something wrong
+    Thread.sleep(500);
+    assertEquals(1, started.size());
+    assertTrue(vertx.deploymentIDs().contains(deploymentID));
+  }
+  
+  /**
+   * Checks if a verticle deployed by another verticle is not redeployed
+   * as a top-level deployment
+   * @throws Exception if something goes wrong
+   */
+  @Test
+  public void child() throws Exception {
+    deploy(ParentVerticle.class.getName(), new DeploymentOptions());
+    File f = watchSource(childDeploymentID);
+    
+    write(f, "var i = 2; var j = 3;");
+    assertTrue(waitFor(() -> compiler.calls.get() == 2));
+    
+    // give the hot reloader a chance to do something wrong
+    Thread.sleep(500);
+    assertEquals(1, started.size());
+    assertTrue(vertx.deploymentIDs().contains(childDeploymentID));
+  }
+}
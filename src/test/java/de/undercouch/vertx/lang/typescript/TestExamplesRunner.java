@@ -14,29 +14,48 @@
 
 package de.undercouch.vertx.lang.typescript;
 
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
 import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.apache.commons.io.FilenameUtils;
 
 import de.undercouch.vertx.lang.typescript.cache.InMemoryCache;
+import de.undercouch.vertx.lang.typescript.cache.NoopCache;
+import de.undercouch.vertx.lang.typescript.cache.SourceCache;
+import de.undercouch.vertx.lang.typescript.compiler.CompilerOptions;
 import de.undercouch.vertx.lang.typescript.compiler.EngineCompiler;
 import de.undercouch.vertx.lang.typescript.compiler.NodeCompiler;
 import de.undercouch.vertx.lang.typescript.compiler.Source;
 import de.undercouch.vertx.lang.typescript.compiler.SourceFactory;
 import de.undercouch.vertx.lang.typescript.compiler.TypeScriptCompiler;
 import de.undercouch.vertx.lang.typescript.compiler.V8Compiler;
+import de.undercouch.vertx.lang.typescript.compiler.V8CompilerPool;
 
 /**
- * Test if all JavaScript examples from vertx-examples can be compiled
+ * Test if all JavaScript examples from vertx-examples can be compiled. Can
+ * also measure how long each compiler takes to compile the examples (see
+ * {@link #benchmark(List, File, File, int)}).
  * @author Michel Kraemer
  */
 public class TestExamplesRunner {
@@ -101,6 +120,25 @@ public class TestExamplesRunner {
     return v8Compiler;
   }
   
+  /**
+   * Close all compilers created so far so they release their native
+   * resources and external processes
+   */
+  private void closeCompilers() {
+    if (nodeCompiler != null) {
+      nodeCompiler.close();
+      nodeCompiler = null;
+    }
+    if (engineCompiler != null) {
+      engineCompiler.close();
+      engineCompiler = null;
+    }
+    if (v8Compiler != null) {
+      v8Compiler.close();
+      v8Compiler = null;
+    }
+  }
+  
   private boolean containsEndsWith(Set<String> haystack, String needle) {
     for (String s : haystack) {
       if (needle.endsWith(s)) {
@@ -174,8 +212,7 @@ public class TestExamplesRunner {
     });
   }
   
-  public void run(File pathToExamples, File pathToTypings, List<String> dirsToSkip,
-      List<String> filesToSkip) throws Exception {
+  private void setFilesToSkip(List<String> dirsToSkip, List<String> filesToSkip) {
     this.dirsToSkip = DEFAULT_DIRS_TO_SKIP;
     if (dirsToSkip != null) {
       this.dirsToSkip = new HashSet<>(dirsToSkip);
@@ -185,29 +222,42 @@ public class TestExamplesRunner {
     if (filesToSkip != null) {
       this.filesToSkip = new HashSet<>(filesToSkip);
     }
+  }
+  
+  private static boolean isTravis() {
+    return Boolean.parseBoolean(System.getenv("TRAVIS"));
+  }
+  
+  public void run(File pathToExamples, File pathToTypings, List<String> dirsToSkip,
+      List<String> filesToSkip) throws Exception {
+    setFilesToSkip(dirsToSkip, filesToSkip);
     
     List<File> javaScriptFiles = getAllJavaScriptFiles(pathToExamples);
     TypeScriptCompiler compiler;
     
-    if (V8Compiler.supportsV8()) {
-      System.out.println("Using V8Compiler ...");
-      compiler = getV8Compiler();
-      run(javaScriptFiles, compiler, pathToExamples, pathToTypings);
-    }
-    
-    if (NodeCompiler.supportsNode()) {
-      System.out.println("Using NodeCompiler ...");
-      compiler = getNodeCompiler();
-      run(javaScriptFiles, compiler, pathToExamples, pathToTypings);
-    }
-    
-    // skip EngineCompiler tests on Travis CI, because they are likely to fail
-    if (Boolean.parseBoolean(System.getenv("TRAVIS"))) {
-      System.out.println("Travis CI environment detected. Skipping EngineCompiler tests.");
-    } else {
-      System.out.println("Using EngineCompiler ...");
-      compiler = getEngineCompiler();
-      run(javaScriptFiles, compiler, pathToExamples, pathToTypings);
+    try {
+      if (V8Compiler.supportsV8()) {
+        System.out.println("Using V8Compiler ...");
+        compiler = getV8Compiler();
+        run(javaScriptFiles, compiler, pathToExamples, pathToTypings);
+      }
+      
+      if (NodeCompiler.supportsNode()) {
+        System.out.println("Using NodeCompiler ...");
+        compiler = getNodeCompiler();
+        run(javaScriptFiles, compiler, pathToExamples, pathToTypings);
+      }
+      
+      // skip EngineCompiler tests on Travis CI, because they are likely to fail
+      if (isTravis()) {
+        System.out.println("Travis CI environment detected. Skipping EngineCompiler tests.");
+      } else {
+        System.out.println("Using EngineCompiler ...");
+        compiler = getEngineCompiler();
+        run(javaScriptFiles, compiler, pathToExamples, pathToTypings);
+      }
+    } finally {
+      closeCompilers();
     }
   }
   
@@ -232,6 +282,147 @@ public class TestExamplesRunner {
     }
   }
   
+  /**
+   * Compile the examples with each available compiler and write a JSON
+   * report containing the time it took to compile each file, the total
+   * time and the peak heap usage. The peak heap usage only covers the Java
+   * heap and not the memory of the Node.js process or of native V8
+   * runtimes. Runs of these compilers are marked with
+   * <code>heapOnly</code>. Each compiler compiles the examples twice:
+   * first with a new compiler and an empty source cache ('cold-compiler')
+   * and then again with the same compiler and source cache
+   * ('warm-compiler'). The files are always passed to the compiler
+   * directly, so both runs measure compilation and never hit a code cache.
+   * Files that cannot be compiled are reported as failed but do not stop
+   * the benchmark.
+   * @param pathsToExamples the directories containing the examples
+   * @param pathToTypings the directory containing the type definitions
+   * @param reportFile the file the report should be written to
+   * @param parallelism the number of files to compile in parallel
+   * @throws Exception if the benchmark could not be run
+   */
+  public void benchmark(List<File> pathsToExamples, File pathToTypings,
+      File reportFile, int parallelism) throws Exception {
+    setFilesToSkip(null, null);
+    
+    Map<File, String> javaScriptFiles = new LinkedHashMap<>();
+    for (File dir : pathsToExamples) {
+      for (File f : getAllJavaScriptFiles(dir)) {
+        javaScriptFiles.put(f, dir.getName() + "/" + FilenameUtils.separatorsToUnix(
+            dir.toPath().relativize(f.toPath()).toString()));
+      }
+    }
+    
+    Map<String, Supplier<TypeScriptCompiler>> compilers = new LinkedHashMap<>();
+    if (V8Compiler.supportsV8()) {
+      // V8 runtimes cannot be shared between threads
+      compilers.put("v8", () -> parallelism > 1 ?
+          new V8CompilerPool(parallelism, new CompilerOptions()) : new V8Compiler());
+    }
+    if (NodeCompiler.supportsNode()) {
+      compilers.put("node", NodeCompiler::new);
+    }
+    if (!isTravis()) {
+      compilers.put("nashorn", EngineCompiler::new);
+    }
+    
+    JsonArray runs = new JsonArray();
+    ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+    try {
+      for (Map.Entry<String, Supplier<TypeScriptCompiler>> e : compilers.entrySet()) {
+        TypeScriptCompiler compiler = e.getValue().get();
+        try {
+          // the class loader only resolves type definitions here. it never
+          // compiles anything, so there is no point in giving it a code cache.
+          SourceFactory parentSourceFactory = new TypeScriptClassLoader(
+              getClass().getClassLoader(), compiler, new NoopCache(), new SourceCache());
+          for (String run : new String[] { "cold-compiler", "warm-compiler" }) {
+            System.out.println("Benchmarking " + e.getKey() + " (" + run + ") ...");
+            runs.add(new JsonObject()
+              .put("compiler", e.getKey())
+              .put("run", run)
+              .put("fingerprint", compiler.getFingerprint())
+              // peakHeapBytes does not include memory outside the Java heap
+              .put("heapOnly", !e.getKey().equals("nashorn"))
+              .mergeIn(benchmark(javaScriptFiles, compiler, parentSourceFactory,
+                  pathToTypings, executor)));
+          }
+        } finally {
+          compiler.close();
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+    
+    JsonObject report = new JsonObject()
+        .put("javaVersion", System.getProperty("java.version"))
+        .put("parallelism", parallelism)
+        .put("runs", runs);
+    File parent = reportFile.getAbsoluteFile().getParentFile();
+    if (parent != null) {
+      parent.mkdirs();
+    }
+    Files.write(reportFile.toPath(), report.encodePrettily().getBytes(
+        StandardCharsets.UTF_8));
+    System.out.println("Report written to " + reportFile);
+  }
+  
+  private JsonObject benchmark(Map<File, String> javaScriptFiles,
+      TypeScriptCompiler compiler, SourceFactory parentSourceFactory,
+      File pathToTypings, ExecutorService executor) throws Exception {
+    List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        heapPools.add(pool);
+      }
+    }
+    System.gc();
+    heapPools.forEach(MemoryPoolMXBean::resetPeakUsage);
+    
+    long start = System.nanoTime();
+    List<Future<JsonObject>> futures = new ArrayList<>();
+    for (Map.Entry<File, String> e : javaScriptFiles.entrySet()) {
+      futures.add(executor.submit(() -> {
+        JsonObject result = new JsonObject().put("file", e.getValue());
+        long fileStart = System.nanoTime();
+        try {
+          compile(e.getKey(), compiler, parentSourceFactory, pathToTypings);
+          result.put("success", true);
+        } catch (Exception ex) {
+          System.out.println(e.getValue() + " FAILED: " + ex.getMessage());
+          result.put("success", false);
+        }
+        return result.put("millis", (System.nanoTime() - fileStart) / 1000000.0);
+      }));
+    }
+    
+    JsonArray files = new JsonArray();
+    int failed = 0;
+    for (Future<JsonObject> f : futures) {
+      JsonObject result = f.get();
+      if (!result.getBoolean("success")) {
+        ++failed;
+      }
+      files.add(result);
+    }
+    double totalMillis = (System.nanoTime() - start) / 1000000.0;
+    
+    long peakHeap = 0;
+    for (MemoryPoolMXBean pool : heapPools) {
+      peakHeap += pool.getPeakUsage().getUsed();
+    }
+    
+    System.out.println(String.format("%d files, %d failed, %.0f ms, peak heap %d MB",
+        files.size(), failed, totalMillis, peakHeap / (1024 * 1024)));
+    
+    return new JsonObject()
+        .put("totalMillis", totalMillis)
+        .put("peakHeapBytes", peakHeap)
+        .put("failed", failed)
+        .put("files", files);
+  }
+  
   public static void main(String[] args) throws Exception {
     TestExamplesRunner runner = new TestExamplesRunner();
     runner.run(new File(args[0]), new File(args[1]), null, null);
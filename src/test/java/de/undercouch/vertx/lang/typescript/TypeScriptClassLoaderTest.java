@@ -0,0 +1,370 @@
+// Copyright 2016 Michel Kraemer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.undercouch.vertx.lang.typescript;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.undercouch.vertx.lang.typescript.cache.InMemoryCache;
+import de.undercouch.vertx.lang.typescript.cache.NoopCache;
+import de.undercouch.vertx.lang.typescript.compiler.SourceFactory;
+import de.undercouch.vertx.lang.typescript.compiler.TypeScriptCompiler;
+
+/**
+ * Tests {@link TypeScriptClassLoader}
+ * @author Michel Kraemer
+ */
+public class TypeScriptClassLoaderTest {
+  /**
+   * A temporary folder for precompiled code
+   */
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+  
+  /**
+   * A fake compiler that counts how often it has been called
+   */
+  private static class CountingCompiler implements TypeScriptCompiler {
+    /**
+     * The number of calls
+     */
+    final AtomicInteger calls = new AtomicInteger();
+    
+    @Override
+    public String compile(String filename, SourceFactory sourceFactory) throws IOException {
+      calls.incrementAndGet();
+      sourceFactory.getSource(filename, null);
+      try {
+        // give other threads time to request the same file
+        Thread.sleep(200);
+      } catch (InterruptedException e) {
+        throw new IllegalStateException(e);
+      }
+      return "// compiled";
+    }
+    
+    @Override
+    public List<String> check(String filename, SourceFactory sourceFactory) {
+      return new ArrayList<>();
+    }
+    
+    @Override
+    public String getFingerprint() {
+      return "test";
+    }
+  }
+  
+  /**
+   * Checks if a file requested by multiple threads at the same time
+   * is only compiled once
+   * @throws Exception if something goes wrong
+   */
+  @Test
+  public void singleFlight() throws Exception {
+    CountingCompiler compiler = new CountingCompiler();
+    int threadCount = 8;
+    CountDownLatch start = new CountDownLatch(1);
+    AtomicInteger loaded = new AtomicInteger();
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < threadCount; ++i) {
+      Thread t = new Thread(() -> {
+        TypeScriptClassLoader cl = new TypeScriptClassLoader(
+            getClass().getClassLoader(), compiler, new NoopCache());
+        try {
+          start.await();
+          try (InputStream is = cl.getResourceAsStream("simpleServer.ts")) {
+            assertNotNull(is);
+            loaded.incrementAndGet();
+          }
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      });
+      t.start();
+      threads.add(t);
+    }
+    
+    start.countDown();
+    for (Thread t : threads) {
+      t.join();
+    }
+    
+    assertEquals(threadCount, loaded.get());
+    assertEquals(1, compiler.calls.get());
+  }
+  
+  /**
+   * Checks if files with the same contents but different locations that
+   * are requested at the same time are compiled separately
+   * @throws Exception if something goes wrong
+   */
+  @Test
+  public void singleFlightDifferentLocations() throws Exception {
+    File a = folder.newFolder("a");
+    File b = folder.newFolder("b");
+    for (File dir : new File[] { a, b }) {
+      Files.write(new File(dir, "main.ts").toPath(),
+          "import x = require('./x');".getBytes(StandardCharsets.UTF_8));
+      Files.write(new File(dir, "x.ts").toPath(),
+          ("// " + dir.getName()).getBytes(StandardCharsets.UTF_8));
+    }
+    
+    CountingCompiler compiler = new CountingCompiler() {
+      @Override
+      public String compile(String filename, SourceFactory sourceFactory) throws IOException {
+        super.compile(filename, sourceFactory);
+        return sourceFactory.getSource("./x.ts", filename).toString();
+      }
+    };
+    
+    CountDownLatch start = new CountDownLatch(1);
+    Map<String, String> results = new ConcurrentHashMap<>();
+    List<Thread> threads = new ArrayList<>();
+    for (File dir : new File[] { a, b }) {
+      Thread t = new Thread(() -> {
+        TypeScriptClassLoader cl = new TypeScriptClassLoader(
+            getClass().getClassLoader(), compiler, new NoopCache());
+        String name = new File(dir, "main.ts").getAbsolutePath();
+        try {
+          start.await();
+          try (InputStream is = cl.getResourceAsStream(name)) {
+            results.put(dir.getName(), IOUtils.toString(is, StandardCharsets.UTF_8));
+          }
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      });
+      t.start();
+      threads.add(t);
+    }
+    
+    start.countDown();
+    for (Thread t : threads) {
+      t.join();
+    }
+    
+    assertEquals("// a", results.get("a"));
+    assertEquals("// b", results.get("b"));
+    assertEquals(2, compiler.calls.get());
+  }
+  
+  /**
+   * Checks if the code generated for imported files is cached so they do
+   * not have to be compiled again
+   * @throws Exception if something goes wrong
+   */
+  @Test
+  public void modules() throws Exception {
+    CountingCompiler compiler = new CountingCompiler() {
+      @Override
+      public Map<String, String> compileModules(String filename,
+          SourceFactory sourceFactory) throws IOException {
+        calls.incrementAndGet();
+        sourceFactory.getSource("moduleServerModule.ts", filename);
+        sourceFactory.getSource(filename, null);
+        Map<String, String> result = new LinkedHashMap<>();
+        result.put("moduleServerModule.ts", "// module\n");
+        result.put(filename, "// server\n");
+        return result;
+      }
+    };
+    
+    InMemoryCache cache = new InMemoryCache();
+    TypeScriptClassLoader cl = new TypeScriptClassLoader(
+        getClass().getClassLoader(), compiler, cache);
+    try (InputStream is = cl.getResourceAsStream("moduleServer.ts")) {
+      assertEquals("// module\n// server\n", IOUtils.toString(is, StandardCharsets.UTF_8));
+    }
+    assertEquals(1, compiler.calls.get());
+    
+    cl = new TypeScriptClassLoader(getClass().getClassLoader(), compiler, cache);
+    try (InputStream is = cl.getResourceAsStream("moduleServerModule.ts")) {
+      assertEquals("// module\n", IOUtils.toString(is, StandardCharsets.UTF_8));
+    }
+    assertEquals(1, compiler.calls.get());
+  }
+  
+  /**
+   * Checks if files are only recompiled by {@link TypeScriptClassLoader#refresh(String)}
+   * if they have changed
+   * @throws Exception if something goes wrong
+   */
+  @Test
+  public void refresh() throws Exception {
+    File f = folder.newFile("main.ts");
+    Files.write(f.toPath(), "var i = 5;".getBytes(StandardCharsets.UTF_8));
+    String name = f.getAbsolutePath();
+    
+    CountingCompiler compiler = new CountingCompiler();
+    InMemoryCache cache = new InMemoryCache();
+    TypeScriptClassLoader cl = new TypeScriptClassLoader(
+        getClass().getClassLoader(), compiler, cache);
+    try (InputStream is = cl.getResourceAsStream(name)) {
+      assertNotNull(is);
+    }
+    assertEquals(1, compiler.calls.get());
+    assertTrue(cl.getLoadedFiles().contains(name));
+    assertTrue(cl.getSourceURLs().contains(f.toURI().toURL()));
+    
+    cl = new TypeScriptClassLoader(getClass().getClassLoader(), compiler, cache);
+    assertFalse(cl.refresh(name));
+    assertEquals(1, compiler.calls.get());
+    
+    Files.write(f.toPath(), "var i = 6; var j = 7;".getBytes(StandardCharsets.UTF_8));
+    cl = new TypeScriptClassLoader(getClass().getClassLoader(), compiler, cache);
+    assertTrue(cl.refresh(name));
+    assertEquals(2, compiler.calls.get());
+  }
+  
+  /**
+   * Checks if files with the same contents but different locations are
+   * compiled separately because they may import different files
+   * @throws Exception if something goes wrong
+   */
+  @Test
+  public void sameContentsDifferentLocations() throws Exception {
+    File a = folder.newFolder("a");
+    File b = folder.newFolder("b");
+    for (File dir : new File[] { a, b }) {
+      Files.write(new File(dir, "main.ts").toPath(),
+          "import x = require('./x');".getBytes(StandardCharsets.UTF_8));
+      Files.write(new File(dir, "x.ts").toPath(),
+          ("// " + dir.getName()).getBytes(StandardCharsets.UTF_8));
+    }
+    
+    CountingCompiler compiler = new CountingCompiler() {
+      @Override
+      public String compile(String filename, SourceFactory sourceFactory) throws IOException {
+        calls.incrementAndGet();
+        sourceFactory.getSource(filename, null);
+        return sourceFactory.getSource("./x.ts", filename).toString();
+      }
+    };
+    
+    InMemoryCache cache = new InMemoryCache();
+    for (File dir : new File[] { a, b }) {
+      TypeScriptClassLoader cl = new TypeScriptClassLoader(
+          getClass().getClassLoader(), compiler, cache);
+      String name = new File(dir, "main.ts").getAbsolutePath();
+      try (InputStream is = cl.getResourceAsStream(name)) {
+        assertEquals("// " + dir.getName(), IOUtils.toString(is, StandardCharsets.UTF_8));
+      }
+    }
+    assertEquals(2, compiler.calls.get());
+  }
+  
+  /**
+   * Checks if precompiled code is served without touching the compiler
+   * @throws Exception if something goes wrong
+   */
+  @Test
+  public void precompiled() throws Exception {
+    File sourceDir = new File(getClass().getResource("/simpleServer.ts").toURI())
+        .getParentFile();
+    File outputDir = folder.newFolder();
+    CountingCompiler compiler = new CountingCompiler();
+    new TypeScriptPrecompiler(sourceDir, outputDir, compiler).compile("simpleServer.ts");
+    assertEquals(1, compiler.calls.get());
+    
+    TypeScriptCompiler failingCompiler = new TypeScriptCompiler() {
+      @Override
+      public String compile(String filename, SourceFactory sourceFactory) {
+        throw new IllegalStateException("Compiler must not be called");
+      }
+      
+      @Override
+      public List<String> check(String filename, SourceFactory sourceFactory) {
+        throw new IllegalStateException("Compiler must not be called");
+      }
+      
+      @Override
+      public String getFingerprint() {
+        throw new IllegalStateException("Compiler must not be called");
+      }
+    };
+    
+    URL[] urls = new URL[] { outputDir.toURI().toURL() };
+    try (URLClassLoader parent = new URLClassLoader(urls, getClass().getClassLoader())) {
+      TypeScriptClassLoader cl = new TypeScriptClassLoader(parent,
+          failingCompiler, new NoopCache());
+      try (InputStream is = cl.getResourceAsStream("simpleServer.ts")) {
+        assertEquals("// compiled", IOUtils.toString(is, StandardCharsets.UTF_8));
+      }
+    }
+  }
+  
+  /**
+   * Checks if precompiled files with the same contents but different names
+   * do not overwrite each other
+   * @throws Exception if something goes wrong
+   */
+  @Test
+  public void precompiledSameContents() throws Exception {
+    File sourceDir = folder.newFolder();
+    for (String name : new String[] { "a.ts", "b.ts" }) {
+      Files.write(new File(sourceDir, name).toPath(),
+          "var i = 5;".getBytes(StandardCharsets.UTF_8));
+    }
+    File outputDir = folder.newFolder();
+    CountingCompiler compiler = new CountingCompiler() {
+      @Override
+      public String compile(String filename, SourceFactory sourceFactory) throws IOException {
+        calls.incrementAndGet();
+        sourceFactory.getSource(filename, null);
+        return "// " + filename;
+      }
+    };
+    TypeScriptPrecompiler precompiler = new TypeScriptPrecompiler(
+        sourceDir, outputDir, compiler);
+    precompiler.compile("a.ts");
+    precompiler.compile("b.ts");
+    
+    URL[] urls = new URL[] { sourceDir.toURI().toURL(), outputDir.toURI().toURL() };
+    try (URLClassLoader parent = new URLClassLoader(urls, getClass().getClassLoader())) {
+      for (String name : new String[] { "a.ts", "b.ts" }) {
+        TypeScriptClassLoader cl = new TypeScriptClassLoader(parent,
+            compiler, new NoopCache());
+        try (InputStream is = cl.getResourceAsStream(name)) {
+          assertEquals("// " + name, IOUtils.toString(is, StandardCharsets.UTF_8));
+        }
+      }
+    }
+    
+    // the code should have been served from the precompiled files
+    assertEquals(2, compiler.calls.get());
+  }
+}
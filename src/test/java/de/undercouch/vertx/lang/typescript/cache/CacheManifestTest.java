@@ -0,0 +1,231 @@
+// Copyright 2016 Michel Kraemer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.undercouch.vertx.lang.typescript.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.FileNotFoundException;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import de.undercouch.vertx.lang.typescript.compiler.Source;
+import de.undercouch.vertx.lang.typescript.compiler.SourceFactory;
+
+/**
+ * Tests {@link CacheManifest}
+ * @author Michel Kraemer
+ */
+public class CacheManifestTest {
+  /**
+   * Creates a source factory serving files from a map
+   * @param files maps file names to file contents
+   * @return the source factory
+   */
+  private static SourceFactory makeSourceFactory(Map<String, String> files) {
+    return (filename, baseFilename) -> {
+      String contents = files.get(filename);
+      if (contents == null) {
+        throw new FileNotFoundException(filename);
+      }
+      return new Source(URI.create(filename), contents);
+    };
+  }
+  
+  /**
+   * Records a manifest by loading the given files
+   * @param sourceFactory the factory to load the files from
+   * @param filenames the files to load
+   * @return the manifest
+   * @throws Exception if something goes wrong
+   */
+  private static CacheManifest record(SourceFactory sourceFactory,
+      String... filenames) throws Exception {
+    CacheManifest manifest = new CacheManifest("test");
+    SourceFactory recorder = manifest.record(sourceFactory);
+    for (String f : filenames) {
+      try {
+        recorder.getSource(f, "main.ts");
+      } catch (FileNotFoundException e) {
+        // ignore
+      }
+    }
+    return manifest;
+  }
+  
+  /**
+   * Checks if a manifest can be serialized and parsed again
+   * @throws Exception if something goes wrong
+   */
+  @Test
+  public void serialize() throws Exception {
+    Map<String, String> files = new HashMap<>();
+    files.put("main.ts", "import m = require('./module');");
+    files.put("module.ts", "export var i = 5;");
+    SourceFactory sf = makeSourceFactory(files);
+    
+    CacheManifest manifest = record(sf, "main.ts", "module.ts", "missing.ts");
+    CacheManifest parsed = CacheManifest.parse(manifest.toString());
+    assertEquals("test", parsed.getFingerprint());
+    assertEquals(manifest.toString(), parsed.toString());
+    assertEquals(manifest.getCodeKey(), parsed.getCodeKey());
+    assertTrue(parsed.isValid(sf));
+  }
+  
+  /**
+   * Checks if a manifest becomes invalid if a dependency changes
+   * @throws Exception if something goes wrong
+   */
+  @Test
+  public void changedDependency() throws Exception {
+    Map<String, String> files = new HashMap<>();
+    files.put("main.ts", "import m = require('./module');");
+    files.put("module.ts", "export var i = 5;");
+    SourceFactory sf = makeSourceFactory(files);
+    
+    CacheManifest manifest = record(sf, "main.ts", "module.ts");
+    assertTrue(manifest.isValid(sf));
+    
+    files.put("module.ts", "export var i = 6;");
+    assertFalse(manifest.isValid(sf));
+    assertNotEquals(manifest.getCodeKey(),
+        record(sf, "main.ts", "module.ts").getCodeKey());
+  }
+  
+  /**
+   * Checks if a manifest becomes invalid if a file the compiler could not
+   * find is created later
+   * @throws Exception if something goes wrong
+   */
+  @Test
+  public void createdDependency() throws Exception {
+    Map<String, String> files = new HashMap<>();
+    files.put("main.ts", "import m = require('./module');");
+    SourceFactory sf = makeSourceFactory(files);
+    
+    CacheManifest manifest = record(sf, "main.ts", "module.ts");
+    assertTrue(manifest.isValid(sf));
+    
+    files.put("module.ts", "export var i = 5;");
+    assertFalse(manifest.isValid(sf));
+  }
+  
+  /**
+   * Checks if manifests of files compiled together share their dependencies
+   * but not their code keys
+   * @throws Exception if something goes wrong
+   */
+  @Test
+  public void forModule() throws Exception {
+    Map<String, String> files = new HashMap<>();
+    files.put("main.ts", "import m = require('./module');");
+    files.put("module.ts", "export var i = 5;");
+    SourceFactory sf = makeSourceFactory(files);
+    
+    CacheManifest manifest = record(sf, "main.ts", "module.ts");
+    CacheManifest moduleManifest = manifest.forModule("module.ts");
+    assertEquals("module.ts", moduleManifest.getModule());
+    assertNotEquals(manifest.getCodeKey(), moduleManifest.getCodeKey());
+    assertTrue(moduleManifest.isValid(sf));
+    
+    CacheManifest parsed = CacheManifest.parse(moduleManifest.toString());
+    assertEquals("module.ts", parsed.getModule());
+    assertEquals(moduleManifest.getCodeKey(), parsed.getCodeKey());
+    
+    files.put("main.ts", "import m = require('./module'); var j = 6;");
+    assertFalse(moduleManifest.isValid(sf));
+  }
+  
+  /**
+   * Checks if relative file names in the manifest of a module are resolved
+   * against the file they have been recorded for
+   * @throws Exception if something goes wrong
+   */
+  @Test
+  public void forModuleRelative() throws Exception {
+    Map<String, String> files = new HashMap<>();
+    files.put("app/main.ts", "import m = require('./lib/module');");
+    files.put("app/lib/module.ts", "export var i = 5;");
+    SourceFactory sf = (filename, baseFilename) -> {
+      // resolve relative file names like the class loader does
+      if (baseFilename != null && filename.startsWith("./")) {
+        filename = URI.create(baseFilename).resolve(filename).toString();
+      }
+      return makeSourceFactory(files).getSource(filename, null);
+    };
+    
+    CacheManifest manifest = new CacheManifest("test");
+    SourceFactory recorder = manifest.record(sf);
+    recorder.getSource("app/main.ts", null);
+    recorder.getSource("./lib/module.ts", "app/main.ts");
+    
+    CacheManifest moduleManifest = CacheManifest.parse(
+        manifest.forModule("app/lib/module.ts").toString());
+    assertTrue(moduleManifest.isValid(sf));
+    
+    files.put("app/lib/module.ts", "export var i = 6;");
+    assertFalse(moduleManifest.isValid(sf));
+  }
+  
+  /**
+   * Checks if the key under which a manifest is stored depends on the
+   * compiler fingerprint
+   */
+  @Test
+  public void fingerprint() {
+    Source src = new Source(URI.create("main.ts"), "var i = 5;");
+    assertEquals(CacheManifest.getKey("a", src), CacheManifest.getKey("a", src));
+    assertNotEquals(CacheManifest.getKey("a", src), CacheManifest.getKey("b", src));
+  }
+  
+  /**
+   * Checks if files with the same contents but different locations get
+   * different keys
+   */
+  @Test
+  public void location() {
+    Source a = new Source(URI.create("a/main.ts"), "var i = 5;");
+    Source b = new Source(URI.create("b/main.ts"), "var i = 5;");
+    assertNotEquals(CacheManifest.getKey("a", a), CacheManifest.getKey("a", b));
+    assertNotEquals(CacheManifest.getKey("a", "a/main.ts", a),
+        CacheManifest.getKey("a", "b/main.ts", a));
+  }
+  
+  /**
+   * Checks if files loaded through an unwrapped source factory are not
+   * recorded in the manifest
+   * @throws Exception if something goes wrong
+   */
+  @Test
+  public void unwrap() throws Exception {
+    Map<String, String> files = new HashMap<>();
+    files.put("main.ts", "var i = 5;");
+    SourceFactory sourceFactory = makeSourceFactory(files);
+    
+    CacheManifest manifest = new CacheManifest("test");
+    SourceFactory recorder = manifest.record(sourceFactory);
+    assertSame(sourceFactory, CacheManifest.unwrap(recorder));
+    assertSame(sourceFactory, CacheManifest.unwrap(sourceFactory));
+    
+    CacheManifest.unwrap(recorder).getSource("main.ts", null);
+    assertEquals(new CacheManifest("test").toString(), manifest.toString());
+  }
+}
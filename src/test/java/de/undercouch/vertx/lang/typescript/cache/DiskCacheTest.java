@@ -0,0 +1,176 @@
+// Copyright 2016 Michel Kraemer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.undercouch.vertx.lang.typescript.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.function.Function;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests {@link DiskCache}
+ * @author Michel Kraemer
+ */
+public class DiskCacheTest {
+  /**
+   * A temporary folder for the cache
+   */
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+  
+  /**
+   * Checks if code can be written to disk and read again
+   * @throws Exception if something goes wrong
+   */
+  @Test
+  public void putGet() throws Exception {
+    File dir = folder.newFolder();
+    DiskCache cache = new DiskCache(dir, new NoopCache());
+    assertNull(cache.get("key"));
+    cache.put("key", "var s = \"äöü €\";");
+    
+    // read it with a new cache so it does not come from memory
+    DiskCache cache2 = new DiskCache(dir, new NoopCache());
+    assertEquals("var s = \"äöü €\";", cache2.get("key"));
+    
+    // no temporary files should be left
+    assertEquals(1, dir.listFiles().length);
+  }
+  
+  /**
+   * Checks if truncated entries are ignored and deleted
+   * @throws Exception if something goes wrong
+   */
+  @Test
+  public void truncated() throws Exception {
+    File dir = folder.newFolder();
+    DiskCache cache = new DiskCache(dir, new NoopCache());
+    cache.put("key", "var i = 5;");
+    
+    File f = new File(dir, "key");
+    try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+      raf.setLength(raf.length() - 1);
+    }
+    
+    assertNull(cache.get("key"));
+    assertFalse(f.exists());
+  }
+  
+  /**
+   * Checks if entries with a wrong checksum are ignored and deleted
+   * @throws Exception if something goes wrong
+   */
+  @Test
+  public void corrupt() throws Exception {
+    File dir = folder.newFolder();
+    DiskCache cache = new DiskCache(dir, new NoopCache());
+    cache.put("key", "var i = 5;");
+    
+    File f = new File(dir, "key");
+    try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+      raf.seek(raf.length() - 2);
+      raf.write('6');
+    }
+    
+    assertNull(cache.get("key"));
+    assertFalse(f.exists());
+  }
+  
+  /**
+   * Checks if the least recently used entries are evicted if the cache
+   * exceeds its maximum number of entries
+   * @throws Exception if something goes wrong
+   */
+  @Test
+  public void evictLeastRecentlyUsed() throws Exception {
+    File dir = folder.newFolder();
+    DiskCache cache = new DiskCache(dir, new NoopCache(), Long.MAX_VALUE, 2);
+    cache.put("a", "var a = 1;");
+    Thread.sleep(10);
+    cache.put("b", "var b = 2;");
+    Thread.sleep(10);
+    
+    // touch "a" so "b" becomes the least recently used entry
+    assertNotNull(cache.get("a"));
+    Thread.sleep(10);
+    cache.put("c", "var c = 3;");
+    cache.awaitIndex();
+    
+    assertNotNull(cache.get("a"));
+    assertNull(cache.get("b"));
+    assertNotNull(cache.get("c"));
+  }
+  
+  /**
+   * Checks if entries written before the cache was created are taken
+   * into account
+   * @throws Exception if something goes wrong
+   */
+  @Test
+  public void evictExisting() throws Exception {
+    File dir = folder.newFolder();
+    DiskCache cache = new DiskCache(dir, new NoopCache());
+    cache.put("a", "var a = 1;");
+    cache.put("b", "var b = 2;");
+    
+    // the size of one entry is the header plus 10 bytes of code
+    DiskCache bounded = new DiskCache(dir, new NoopCache(), 40, Integer.MAX_VALUE);
+    bounded.awaitIndex();
+    assertEquals(1, dir.listFiles((d, name) -> !name.startsWith(".")).length);
+  }
+  
+  /**
+   * Checks if temporary files left over by a crashed process are deleted
+   * but temporary files that may still be written are kept
+   * @throws Exception if something goes wrong
+   */
+  @Test
+  public void deleteStaleTemporaryFiles() throws Exception {
+    assertStaleTemporaryFilesDeleted(dir -> new DiskCache(dir, new NoopCache()));
+    assertStaleTemporaryFilesDeleted(dir -> new DiskCache(dir, new NoopCache(),
+        Long.MAX_VALUE, 10));
+  }
+  
+  /**
+   * Creates a cache in a directory containing a stale and a recent
+   * temporary file and checks if only the stale one is deleted
+   * @param newCache creates the cache for a given directory
+   * @throws Exception if something goes wrong
+   */
+  private void assertStaleTemporaryFilesDeleted(Function<File, DiskCache> newCache)
+      throws Exception {
+    File dir = folder.newFolder();
+    File stale = new File(dir, "a" + DiskCacheIndex.TMP_EXTENSION);
+    assertTrue(stale.createNewFile());
+    assertTrue(stale.setLastModified(System.currentTimeMillis() -
+        DiskCacheIndex.STALE_TMP_AGE - 1000));
+    File recent = new File(dir, "b" + DiskCacheIndex.TMP_EXTENSION);
+    assertTrue(recent.createNewFile());
+    
+    DiskCache cache = newCache.apply(dir);
+    cache.awaitIndex();
+    assertFalse(stale.exists());
+    assertTrue(recent.exists());
+  }
+}
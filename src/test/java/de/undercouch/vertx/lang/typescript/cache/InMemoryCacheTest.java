@@ -0,0 +1,101 @@
+// Copyright 2016 Michel Kraemer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.undercouch.vertx.lang.typescript.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link InMemoryCache}
+ * @author Michel Kraemer
+ */
+public class InMemoryCacheTest {
+  /**
+   * Creates a string of the given length
+   * @param c the character to repeat
+   * @param length the length of the string
+   * @return the string
+   */
+  private static String repeat(char c, int length) {
+    StringBuilder sb = new StringBuilder(length);
+    for (int i = 0; i < length; ++i) {
+      sb.append(c);
+    }
+    return sb.toString();
+  }
+  
+  /**
+   * Checks if values can be put into the cache and retrieved again
+   */
+  @Test
+  public void putGet() {
+    InMemoryCache cache = new InMemoryCache();
+    assertNull(cache.get("a"));
+    cache.put("a", "A");
+    cache.put("b", "B");
+    assertEquals("A", cache.get("a"));
+    assertEquals("B", cache.get("b"));
+    cache.put("a", "AA");
+    assertEquals("AA", cache.get("a"));
+  }
+  
+  /**
+   * Checks if the least recently used entries are evicted
+   */
+  @Test
+  public void evictLeastRecentlyUsed() {
+    String value = repeat('x', 1000);
+    InMemoryCache cache = new InMemoryCache(3 * 1200, false);
+    cache.put("a", value);
+    cache.put("b", value);
+    cache.put("c", value);
+    
+    // touch "a" so "b" becomes the least recently used entry
+    assertEquals(value, cache.get("a"));
+    cache.put("d", value);
+    
+    assertNull(cache.get("b"));
+    assertEquals(value, cache.get("a"));
+    assertEquals(value, cache.get("c"));
+    assertEquals(value, cache.get("d"));
+    assertTrue(cache.getSize() <= 3 * 1200);
+  }
+  
+  /**
+   * Checks if values larger than the cache are not cached at all
+   */
+  @Test
+  public void tooLarge() {
+    InMemoryCache cache = new InMemoryCache(1000, false);
+    cache.put("a", "A");
+    cache.put("b", repeat('x', 1000));
+    assertNull(cache.get("b"));
+    assertEquals("A", cache.get("a"));
+  }
+  
+  /**
+   * Checks if a cache with soft values keeps its values as long as there
+   * is enough memory
+   */
+  @Test
+  public void softValues() {
+    InMemoryCache cache = new InMemoryCache(InMemoryCache.DEFAULT_MAX_SIZE, true);
+    cache.put("a", "A");
+    assertEquals("A", cache.get("a"));
+  }
+}
@@ -0,0 +1,194 @@
+// Copyright 2016 Michel Kraemer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.undercouch.vertx.lang.typescript.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests {@link PackCache}
+ * @author Michel Kraemer
+ */
+public class PackCacheTest {
+  /**
+   * A temporary folder for the cache
+   */
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+  
+  /**
+   * Checks if code can be written and read again by another instance
+   * @throws Exception if something goes wrong
+   */
+  @Test
+  public void putGet() throws Exception {
+    File dir = folder.newFolder();
+    PackCache cache = new PackCache(dir, new NoopCache());
+    assertNull(cache.get("a"));
+    cache.put("a", "var s = \"äöü €\";");
+    cache.put("b", "var b = 2;");
+    cache.put("a", "var a = 1;");
+    assertEquals("var a = 1;", cache.get("a"));
+    
+    PackCache cache2 = new PackCache(dir, new NoopCache());
+    assertEquals("var a = 1;", cache2.get("a"));
+    assertEquals("var b = 2;", cache2.get("b"));
+    assertNull(cache2.get("c"));
+    
+    // entries added by another instance should be found
+    cache.put("c", "var c = 3;");
+    assertEquals("var c = 3;", cache2.get("c"));
+  }
+  
+  /**
+   * Checks if entries appended to a segment after it has been mapped
+   * can be read
+   * @throws Exception if something goes wrong
+   */
+  @Test
+  public void growAfterMap() throws Exception {
+    File dir = folder.newFolder();
+    PackCache cache = new PackCache(dir, new NoopCache());
+    PackCache cache2 = new PackCache(dir, new NoopCache());
+    for (int i = 0; i < 10; ++i) {
+      cache.put("key" + i, "var i = " + i + ";");
+      for (int j = 0; j <= i; ++j) {
+        assertEquals("var i = " + j + ";", cache2.get("key" + j));
+      }
+    }
+  }
+  
+  /**
+   * Checks if several instances sharing the same directory can write
+   * at the same time
+   * @throws Exception if something goes wrong
+   */
+  @Test
+  public void concurrentInstances() throws Exception {
+    File dir = folder.newFolder();
+    int threadCount = 4;
+    CountDownLatch start = new CountDownLatch(1);
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < threadCount; ++i) {
+      int n = i;
+      Thread t = new Thread(() -> {
+        PackCache cache = new PackCache(dir, new NoopCache());
+        try {
+          start.await();
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+        for (int j = 0; j < 50; ++j) {
+          cache.put("key" + n + "-" + j, "var i = " + j + ";");
+        }
+      });
+      t.start();
+      threads.add(t);
+    }
+    
+    start.countDown();
+    for (Thread t : threads) {
+      t.join();
+    }
+    
+    PackCache cache = new PackCache(dir, new NoopCache());
+    for (int i = 0; i < threadCount; ++i) {
+      for (int j = 0; j < 50; ++j) {
+        assertEquals("var i = " + j + ";", cache.get("key" + i + "-" + j));
+      }
+    }
+  }
+  
+  /**
+   * Checks if new segments are started when a segment is full
+   * @throws Exception if something goes wrong
+   */
+  @Test
+  public void segments() throws Exception {
+    File dir = folder.newFolder();
+    PackCache cache = new PackCache(dir, new NoopCache(), 100);
+    for (int i = 0; i < 10; ++i) {
+      cache.put("key" + i, "var i = " + i + ";");
+    }
+    
+    PackCache cache2 = new PackCache(dir, new NoopCache(), 100);
+    for (int i = 0; i < 10; ++i) {
+      assertEquals("var i = " + i + ";", cache2.get("key" + i));
+    }
+    assertTrue(dir.listFiles((d, name) -> name.endsWith(".pack")).length > 1);
+  }
+  
+  /**
+   * Checks if the cache is compacted if it contains many outdated entries
+   * @throws Exception if something goes wrong
+   */
+  @Test
+  public void compact() throws Exception {
+    File dir = folder.newFolder();
+    PackCache cache = new PackCache(dir, new NoopCache(), 64 * 1024);
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 1000; ++i) {
+      sb.append("var i = 0;\n");
+    }
+    String value = sb.toString();
+    for (int i = 0; i < 500; ++i) {
+      cache.put("key" + (i % 5), value + i);
+    }
+    
+    long size = 0;
+    for (File f : dir.listFiles((d, name) -> name.endsWith(".pack"))) {
+      size += f.length();
+    }
+    assertTrue(size < 1024 * 1024);
+    
+    PackCache cache2 = new PackCache(dir, new NoopCache());
+    for (int i = 0; i < 5; ++i) {
+      assertEquals(value + (495 + i), cache2.get("key" + i));
+    }
+  }
+  
+  /**
+   * Checks if corrupt entries are ignored
+   * @throws Exception if something goes wrong
+   */
+  @Test
+  public void corrupt() throws Exception {
+    File dir = folder.newFolder();
+    PackCache cache = new PackCache(dir, new NoopCache());
+    cache.put("a", "var a = 1;");
+    
+    File segment = dir.listFiles((d, name) -> name.endsWith(".pack"))[0];
+    try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+      raf.seek(raf.length() - 2);
+      raf.write('2');
+    }
+    
+    PackCache cache2 = new PackCache(dir, new NoopCache());
+    assertNull(cache2.get("a"));
+    cache2.put("a", "var a = 3;");
+    assertEquals("var a = 3;", new PackCache(dir, new NoopCache()).get("a"));
+  }
+}
@@ -0,0 +1,285 @@
+// Copyright 2016 Michel Kraemer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.undercouch.vertx.lang.typescript.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.undercouch.vertx.lang.typescript.compiler.Source;
+import de.undercouch.vertx.lang.typescript.metrics.Metrics;
+import de.undercouch.vertx.lang.typescript.metrics.TypeScriptMetricsMXBean;
+
+/**
+ * Tests {@link SourceCache}
+ * @author Michel Kraemer
+ */
+public class SourceCacheTest {
+  /**
+   * A temporary folder for source files
+   */
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+  
+  /**
+   * Writes a string to a file
+   * @param f the file
+   * @param contents the string to write
+   * @throws IOException if the file could not be written
+   */
+  private static void write(File f, String contents) throws IOException {
+    Files.write(f.toPath(), contents.getBytes(StandardCharsets.UTF_8));
+  }
+  
+  /**
+   * Checks if unchanged files are only read once
+   * @throws Exception if something goes wrong
+   */
+  @Test
+  public void unchanged() throws Exception {
+    File f = folder.newFile("a.ts");
+    write(f, "var i = 5;");
+    URL u = f.toURI().toURL();
+    
+    SourceCache cache = new SourceCache();
+    Source s1 = cache.get(u);
+    assertEquals("var i = 5;", s1.toString());
+    assertSame(s1, cache.get(u));
+  }
+  
+  /**
+   * Checks if only files that are actually read are counted in the
+   * metrics and not files served from the cache
+   * @throws Exception if something goes wrong
+   */
+  @Test
+  public void metrics() throws Exception {
+    assumeTrue(Metrics.get() instanceof TypeScriptMetricsMXBean);
+    TypeScriptMetricsMXBean metrics = (TypeScriptMetricsMXBean)Metrics.get();
+    
+    File f = folder.newFile("a.ts");
+    write(f, "var i = 5;");
+    assertTrue(f.setLastModified(f.lastModified() - 10000));
+    URL u = f.toURI().toURL();
+    
+    SourceCache cache = new SourceCache();
+    long files = metrics.getSourceFilesRead();
+    long bytes = metrics.getSourceBytesRead();
+    cache.get(u);
+    cache.get(u);
+    assertEquals(files + 1, metrics.getSourceFilesRead());
+    assertEquals(bytes + 10, metrics.getSourceBytesRead());
+  }
+  
+  /**
+   * Checks if files are read again after they have been modified
+   * @throws Exception if something goes wrong
+   */
+  @Test
+  public void modified() throws Exception {
+    File f = folder.newFile("a.ts");
+    write(f, "var i = 5;");
+    URL u = f.toURI().toURL();
+    
+    SourceCache cache = new SourceCache();
+    Source s1 = cache.get(u);
+    
+    // same size but different modification time
+    write(f, "var i = 6;");
+    assertTrue(f.setLastModified(f.lastModified() - 10000));
+    Source s2 = cache.get(u);
+    assertNotSame(s1, s2);
+    assertEquals("var i = 6;", s2.toString());
+    assertSame(s2, cache.get(u));
+  }
+  
+  /**
+   * Checks if a file modified twice within the resolution of its
+   * modification time is read again
+   * @throws Exception if something goes wrong
+   */
+  @Test
+  public void modifiedWithinSameTick() throws Exception {
+    File f = folder.newFile("a.ts");
+    long lastModified = System.currentTimeMillis() / 1000 * 1000;
+    write(f, "var i = 5;");
+    assertTrue(f.setLastModified(lastModified));
+    URL u = f.toURI().toURL();
+    
+    SourceCache cache = new SourceCache();
+    assertEquals("var i = 5;", cache.get(u).toString());
+    
+    // same size and same modification time
+    write(f, "var i = 6;");
+    assertTrue(f.setLastModified(lastModified));
+    assertEquals("var i = 6;", cache.get(u).toString());
+  }
+  
+  /**
+   * A fake resource that is neither a file nor a jar file entry
+   */
+  private static class FakeResource extends URLStreamHandler {
+    /**
+     * The resource's contents
+     */
+    volatile String contents;
+    
+    /**
+     * The resource's modification time
+     */
+    volatile long lastModified;
+    
+    /**
+     * The number of times the resource has been read
+     */
+    final AtomicInteger reads = new AtomicInteger();
+    
+    @Override
+    protected URLConnection openConnection(URL u) {
+      return new URLConnection(u) {
+        @Override
+        public void connect() {
+          // nothing to do
+        }
+        
+        @Override
+        public long getLastModified() {
+          return lastModified;
+        }
+        
+        @Override
+        public long getContentLengthLong() {
+          return contents.getBytes(StandardCharsets.UTF_8).length;
+        }
+        
+        @Override
+        public InputStream getInputStream() {
+          reads.incrementAndGet();
+          return new ByteArrayInputStream(contents.getBytes(StandardCharsets.UTF_8));
+        }
+      };
+    }
+  }
+  
+  /**
+   * Checks if sources from other locations than the file system are
+   * cached and read again if they have been modified
+   * @throws Exception if something goes wrong
+   */
+  @Test
+  public void otherProtocol() throws Exception {
+    FakeResource r = new FakeResource();
+    r.contents = "var i = 5;";
+    r.lastModified = 10000;
+    URL u = new URL(null, "fake:/a.ts", r);
+    
+    SourceCache cache = new SourceCache();
+    Source s1 = cache.get(u);
+    assertEquals("var i = 5;", s1.toString());
+    assertSame(s1, cache.get(u));
+    assertEquals(1, r.reads.get());
+    
+    r.contents = "var i = 6;";
+    r.lastModified = 20000;
+    Source s2 = cache.get(u);
+    assertEquals("var i = 6;", s2.toString());
+    assertEquals(2, r.reads.get());
+  }
+  
+  /**
+   * Checks if entries of jar files are read again after the jar file has
+   * been replaced
+   * @throws Exception if something goes wrong
+   */
+  @Test
+  public void jar() throws Exception {
+    File jar = new File(folder.getRoot(), "sources.jar");
+    writeJar(jar, "var i = 5;");
+    URL u = new URL("jar:" + jar.toURI().toURL() + "!/a.ts");
+    
+    SourceCache cache = new SourceCache();
+    Source s1 = cache.get(u);
+    assertEquals("var i = 5;", s1.toString());
+    assertSame(s1, cache.get(u));
+    
+    writeJar(jar, "var i = 6; var j = 7;");
+    Source s2 = cache.get(u);
+    assertNotSame(s1, s2);
+  }
+  
+  /**
+   * Writes a jar file containing a single entry 'a.ts'
+   * @param jar the jar file
+   * @param contents the contents of the entry
+   * @throws IOException if the file could not be written
+   */
+  private static void writeJar(File jar, String contents) throws IOException {
+    try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(jar))) {
+      zos.putNextEntry(new ZipEntry("a.ts"));
+      zos.write(contents.getBytes(StandardCharsets.UTF_8));
+      zos.closeEntry();
+    }
+  }
+  
+  /**
+   * Checks if missing files are reported
+   * @throws Exception if something goes wrong
+   */
+  @Test(expected = FileNotFoundException.class)
+  public void missing() throws Exception {
+    File f = new File(folder.getRoot(), "missing.ts");
+    new SourceCache().get(f.toURI().toURL());
+  }
+  
+  /**
+   * Checks if the least recently used entries are evicted
+   * @throws Exception if something goes wrong
+   */
+  @Test
+  public void evict() throws Exception {
+    File a = folder.newFile("a.ts");
+    File b = folder.newFile("b.ts");
+    write(a, "var a = 1;");
+    write(b, "var b = 1;");
+    
+    // room for one entry only
+    SourceCache cache = new SourceCache(300);
+    Source sa = cache.get(a.toURI().toURL());
+    cache.get(b.toURI().toURL());
+    assertTrue(cache.getSize() <= 300);
+    assertNotSame(sa, cache.get(a.toURI().toURL()));
+  }
+}
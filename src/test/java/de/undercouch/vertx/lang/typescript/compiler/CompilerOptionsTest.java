@@ -0,0 +1,42 @@
+// Copyright 2016 Michel Kraemer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.undercouch.vertx.lang.typescript.compiler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link CompilerOptions}
+ * @author Michel Kraemer
+ */
+public class CompilerOptionsTest {
+  /**
+   * Checks if the fingerprint depends on the compiler backend, the helper
+   * script and the options
+   */
+  @Test
+  public void fingerprint() {
+    CompilerOptions options = new CompilerOptions();
+    String v8 = options.getFingerprint("v8", EngineCompiler.COMPILE_JS);
+    assertEquals(v8, new CompilerOptions().getFingerprint("v8", EngineCompiler.COMPILE_JS));
+    assertNotEquals(v8, options.getFingerprint("nashorn", EngineCompiler.COMPILE_JS));
+    assertNotEquals(v8, options.getFingerprint("v8",
+        "vertx-typescript/util/node_compiler_sys.js"));
+    assertNotEquals(v8, new CompilerOptions().setTranspileOnly(true)
+        .getFingerprint("v8", EngineCompiler.COMPILE_JS));
+  }
+}
@@ -15,10 +15,13 @@
 package de.undercouch.vertx.lang.typescript.compiler;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.junit.Test;
 
@@ -35,6 +38,35 @@ public abstract class CompilerTestBase {
    */
   abstract protected TypeScriptCompiler getCompiler();
   
+  /**
+   * Create a new instance of the compiler to test
+   * @param options the compiler options
+   * @return the new compiler
+   */
+  abstract protected TypeScriptCompiler createCompiler(CompilerOptions options);
+  
+  /**
+   * Create a source factory serving the given files from memory and all
+   * other files from the class path
+   * @param files maps file names to file contents
+   * @return the source factory
+   */
+  protected SourceFactory createSourceFactory(Map<String, String> files) {
+    TypeScriptClassLoader cl = new TypeScriptClassLoader(this.getClass().getClassLoader(),
+        null, new NoopCache());
+    return (filename, baseFilename) -> {
+      String contents = files.get(filename);
+      if (contents != null) {
+        try {
+          return new Source(new URI(filename), contents);
+        } catch (URISyntaxException e) {
+          throw new IOException("Illegal filename", e);
+        }
+      }
+      return cl.getSource(filename, baseFilename);
+    };
+  }
+  
   /**
    * Compiles a very simple script
    * @throws Exception if something goes wrong
@@ -58,4 +90,28 @@ public abstract class CompilerTestBase {
     });
     assertEquals("var i = 5;", code.trim());
   }
+  
+  /**
+   * Checks if an incremental compilation after a file has been edited
+   * generates the same code as a compilation from scratch
+   * @throws Exception if something goes wrong
+   */
+  @Test
+  public void incrementalAfterEdit() throws Exception {
+    Map<String, String> files = new HashMap<>();
+    files.put("main.ts", "import lib = require('./lib');\nvar j: number = lib.i;");
+    files.put("lib.ts", "export var i: number = 5;");
+    SourceFactory sourceFactory = createSourceFactory(files);
+    
+    try (TypeScriptCompiler incremental = createCompiler(
+            new CompilerOptions().setIncremental(true));
+        TypeScriptCompiler fresh = createCompiler(new CompilerOptions())) {
+      incremental.compileModules("main.ts", sourceFactory);
+      
+      files.put("lib.ts", "export var i: number = 6;\nexport var k = 7;");
+      Map<String, String> recompiled = incremental.compileModules("main.ts", sourceFactory);
+      assertEquals(fresh.compileModules("main.ts", sourceFactory), recompiled);
+      assertTrue(recompiled.get("lib.ts").contains("exports.i = 6;"));
+    }
+  }
 }
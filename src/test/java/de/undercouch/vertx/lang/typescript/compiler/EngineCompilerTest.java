@@ -14,7 +14,18 @@
 
 package de.undercouch.vertx.lang.typescript.compiler;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.io.File;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
 import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import de.undercouch.vertx.lang.typescript.compiler.EngineCompiler;
 import de.undercouch.vertx.lang.typescript.compiler.TypeScriptCompiler;
@@ -25,6 +36,12 @@ import de.undercouch.vertx.lang.typescript.compiler.TypeScriptCompiler;
  */
 public class EngineCompilerTest extends CompilerTestBase {
   private EngineCompiler compiler = new EngineCompiler();
+  
+  /**
+   * A temporary folder for cached scripts
+   */
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
 
   @Before
   public void beforeMethod() {
@@ -36,4 +53,35 @@ public class EngineCompilerTest extends CompilerTestBase {
   protected TypeScriptCompiler getCompiler() {
     return compiler;
   }
+  
+  @Override
+  protected TypeScriptCompiler createCompiler(CompilerOptions options) {
+    return new EngineCompiler(options);
+  }
+  
+  /**
+   * Checks if preprocessed scripts are written to the cache directory and
+   * if they are kept apart from unprocessed ones
+   * @throws Exception if something goes wrong
+   */
+  @Test
+  public void cachedScript() throws Exception {
+    File dir = folder.newFolder();
+    EngineCompiler c = new EngineCompiler(new CompilerOptions(), dir);
+    Source src = new Source(new URI("script.js"), "var i = 5;");
+    
+    File processed = c.getCachedScript(src, s -> s + " var j = 6;");
+    assertEquals("var i = 5; var j = 6;", new String(
+        Files.readAllBytes(processed.toPath()), StandardCharsets.UTF_8));
+    
+    // the cached script should be reused
+    assertEquals(processed, c.getCachedScript(src, s -> {
+      throw new AssertionError("Script should not be processed again");
+    }));
+    
+    File unprocessed = c.getCachedScript(src, null);
+    assertNotEquals(processed, unprocessed);
+    assertEquals("var i = 5;", new String(
+        Files.readAllBytes(unprocessed.toPath()), StandardCharsets.UTF_8));
+  }
 }
@@ -14,6 +14,28 @@
 
 package de.undercouch.vertx.lang.typescript.compiler;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import de.undercouch.vertx.lang.typescript.cache.CacheManifest;
+
 /**
  * Tests the {@link NodeCompiler}
  * @author Michel Kraemer
@@ -25,4 +47,163 @@ public class NodeCompilerTest extends CompilerTestBase {
   protected TypeScriptCompiler getCompiler() {
     return compiler;
   }
+  
+  @Override
+  protected TypeScriptCompiler createCompiler(CompilerOptions options) {
+    return new NodeCompiler(options);
+  }
+  
+  /**
+   * Create a source factory serving the given files from memory and a
+   * fake TypeScript compiler instead of the real one. The fake compiler
+   * lets us test the communication with the Node.js process without
+   * depending on the behaviour of TypeScript.
+   * @param files maps file names to file contents
+   * @param requested a list receiving the names of all requested files
+   * @return the source factory
+   */
+  private SourceFactory createFakeSourceFactory(Map<String, String> files,
+      List<String> requested) {
+    return (filename, baseFilename) -> {
+      if (filename.equals("typescript/lib/tsc.js")) {
+        URL u = getClass().getResource("/fakeTsc.js");
+        return Source.fromURL(u, StandardCharsets.UTF_8);
+      }
+      if (filename.equals("vertx-typescript/util/node_compiler_sys.js")) {
+        URL u = getClass().getResource("/" + filename);
+        return Source.fromURL(u, StandardCharsets.UTF_8);
+      }
+      requested.add(filename);
+      String contents = files.get(filename);
+      if (contents == null) {
+        throw new FileNotFoundException(filename);
+      }
+      try {
+        return new Source(new URI(filename), contents);
+      } catch (URISyntaxException e) {
+        throw new IOException("Illegal filename", e);
+      }
+    };
+  }
+  
+  /**
+   * Checks if file requests and generated modules are exchanged correctly
+   * with the Node.js process, even if messages contain non-ASCII characters
+   * or are larger than the stream buffers
+   * @throws Exception if something goes wrong
+   */
+  @Test
+  public void framedProtocol() throws Exception {
+    Assume.assumeTrue(NodeCompiler.supportsNode());
+    
+    StringBuilder large = new StringBuilder();
+    while (large.length() < 200 * 1024) {
+      large.append("var x = 1;");
+    }
+    
+    Map<String, String> files = new HashMap<>();
+    files.put("main.ts", "require(\"dep.ts\");\nvar s = \"äöü €\";");
+    files.put("dep.ts", large.toString());
+    List<String> requested = new ArrayList<>();
+    
+    try (NodeCompiler c = new NodeCompiler()) {
+      Map<String, String> modules = c.compileModules("main.ts",
+          createFakeSourceFactory(files, requested));
+      assertEquals(Arrays.asList("dep.ts", "main.ts"),
+          new ArrayList<>(modules.keySet()));
+      assertEquals("// " + files.get("dep.ts") + "\n", modules.get("dep.ts"));
+      assertEquals("// " + files.get("main.ts") + "\n", modules.get("main.ts"));
+      assertTrue(requested.containsAll(Arrays.asList("main.ts", "dep.ts")));
+    }
+  }
+  
+  /**
+   * Checks if the scripts the Node.js process is started with are not
+   * recorded as dependencies of the compiled file
+   * @throws Exception if something goes wrong
+   */
+  @Test
+  public void compilerScriptsNotRecorded() throws Exception {
+    Assume.assumeTrue(NodeCompiler.supportsNode());
+    
+    Map<String, String> files = new HashMap<>();
+    files.put("main.ts", "var i = 5;");
+    SourceFactory sourceFactory = createFakeSourceFactory(files, new ArrayList<>());
+    
+    try (NodeCompiler c = new NodeCompiler()) {
+      CacheManifest manifest = new CacheManifest(c.getFingerprint());
+      c.compile("main.ts", manifest.record(sourceFactory));
+      assertTrue(manifest.toString().contains("main.ts"));
+      assertFalse(manifest.toString().contains("tsc.js"));
+      assertFalse(manifest.toString().contains("node_compiler_sys.js"));
+    }
+  }
+  
+  /**
+   * Checks if a file that cannot be found is reported as a compiler error
+   * and if the process can still be used afterwards
+   * @throws Exception if something goes wrong
+   */
+  @Test
+  public void fileNotFound() throws Exception {
+    Assume.assumeTrue(NodeCompiler.supportsNode());
+    
+    Map<String, String> files = new HashMap<>();
+    files.put("main.ts", "var i = 5;");
+    SourceFactory sourceFactory = createFakeSourceFactory(files, new ArrayList<>());
+    
+    try (NodeCompiler c = new NodeCompiler()) {
+      try {
+        c.compile("missing.ts", sourceFactory);
+        fail("Compilation should have failed");
+      } catch (IllegalStateException e) {
+        assertTrue(e.getMessage().contains("File not found: missing.ts"));
+      }
+      assertEquals("// var i = 5;\n", c.compile("main.ts", sourceFactory));
+    }
+  }
+  
+  /**
+   * Checks if the compiler starts a new Node.js process if the old one
+   * has died
+   * @throws Exception if something goes wrong
+   */
+  @Test
+  public void restartAfterCrash() throws Exception {
+    Assume.assumeTrue(NodeCompiler.supportsNode());
+    
+    Map<String, String> files = new HashMap<>();
+    files.put("main.ts", "var i = 5;");
+    files.put("crash.ts", "crash");
+    SourceFactory sourceFactory = createFakeSourceFactory(files, new ArrayList<>());
+    
+    try (NodeCompiler c = new NodeCompiler()) {
+      assertEquals("// var i = 5;\n", c.compile("main.ts", sourceFactory));
+      try {
+        c.compile("crash.ts", sourceFactory);
+        fail("Compilation should have failed");
+      } catch (IllegalStateException e) {
+        assertTrue(e.getMessage().startsWith("Node.js died prematurely"));
+      }
+      assertEquals("// var i = 5;\n", c.compile("main.ts", sourceFactory));
+    }
+  }
+  
+  /**
+   * Checks if closing the compiler stops the Node.js process
+   * @throws Exception if something goes wrong
+   */
+  @Test
+  public void close() throws Exception {
+    Assume.assumeTrue(NodeCompiler.supportsNode());
+    
+    Map<String, String> files = new HashMap<>();
+    files.put("main.ts", "var i = 5;");
+    
+    NodeCompiler c = new NodeCompiler();
+    c.compile("main.ts", createFakeSourceFactory(files, new ArrayList<>()));
+    assertTrue(c.isProcessAlive());
+    c.close();
+    assertFalse(c.isProcessAlive());
+  }
 }
@@ -0,0 +1,105 @@
+// Copyright 2016 Michel Kraemer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.undercouch.vertx.lang.typescript.compiler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.io.ByteArrayInputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link Source}
+ * @author Michel Kraemer
+ */
+public class SourceTest {
+  /**
+   * Contents of the test file
+   */
+  private static final String CONTENTS = "var s = \"äöü €\";";
+  
+  /**
+   * Reads a source from a stream
+   * @param uri the file's URI
+   * @param contents the file's contents
+   * @return the source
+   * @throws Exception if something goes wrong
+   */
+  private static Source read(String uri, String contents) throws Exception {
+    return Source.fromStream(new ByteArrayInputStream(
+        contents.getBytes(StandardCharsets.UTF_8)), URI.create(uri),
+        StandardCharsets.UTF_8);
+  }
+  
+  /**
+   * Checks if the digest calculated while reading a stream equals the one
+   * calculated from a string
+   * @throws Exception if something goes wrong
+   */
+  @Test
+  public void digest() throws Exception {
+    Source streamed = read("main.ts", CONTENTS);
+    Source str = new Source(URI.create("main.ts"), CONTENTS);
+    assertEquals(CONTENTS, streamed.toString());
+    assertEquals(str.getDigest(), streamed.getDigest());
+    assertNotEquals(str.getDigest(), read("main.ts", "var i = 5;").getDigest());
+  }
+  
+  /**
+   * Checks if sources are compared correctly
+   * @throws Exception if something goes wrong
+   */
+  @Test
+  public void equality() throws Exception {
+    Source a = read("main.ts", CONTENTS);
+    Source b = new Source(URI.create("main.ts"), CONTENTS);
+    assertEquals(a, b);
+    assertEquals(a.hashCode(), b.hashCode());
+    
+    // both digests and hash codes known now
+    b.getDigest();
+    assertEquals(a, b);
+    
+    assertNotEquals(a, read("main.ts", "var i = 5;"));
+    assertNotEquals(a, read("other.ts", CONTENTS));
+  }
+  
+  /**
+   * Checks if sources backed by bytes on or off the heap behave like
+   * sources backed by strings
+   * @throws Exception if something goes wrong
+   */
+  @Test
+  public void bytes() throws Exception {
+    Source str = new Source(URI.create("main.ts"), CONTENTS);
+    byte[] barr = CONTENTS.getBytes(StandardCharsets.UTF_8);
+    Source bytes = Source.fromBytes(URI.create("main.ts"), ByteBuffer.wrap(barr));
+    Source direct = bytes.toDirect();
+    
+    assertEquals(barr.length, bytes.getLength());
+    assertEquals(barr.length, direct.getLength());
+    assertEquals(str.getDigest(), bytes.getDigest());
+    assertEquals(str.getDigest(), direct.getDigest());
+    assertEquals(str, bytes);
+    assertEquals(str, direct);
+    assertEquals(CONTENTS, bytes.toString());
+    assertEquals(CONTENTS, direct.toString());
+    assertEquals(ByteBuffer.wrap(barr), direct.getBytes());
+  }
+}
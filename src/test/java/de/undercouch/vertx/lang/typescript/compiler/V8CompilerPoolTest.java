@@ -0,0 +1,73 @@
+// Copyright 2016 Michel Kraemer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.undercouch.vertx.lang.typescript.compiler;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+
+/**
+ * Tests the {@link V8CompilerPool}
+ * @author Michel Kraemer
+ */
+@Ignore("Disabled until https://github.com/eclipsesource/J2V8/issues/39 is solved")
+public class V8CompilerPoolTest extends CompilerTestBase {
+  private V8CompilerPool compiler = new V8CompilerPool(2);
+
+  @Before
+  public void beforeMethod() {
+    // skip V8CompilerPool tests if V8 runtime is not available
+    org.junit.Assume.assumeTrue(V8Compiler.supportsV8());
+  }
+
+  @Override
+  protected TypeScriptCompiler getCompiler() {
+    return compiler;
+  }
+  
+  @Override
+  protected TypeScriptCompiler createCompiler(CompilerOptions options) {
+    return new V8CompilerPool(2, options);
+  }
+  
+  /**
+   * Checks if compiling a program consisting of several modules in
+   * parallel generates the same code as compiling it sequentially
+   * @throws Exception if something goes wrong
+   */
+  @Test
+  public void parallelMatchesSequential() throws Exception {
+    Map<String, String> files = new HashMap<>();
+    files.put("main.ts", "import a = require('./a');\nimport b = require('./b');\n" +
+        "var s: string = a.name + b.name;");
+    files.put("a.ts", "import c = require('./c');\nexport var name = 'a' + c.name;");
+    files.put("b.ts", "import c = require('./c');\nexport var name = 'b' + c.name;");
+    files.put("c.ts", "export var name: string = 'c';");
+    SourceFactory sourceFactory = createSourceFactory(files);
+    
+    try (V8CompilerPool sequential = new V8CompilerPool(2);
+        V8CompilerPool parallel = new V8CompilerPool(2,
+            new CompilerOptions().setParallel(true))) {
+      Map<String, String> expected = sequential.compileModules("main.ts", sourceFactory);
+      assertEquals(4, expected.size());
+      assertEquals(expected, parallel.compileModules("main.ts", sourceFactory));
+    }
+  }
+}
@@ -0,0 +1,359 @@
+// Copyright 2016 Michel Kraemer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.undercouch.vertx.lang.typescript.compiler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import de.undercouch.vertx.lang.typescript.compiler.V8Compiler.FileDiagnostic;
+
+/**
+ * Tests how {@link V8CompilerPool} dispatches requests to its workers.
+ * Uses fake compilers so the tests also run if the V8 runtime is not
+ * available.
+ * @author Michel Kraemer
+ */
+public class V8CompilerPoolWorkerTest {
+  /**
+   * A fake compiler that checks that it is only called by the thread
+   * that created it
+   */
+  private static class ConfinedCompiler extends V8Compiler {
+    /**
+     * The thread that created this compiler
+     */
+    private final Thread owner = Thread.currentThread();
+    
+    /**
+     * The number of calls from other threads than {@link #owner}
+     */
+    private final AtomicInteger violations;
+    
+    /**
+     * The number of compilers closed
+     */
+    private final AtomicInteger closed;
+    
+    /**
+     * Creates the compiler
+     * @param options the compiler options
+     * @param violations the number of calls from other threads than the
+     * one that created the compiler
+     * @param closed the number of compilers closed
+     */
+    ConfinedCompiler(CompilerOptions options, AtomicInteger violations,
+        AtomicInteger closed) {
+      super(options);
+      this.violations = violations;
+      this.closed = closed;
+    }
+    
+    @Override
+    public void close() {
+      if (Thread.currentThread() != owner) {
+        violations.incrementAndGet();
+      }
+      closed.incrementAndGet();
+    }
+    
+    @Override
+    public String compile(String filename, SourceFactory sourceFactory)
+        throws IOException {
+      if (Thread.currentThread() != owner) {
+        violations.incrementAndGet();
+      }
+      if (filename.startsWith("missing")) {
+        throw new FileNotFoundException(filename);
+      }
+      return "// " + filename;
+    }
+  }
+  
+  /**
+   * A fake compiler that pretends to compile a program consisting of
+   * several files
+   */
+  private static class ProgramCompiler extends V8Compiler {
+    /**
+     * Maps names of the program's files to the code generated for them
+     */
+    private final Map<String, String> program = new LinkedHashMap<>();
+    
+    /**
+     * Creates the compiler
+     * @param options the compiler options
+     * @param fileCount the number of files in the program
+     */
+    ProgramCompiler(CompilerOptions options, int fileCount) {
+      super(options);
+      for (int i = 0; i < fileCount; ++i) {
+        program.put("file" + i + ".ts", "var i = " + i + ";\n");
+      }
+    }
+    
+    @Override
+    public String compile(String filename, SourceFactory sourceFactory) {
+      return String.join("", program.values());
+    }
+    
+    @Override
+    public Map<String, String> compileModules(String filename,
+        SourceFactory sourceFactory) {
+      return new LinkedHashMap<>(program);
+    }
+    
+    @Override
+    List<String> resolve(String filename, SourceFactory sourceFactory) {
+      return new ArrayList<>(program.keySet());
+    }
+    
+    @Override
+    void compileFiles(String filename, SourceFactory sourceFactory,
+        List<String> files, boolean reportGlobal, Map<String, String> outputs,
+        List<FileDiagnostic> diagnostics) {
+      for (String f : files) {
+        outputs.put(f, program.get(f));
+      }
+    }
+  }
+  
+  /**
+   * Checks if compiling a program in parallel generates the same code as
+   * compiling it with a single worker
+   * @throws Exception if something goes wrong
+   */
+  @Test
+  public void parallelMatchesSequential() throws Exception {
+    V8CompilerPool sequential = new V8CompilerPool(3, new CompilerOptions(),
+        o -> new ProgramCompiler(o, 10));
+    V8CompilerPool parallel = new V8CompilerPool(3,
+        new CompilerOptions().setParallel(true), o -> new ProgramCompiler(o, 10));
+    assertEquals(sequential.compile("file0.ts", null),
+        parallel.compile("file0.ts", null));
+    Map<String, String> expected = sequential.compileModules("file0.ts", null);
+    Map<String, String> actual = parallel.compileModules("file0.ts", null);
+    assertEquals(expected, actual);
+    assertEquals(new ArrayList<>(expected.keySet()), new ArrayList<>(actual.keySet()));
+  }
+  
+  /**
+   * Checks if the problems found by the workers of a parallel compilation
+   * are reported like a single compiler would report them
+   */
+  @Test
+  public void selectDiagnostics() {
+    List<String> files = Arrays.asList("a.ts", "b.ts", "c.ts");
+    
+    // syntactic problems hide all others except those found while
+    // generating code
+    List<FileDiagnostic> diagnostics = Arrays.asList(
+        new FileDiagnostic("semantic", "a.ts", "semantic a"),
+        new FileDiagnostic("syntactic", "c.ts", "syntactic c"),
+        new FileDiagnostic("emit", "b.ts", "emit b"),
+        new FileDiagnostic("global", "", "global"),
+        new FileDiagnostic("syntactic", "b.ts", "syntactic b"),
+        new FileDiagnostic("syntactic", "lib.d.ts", "syntactic lib"));
+    assertEquals(Arrays.asList("syntactic lib", "syntactic b", "syntactic c", "emit b"),
+        V8CompilerPool.selectDiagnostics(diagnostics, files));
+    
+    // global problems hide semantic ones
+    diagnostics = Arrays.asList(
+        new FileDiagnostic("semantic", "a.ts", "semantic a"),
+        new FileDiagnostic("global", "", "global"));
+    assertEquals(Arrays.asList("global"),
+        V8CompilerPool.selectDiagnostics(diagnostics, files));
+    
+    // semantic problems are ordered by file
+    diagnostics = Arrays.asList(
+        new FileDiagnostic("semantic", "c.ts", "semantic c"),
+        new FileDiagnostic("semantic", "a.ts", "semantic a1"),
+        new FileDiagnostic("semantic", "a.ts", "semantic a2"));
+    assertEquals(Arrays.asList("semantic a1", "semantic a2", "semantic c"),
+        V8CompilerPool.selectDiagnostics(diagnostics, files));
+  }
+  
+  /**
+   * Checks if each compiler is confined to the worker thread that created
+   * it and if the pool does not create more compilers than workers
+   * @throws Exception if something goes wrong
+   */
+  @Test
+  public void confined() throws Exception {
+    AtomicInteger created = new AtomicInteger();
+    AtomicInteger violations = new AtomicInteger();
+    V8CompilerPool pool = new V8CompilerPool(2, new CompilerOptions(), o -> {
+      created.incrementAndGet();
+      return new ConfinedCompiler(o, violations, new AtomicInteger());
+    });
+    
+    int threadCount = 8;
+    CountDownLatch start = new CountDownLatch(1);
+    List<String> results = Collections.synchronizedList(new ArrayList<>());
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < threadCount; ++i) {
+      String filename = "file" + i + ".ts";
+      Thread t = new Thread(() -> {
+        try {
+          start.await();
+          for (int j = 0; j < 4; ++j) {
+            results.add(pool.compile(filename, null));
+          }
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      });
+      t.start();
+      threads.add(t);
+    }
+    
+    start.countDown();
+    for (Thread t : threads) {
+      t.join();
+    }
+    
+    assertEquals(threadCount * 4, results.size());
+    assertEquals(0, violations.get());
+    assertTrue(created.get() >= 1 && created.get() <= 2);
+  }
+  
+  /**
+   * Checks if an {@link IOException} thrown by a worker is passed on to
+   * the caller
+   * @throws Exception if something goes wrong
+   */
+  @Test(expected = FileNotFoundException.class)
+  public void ioException() throws Exception {
+    V8CompilerPool pool = new V8CompilerPool(2, new CompilerOptions(),
+        o -> new ConfinedCompiler(o, new AtomicInteger(), new AtomicInteger()));
+    pool.compile("missing.ts", null);
+  }
+  
+  /**
+   * Checks if closing the pool closes every compiler on the thread that
+   * created it
+   * @throws Exception if something goes wrong
+   */
+  @Test
+  public void close() throws Exception {
+    AtomicInteger created = new AtomicInteger();
+    AtomicInteger violations = new AtomicInteger();
+    AtomicInteger closed = new AtomicInteger();
+    V8CompilerPool pool = new V8CompilerPool(3, new CompilerOptions(), o -> {
+      created.incrementAndGet();
+      return new ConfinedCompiler(o, violations, closed);
+    });
+    pool.compile("file.ts", null);
+    pool.close();
+    assertEquals(created.get(), closed.get());
+    assertEquals(0, violations.get());
+  }
+  
+  /**
+   * Checks if compilers are only created when they are needed
+   * @throws Exception if something goes wrong
+   */
+  @Test
+  public void lazy() throws Exception {
+    AtomicInteger created = new AtomicInteger();
+    V8CompilerPool pool = new V8CompilerPool(4, new CompilerOptions(), o -> {
+      created.incrementAndGet();
+      return new ConfinedCompiler(o, new AtomicInteger(), new AtomicInteger());
+    });
+    assertEquals(0, created.get());
+    assertEquals("// file.ts", pool.compile("file.ts", null));
+    assertEquals(1, created.get());
+  }
+  
+  /**
+   * Checks if warming up the pool creates a compiler on every worker
+   * @throws Exception if something goes wrong
+   */
+  @Test
+  public void warmUp() throws Exception {
+    AtomicInteger created = new AtomicInteger();
+    AtomicInteger violations = new AtomicInteger();
+    AtomicInteger closed = new AtomicInteger();
+    V8CompilerPool pool = new V8CompilerPool(3, new CompilerOptions(), o -> {
+      created.incrementAndGet();
+      return new ConfinedCompiler(o, violations, closed);
+    });
+    try {
+      pool.warmUp("file.ts", null);
+      assertEquals(3, created.get());
+      
+      // the workers should reuse their compilers
+      pool.compile("file.ts", null);
+      assertEquals(3, created.get());
+      assertEquals(0, violations.get());
+    } finally {
+      pool.close();
+    }
+  }
+  
+  /**
+   * Checks if the pool does not hang if it is warmed up by several threads
+   * at the same time
+   * @throws Exception if something goes wrong
+   */
+  @Test(timeout = 10000)
+  public void concurrentWarmUp() throws Exception {
+    AtomicInteger created = new AtomicInteger();
+    AtomicInteger violations = new AtomicInteger();
+    AtomicInteger closed = new AtomicInteger();
+    V8CompilerPool pool = new V8CompilerPool(3, new CompilerOptions(), o -> {
+      created.incrementAndGet();
+      return new ConfinedCompiler(o, violations, closed);
+    });
+    
+    CountDownLatch start = new CountDownLatch(1);
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < 8; ++i) {
+      Thread t = new Thread(() -> {
+        try {
+          start.await();
+          for (int j = 0; j < 100; ++j) {
+            pool.warmUp("file.ts", null);
+          }
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      });
+      t.start();
+      threads.add(t);
+    }
+    start.countDown();
+    for (Thread t : threads) {
+      t.join();
+    }
+    
+    pool.close();
+    assertEquals(3, created.get());
+    assertEquals(3, closed.get());
+    assertEquals(0, violations.get());
+  }
+}
@@ -35,4 +35,9 @@ public class V8CompilerTest extends CompilerTestBase {
   protected TypeScriptCompiler getCompiler() {
     return compiler;
   }
+  
+  @Override
+  protected TypeScriptCompiler createCompiler(CompilerOptions options) {
+    return new V8Compiler(options);
+  }
 }
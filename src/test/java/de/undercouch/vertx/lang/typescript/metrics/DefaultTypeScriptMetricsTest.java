@@ -0,0 +1,128 @@
+// Copyright 2016 Michel Kraemer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.undercouch.vertx.lang.typescript.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link DefaultTypeScriptMetrics}
+ * @author Michel Kraemer
+ */
+public class DefaultTypeScriptMetricsTest {
+  /**
+   * The number of nanoseconds per millisecond
+   */
+  private static final long MILLIS = 1000000L;
+  
+  /**
+   * Checks if cache hits and misses are counted per tier
+   */
+  @Test
+  public void cache() {
+    DefaultTypeScriptMetrics m = new DefaultTypeScriptMetrics();
+    m.cacheHit(TypeScriptMetrics.TIER_MEMORY);
+    m.cacheHit(TypeScriptMetrics.TIER_MEMORY);
+    m.cacheMiss(TypeScriptMetrics.TIER_MEMORY);
+    m.cacheMiss(TypeScriptMetrics.TIER_DISK);
+    assertEquals(1, m.getCacheHits().size());
+    assertEquals(2L, (long)m.getCacheHits().get(TypeScriptMetrics.TIER_MEMORY));
+    assertEquals(1L, (long)m.getCacheMisses().get(TypeScriptMetrics.TIER_MEMORY));
+    assertEquals(1L, (long)m.getCacheMisses().get(TypeScriptMetrics.TIER_DISK));
+  }
+  
+  /**
+   * Checks if compilations and source files are recorded
+   */
+  @Test
+  public void compile() {
+    DefaultTypeScriptMetrics m = new DefaultTypeScriptMetrics();
+    m.compileStarted();
+    m.compileStarted();
+    assertEquals(2, m.getCompilesInFlight());
+    m.compileFinished("v8", 10 * MILLIS);
+    assertEquals(1, m.getCompilesInFlight());
+    m.compileFinished("v8", 30 * MILLIS);
+    assertEquals(0, m.getCompilesInFlight());
+    
+    HistogramSnapshot s = m.getCompileTimes().get("v8");
+    assertEquals(2, s.getCount());
+    assertEquals(20.0, s.getMean(), 0.001);
+    assertEquals(30.0, s.getMax(), 0.001);
+    assertTrue(s.getP50() >= 10.0 && s.getP50() <= 30.0);
+    assertEquals(30.0, s.getP99(), 0.001);
+    
+    m.compilerInitialized("node", 5 * MILLIS);
+    assertEquals(1, m.getCompilerInitTimes().get("node").getCount());
+    
+    m.sourceRead(100);
+    m.sourceRead(50);
+    assertEquals(2, m.getSourceFilesRead());
+    assertEquals(150, m.getSourceBytesRead());
+  }
+  
+  /**
+   * Checks if the metrics can be queried through JMX
+   * @throws Exception if something goes wrong
+   */
+  @Test
+  public void jmx() throws Exception {
+    DefaultTypeScriptMetrics m = new DefaultTypeScriptMetrics();
+    m.cacheHit(TypeScriptMetrics.TIER_PACK);
+    m.compileStarted();
+    m.compileFinished("nashorn", 2 * MILLIS);
+    
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName name = new ObjectName(DefaultTypeScriptMetrics.OBJECT_NAME + ",test=jmx");
+    server.registerMBean(m, name);
+    try {
+      TabularData hits = (TabularData)server.getAttribute(name, "CacheHits");
+      CompositeData hit = hits.get(new Object[] { TypeScriptMetrics.TIER_PACK });
+      assertEquals(1L, hit.get("value"));
+      
+      TabularData times = (TabularData)server.getAttribute(name, "CompileTimes");
+      CompositeData time = (CompositeData)times.get(
+          new Object[] { "nashorn" }).get("value");
+      assertEquals(1L, time.get("count"));
+      assertEquals(2.0, (Double)time.get("max"), 0.001);
+      
+      assertEquals(0L, server.getAttribute(name, "CompilesInFlight"));
+    } finally {
+      server.unregisterMBean(name);
+    }
+  }
+  
+  /**
+   * Checks if an empty histogram yields zeros
+   */
+  @Test
+  public void emptyHistogram() {
+    Map<String, HistogramSnapshot> times = new DefaultTypeScriptMetrics().getCompileTimes();
+    assertTrue(times.isEmpty());
+    HistogramSnapshot s = new Histogram().snapshot();
+    assertEquals(0, s.getCount());
+    assertEquals(0.0, s.getMax(), 0.0);
+  }
+}
@@ -0,0 +1,71 @@
+// a minimal stand-in for typescript/lib/tsc.js used to test the protocol
+// between NodeCompiler and node_compiler_sys.js without the real compiler.
+// each file may declare its dependencies with lines of the form
+// 'require("name.ts")'. the generated code of a file is its text prefixed
+// with '// '. a file containing the word 'crash' terminates the process.
+var ts = {};
+ts.sys = {
+  args: process.argv.slice(2),
+  newLine: "\n"
+};
+ts.DiagnosticCategory = { 1: "Error" };
+ts.parseCommandLine = function(args) {
+  return { options: {} };
+};
+ts.createCompilerHost = function(options) {
+  return {
+    getNewLine: function() { return "\n"; },
+    getSourceFile: function(fileName) {
+      var text = ts.sys.readFile(fileName);
+      return text === undefined ? undefined : ts.createSourceFile(fileName, text);
+    },
+    writeFile: function() {}
+  };
+};
+ts.createSourceFile = function(fileName, text) {
+  return { fileName: fileName, text: text };
+};
+ts.getLineAndCharacterOfPosition = function() {
+  return { line: 0, character: 0 };
+};
+ts.flattenDiagnosticMessageText = function(messageText) {
+  return messageText;
+};
+ts.createProgram = function(roots, options, host) {
+  var files = [];
+  var diagnostics = [];
+  function add(fileName) {
+    var sourceFile = host.getSourceFile(fileName);
+    if (sourceFile === undefined) {
+      diagnostics.push({ category: 1, messageText: "File not found: " + fileName });
+      return;
+    }
+    if (/crash/.test(sourceFile.text)) {
+      process.exit(3);
+    }
+    var re = /require\("([^"]+)"\)/g;
+    var m;
+    while ((m = re.exec(sourceFile.text)) !== null) {
+      if (host.fileExists(m[1])) {
+        add(m[1]);
+      }
+    }
+    files.push(sourceFile);
+  }
+  roots.forEach(add);
+  return {
+    getSyntacticDiagnostics: function() { return diagnostics; },
+    getOptionsDiagnostics: function() { return []; },
+    getGlobalDiagnostics: function() { return []; },
+    getSemanticDiagnostics: function() { return []; },
+    getSourceFiles: function() { return files; },
+    getSourceFile: function(fileName) {
+      return files.filter(function(f) { return f.fileName === fileName; })[0];
+    },
+    emit: function(target) {
+      host.writeFile(target.fileName.replace(/ts$/, "js"), "// " + target.text + "\n");
+      return { diagnostics: [] };
+    }
+  };
+};
+ts.executeCommandLine(ts.sys.args);